@@ -0,0 +1,81 @@
+package org.chatws.benchmark;
+
+import org.chatws.config.ChatProperties;
+import org.chatws.handler.ChatWebSocketHandler;
+import org.chatws.model.ChatMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fan-out of one chat message to every member of a room: encoding (once per
+ * format) plus queueing a frame per session. The writes themselves happen on the
+ * writer threads, as in production, and are not part of the measured time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    private static final String ROOM = "general";
+
+    @Param({"10", "1000", "10000"})
+    private int members;
+
+    @Param({"chatws.json", "chatws.cbor"})
+    private String protocol;
+
+    private ChatFixture fixture;
+    private MethodHandle broadcastToRoom;
+    private ChatMessage message;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        fixture = new ChatFixture(properties -> {
+            // Frames that pile up while a writer catches up are dropped instead of disconnecting the member
+            properties.getOutbound().setQueueCapacity(1024);
+            properties.getOutbound().setOverflowPolicy(ChatProperties.OverflowPolicy.DROP);
+        });
+        for (int i = 0; i < members; i++) {
+            fixture.join("user" + i, ROOM, protocol);
+        }
+
+        broadcastToRoom = MethodHandles.privateLookupIn(ChatWebSocketHandler.class, MethodHandles.lookup())
+            .findVirtual(ChatWebSocketHandler.class, "broadcastToRoom",
+                MethodType.methodType(void.class, String.class, ChatMessage.class));
+    }
+
+    @Setup(Level.Invocation)
+    public void newMessage() {
+        message = fixture.accept(
+            new ChatMessage(ChatMessage.MessageType.CHAT, "Hello, everyone in the room!", "user0", ROOM));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    public void broadcast() throws Throwable {
+        broadcastToRoom.invoke(fixture.handler, ROOM, message);
+    }
+}
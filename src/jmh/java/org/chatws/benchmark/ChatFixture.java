@@ -0,0 +1,173 @@
+package org.chatws.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.chatws.bus.LoopbackChatBus;
+import org.chatws.bus.LoopbackUsernameRegistry;
+import org.chatws.config.ChatProperties;
+import org.chatws.config.JacksonConfig;
+import org.chatws.handler.ChatWebSocketHandler;
+import org.chatws.handler.OutboundDispatcher;
+import org.chatws.handler.RoomSequencer;
+import org.chatws.model.ChatMessage;
+import org.chatws.repository.ChatMessageRepository;
+import org.chatws.service.ChatMetrics;
+import org.chatws.service.ChatService;
+import org.chatws.service.InboxCache;
+import org.chatws.service.MessageDecoder;
+import org.chatws.service.MessageEncoder;
+import org.chatws.service.MessageIdGenerator;
+import org.chatws.service.MessageWriteBehind;
+import org.chatws.service.RoomPageCache;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+/**
+ * The chat components wired by hand, the way Spring wires them, on top of an
+ * in-memory repository that accepts every write and finds nothing
+ */
+final class ChatFixture implements AutoCloseable {
+
+    final ChatProperties properties = new ChatProperties();
+    final ObjectMapper objectMapper;
+    final CBORMapper cborMapper;
+    final ChatMetrics chatMetrics = new ChatMetrics();
+    final MessageEncoder messageEncoder = new MessageEncoder();
+    final MessageDecoder messageDecoder = new MessageDecoder();
+    final MessageIdGenerator messageIds = new MessageIdGenerator();
+    final MessageWriteBehind messageWriteBehind = new MessageWriteBehind();
+    final InboxCache inboxCache = new InboxCache();
+    final RoomPageCache roomPageCache = new RoomPageCache();
+    final ChatService chatService = new ChatService();
+    final OutboundDispatcher outboundDispatcher = new OutboundDispatcher();
+    final RoomSequencer roomSequencer = new RoomSequencer();
+    final ChatWebSocketHandler handler = new ChatWebSocketHandler();
+
+    private final ExecutorService writer = Executors.newCachedThreadPool(daemon());
+    private final ExecutorService io = Executors.newFixedThreadPool(4, daemon());
+
+    ChatFixture(Consumer<ChatProperties> settings) {
+        settings.accept(properties);
+
+        JacksonConfig jackson = new JacksonConfig();
+        objectMapper = jackson.objectMapper();
+        cborMapper = jackson.cborMapper();
+        ChatMessageRepository repository = inMemoryRepository();
+
+        setField(chatMetrics, "meterRegistry", new SimpleMeterRegistry());
+        setField(chatMetrics, "chatProperties", properties);
+        chatMetrics.init();
+
+        setField(messageEncoder, "objectMapper", objectMapper);
+        setField(messageEncoder, "cborMapper", cborMapper);
+
+        setField(messageDecoder, "objectMapper", objectMapper);
+        setField(messageDecoder, "cborMapper", cborMapper);
+        setField(messageDecoder, "chatProperties", properties);
+        setField(messageDecoder, "chatMetrics", chatMetrics);
+
+        setField(messageIds, "chatProperties", properties);
+        messageIds.init();
+
+        setField(messageWriteBehind, "chatMessageRepository", repository);
+        setField(messageWriteBehind, "chatProperties", properties);
+        setField(messageWriteBehind, "chatMetrics", chatMetrics);
+        messageWriteBehind.start();
+
+        setField(inboxCache, "chatProperties", properties);
+
+        setField(roomPageCache, "chatProperties", properties);
+        setField(roomPageCache, "chatMetrics", chatMetrics);
+        roomPageCache.init();
+
+        setField(chatService, "chatMessageRepository", repository);
+        setField(chatService, "messageEncoder", messageEncoder);
+        setField(chatService, "messageWriteBehind", messageWriteBehind);
+        setField(chatService, "chatProperties", properties);
+        setField(chatService, "chatMetrics", chatMetrics);
+        setField(chatService, "messageIdGenerator", messageIds);
+        setField(chatService, "inboxCache", inboxCache);
+        setField(chatService, "roomPageCache", roomPageCache);
+        setField(chatService, "chatIoExecutor", io);
+        setField(chatService, "usernameRegistry", new LoopbackUsernameRegistry());
+        chatService.init();
+
+        setField(outboundDispatcher, "chatProperties", properties);
+        setField(outboundDispatcher, "chatMetrics", chatMetrics);
+        setField(outboundDispatcher, "writer", writer);
+
+        setField(roomSequencer, "chatProperties", properties);
+        roomSequencer.start();
+
+        setField(handler, "chatService", chatService);
+        setField(handler, "outboundDispatcher", outboundDispatcher);
+        setField(handler, "roomSequencer", roomSequencer);
+        setField(handler, "messageEncoder", messageEncoder);
+        setField(handler, "messageDecoder", messageDecoder);
+        setField(handler, "chatProperties", properties);
+        setField(handler, "chatMetrics", chatMetrics);
+        setField(handler, "messageIdGenerator", messageIds);
+        setField(handler, "chatBus", new LoopbackChatBus());
+        handler.subscribe();
+    }
+
+    /**
+     * Register a session in a room, as a JOIN does
+     */
+    StubWebSocketSession join(String username, String room, String protocol) {
+        StubWebSocketSession session = new StubWebSocketSession(username, protocol);
+        outboundDispatcher.register(session);
+        chatService.registerUser(session, username, room);
+        return session;
+    }
+
+    /**
+     * Give a message an id, as the handler does when it accepts a frame
+     */
+    ChatMessage accept(ChatMessage message) {
+        message.setId(messageIds.next());
+        return message;
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        roomSequencer.shutdown();
+        messageWriteBehind.shutdown();
+        writer.shutdownNow();
+        io.shutdownNow();
+    }
+
+    private static ChatMessageRepository inMemoryRepository() {
+        return (ChatMessageRepository) Proxy.newProxyInstance(ChatMessageRepository.class.getClassLoader(),
+            new Class<?>[]{ChatMessageRepository.class}, (proxy, method, args) -> {
+                Class<?> type = method.getReturnType();
+                return switch (method.getName()) {
+                    case "insert", "save", "saveAll" -> args[0];
+                    case "equals" -> proxy == args[0];
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "toString" -> "InMemoryChatMessageRepository";
+                    default -> type == boolean.class ? Boolean.FALSE
+                        : type == long.class ? 0L
+                        : type == Optional.class ? Optional.empty()
+                        : List.class.isAssignableFrom(type) ? List.of()
+                        : null;
+                };
+            });
+    }
+
+    private static java.util.concurrent.ThreadFactory daemon() {
+        return task -> {
+            Thread thread = new Thread(task);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,83 @@
+package org.chatws.benchmark;
+
+import org.chatws.model.ChatMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The in-memory room history: appending under contention (several senders in one
+ * room) and taking the snapshot that is sent on join
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistoryBenchmark {
+
+    private static final String BUSY_ROOM = "busy";
+    private static final String FULL_ROOM = "full";
+
+    @Param({"100", "1000"})
+    private int roomCapacity;
+
+    private ChatFixture fixture;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        fixture = new ChatFixture(properties -> properties.getHistory().setRoomCapacity(roomCapacity));
+        for (int i = 0; i < roomCapacity; i++) {
+            ChatMessage message = fixture.accept(new ChatMessage(ChatMessage.MessageType.CHAT, "Message " + i,
+                "user" + (i % 10), FULL_ROOM));
+            fixture.chatService.storeMessage(message);
+            fixture.chatService.addMessageToHistory(message);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    public CompletableFuture<Void> append() {
+        ChatMessage message = fixture.accept(new ChatMessage(ChatMessage.MessageType.CHAT, "Hello", "sender", BUSY_ROOM));
+        CompletableFuture<Void> stored = fixture.chatService.storeMessage(message);
+        fixture.chatService.addMessageToHistory(message);
+        return stored;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public CompletableFuture<Void> appendContended() {
+        return append();
+    }
+
+    @Benchmark
+    public List<ChatMessage> snapshot() {
+        return fixture.chatService.getMessageHistory(FULL_ROOM);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public List<ChatMessage> snapshotContended() {
+        return snapshot();
+    }
+}
@@ -0,0 +1,82 @@
+package org.chatws.benchmark;
+
+import org.chatws.config.ChatProperties;
+import org.chatws.model.ChatMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The per-message rate limit check: accepted and rejected messages, for one
+ * user hammered from several threads and for one user per thread
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RateLimitBenchmark {
+
+    private ChatFixture fixture;
+
+    /**
+     * A username of its own for each benchmark thread
+     */
+    @State(Scope.Thread)
+    public static class ThreadUser {
+        private static final AtomicInteger COUNTER = new AtomicInteger();
+        final String username = "user" + COUNTER.incrementAndGet();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        fixture = new ChatFixture(properties -> {
+            // CHAT is practically unlimited, so every check is accepted; EDIT is exhausted after one message
+            properties.getRateLimit().getTypes().put(ChatMessage.MessageType.CHAT,
+                new ChatProperties.Bucket(1_000_000, 1_000_000_000));
+            properties.getRateLimit().getTypes().put(ChatMessage.MessageType.EDIT,
+                new ChatProperties.Bucket(1, 0.001));
+            properties.getRateLimit().setBytesPerSecond(1_000_000_000);
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    public boolean accepted(ThreadUser user) {
+        return fixture.chatService.tryAcquireMessage(user.username, ChatMessage.MessageType.CHAT);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean acceptedSharedUser() {
+        return fixture.chatService.tryAcquireMessage("shared", ChatMessage.MessageType.CHAT);
+    }
+
+    @Benchmark
+    public boolean rejected(ThreadUser user) {
+        return fixture.chatService.tryAcquireMessage(user.username, ChatMessage.MessageType.EDIT);
+    }
+
+    @Benchmark
+    public boolean bytes(ThreadUser user) {
+        return fixture.chatService.tryAcquireBytes(user.username, 1);
+    }
+}
@@ -0,0 +1,105 @@
+package org.chatws.benchmark;
+
+import org.chatws.config.ChatProperties;
+import org.chatws.handler.ChatWebSocketHandler;
+import org.chatws.model.ChatMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chat messages accepted, added to history and fanned out through the room sequencer,
+ * spread evenly over 1 to 64 rooms: messages per millisecond until every lane has
+ * delivered its share. With one lane every room waits for the others (as with one
+ * lock for all rooms); with a lane per processor throughput grows with the number of
+ * rooms until every lane is busy.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SequencerBenchmark {
+
+    private static final int BATCH = 1024;
+    private static final int MEMBERS = 8;
+
+    @Param({"1", "4", "16", "64"})
+    private int rooms;
+
+    // 0 = one lane per processor
+    @Param({"1", "0"})
+    private int lanes;
+
+    private ChatFixture fixture;
+    private MethodHandle handleChatMessage;
+    private WebSocketSession[] senders;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        fixture = new ChatFixture(properties -> {
+            properties.getExecution().setLanes(lanes);
+            properties.getOutbound().setQueueCapacity(1024);
+            properties.getOutbound().setOverflowPolicy(ChatProperties.OverflowPolicy.DROP);
+        });
+        senders = new WebSocketSession[rooms];
+        for (int room = 0; room < rooms; room++) {
+            for (int member = 0; member < MEMBERS; member++) {
+                WebSocketSession session = fixture.join("user" + room + "-" + member, room(room), "chatws.json");
+                if (member == 0) {
+                    senders[room] = session;
+                }
+            }
+        }
+
+        handleChatMessage = MethodHandles.privateLookupIn(ChatWebSocketHandler.class, MethodHandles.lookup())
+            .findVirtual(ChatWebSocketHandler.class, "handleChatMessage",
+                MethodType.methodType(void.class, WebSocketSession.class, ChatMessage.class, long.class));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void sequence() throws Throwable {
+        for (int i = 0; i < BATCH; i++) {
+            int room = i % rooms;
+            ChatMessage message = new ChatMessage(ChatMessage.MessageType.CHAT, "Hello, everyone in the room!",
+                "user" + room + "-0", null);
+            handleChatMessage.invoke(fixture.handler, senders[room], message, System.nanoTime());
+        }
+
+        // Lanes run the tasks of a room in order: once the marker ran, the room's messages are delivered
+        CountDownLatch delivered = new CountDownLatch(rooms);
+        for (int room = 0; room < rooms; room++) {
+            fixture.roomSequencer.execute(room(room), delivered::countDown);
+        }
+        delivered.await();
+    }
+
+    private static String room(int room) {
+        return "room-" + room;
+    }
+}
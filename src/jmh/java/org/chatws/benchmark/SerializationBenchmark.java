@@ -0,0 +1,87 @@
+package org.chatws.benchmark;
+
+import org.chatws.model.ChatMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of a chat frame in both wire formats, with the mappers
+ * configured as in the application. The decode benchmarks compare data binding with the
+ * streaming MessageDecoder the handler uses, also for a frame it drops after the type.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+
+    private ChatFixture fixture;
+    private ChatMessage message;
+    private String json;
+    private byte[] cbor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        fixture = new ChatFixture(properties -> {
+        });
+        message = fixture.accept(new ChatMessage(ChatMessage.MessageType.CHAT,
+            "A typical chat message, a sentence or two long, with nothing special in it.", "alice", "general"));
+        json = fixture.objectMapper.writeValueAsString(message);
+        cbor = fixture.cborMapper.writeValueAsBytes(message);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        fixture.close();
+    }
+
+    @Benchmark
+    public String encodeJson() throws Exception {
+        return fixture.objectMapper.writeValueAsString(message);
+    }
+
+    @Benchmark
+    public ChatMessage decodeJson() throws Exception {
+        return fixture.objectMapper.readValue(json, ChatMessage.class);
+    }
+
+    @Benchmark
+    public ChatMessage streamJson() throws Exception {
+        return fixture.messageDecoder.decode(json, type -> true);
+    }
+
+    @Benchmark
+    public ChatMessage streamJsonDropped() throws Exception {
+        return fixture.messageDecoder.decode(json, type -> false);
+    }
+
+    @Benchmark
+    public byte[] encodeCbor() throws Exception {
+        return fixture.cborMapper.writeValueAsBytes(message);
+    }
+
+    @Benchmark
+    public ChatMessage decodeCbor() throws Exception {
+        return fixture.cborMapper.readValue(cbor, ChatMessage.class);
+    }
+
+    @Benchmark
+    public ChatMessage streamCbor() throws Exception {
+        return fixture.messageDecoder.decode(ByteBuffer.wrap(cbor), type -> true);
+    }
+}
@@ -0,0 +1,212 @@
+package org.chatws.load;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import org.chatws.ChatWsApplication;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * End-to-end load test for the /chat endpoint.
+ * Opens simulated users across a number of rooms at a fixed connect rate, lets every
+ * user send a mix of CHAT/PRIVATE/TYPING frames at a fixed rate and reports the connect
+ * rate, throughput and send-to-receive latency percentiles.
+ *
+ * Options (--name=value): url, users, rooms, connect-rate (connections/s), rate (frames
+ * per user per second), mix (e.g. chat=80,private=10,typing=10), warmup, duration,
+ * wire (json or cbor) and embedded (start the server in this JVM with the "memory" profile).
+ */
+public final class ChatLoadGenerator {
+
+    private static final Duration PROGRESS_INTERVAL = Duration.ofSeconds(5);
+
+    private ChatLoadGenerator() {
+    }
+
+    /**
+     * Settings of one run
+     */
+    record Options(URI url, int users, int rooms, double connectRate, double rate,
+                   int chatWeight, int privateWeight, int typingWeight,
+                   Duration warmup, Duration duration, boolean cbor, boolean embedded) {
+
+        static Options parse(String[] args) {
+            Map<String, String> values = new HashMap<>();
+            for (String arg : args) {
+                if (!arg.startsWith("--")) {
+                    throw new IllegalArgumentException("Options look like --name=value: " + arg);
+                }
+                int equals = arg.indexOf('=');
+                values.put(equals < 0 ? arg.substring(2) : arg.substring(2, equals),
+                    equals < 0 ? "true" : arg.substring(equals + 1));
+            }
+
+            Map<String, Integer> mix = new HashMap<>(Map.of("chat", 0, "private", 0, "typing", 0));
+            for (String part : values.getOrDefault("mix", "chat=80,private=10,typing=10").split(",")) {
+                String[] weight = part.split("=");
+                if (!mix.containsKey(weight[0].trim())) {
+                    throw new IllegalArgumentException("Unknown message type in mix: " + weight[0]);
+                }
+                mix.put(weight[0].trim(), Integer.parseInt(weight[1].trim()));
+            }
+
+            return new Options(
+                URI.create(values.getOrDefault("url", "ws://localhost:8085/chat")),
+                Integer.parseInt(values.getOrDefault("users", "100")),
+                Integer.parseInt(values.getOrDefault("rooms", "10")),
+                Double.parseDouble(values.getOrDefault("connect-rate", "50")),
+                Double.parseDouble(values.getOrDefault("rate", "1")),
+                mix.get("chat"), mix.get("private"), mix.get("typing"),
+                Duration.parse("PT" + values.getOrDefault("warmup", "10s")),
+                Duration.parse("PT" + values.getOrDefault("duration", "60s")),
+                "cbor".equalsIgnoreCase(values.getOrDefault("wire", "json")),
+                Boolean.parseBoolean(values.getOrDefault("embedded", "false")));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+
+        ConfigurableApplicationContext server = null;
+        if (options.embedded()) {
+            // The devtools restarter would relaunch main() with the server's arguments
+            System.setProperty("spring.devtools.restart.enabled", "false");
+            server = SpringApplication.run(ChatWsApplication.class,
+                "--spring.profiles.active=memory", "--server.port=" + options.url().getPort());
+        }
+
+        try {
+            run(options);
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+        }
+        System.exit(0);
+    }
+
+    private static void run(Options options) throws InterruptedException {
+        LoadStats stats = new LoadStats();
+        ObjectMapper mapper = options.cbor() ? new CBORMapper() : new ObjectMapper();
+        String subProtocol = options.cbor() ? "chatws.cbor" : "chatws.json";
+        HttpClient client = HttpClient.newHttpClient();
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors() / 2));
+        List<SimulatedUser> users = new CopyOnWriteArrayList<>();
+
+        System.out.printf("Load test against %s: %d users in %d rooms, %.0f connections/s, %.2f frames/user/s, %s%n",
+            options.url(), options.users(), options.rooms(), options.connectRate(), options.rate(),
+            options.cbor() ? "CBOR" : "JSON");
+
+        // Ramp up at the connect rate; each user starts sending as soon as it has joined
+        long rampStart = System.nanoTime();
+        long connectInterval = (long) (1_000_000_000L / options.connectRate());
+        long sendInterval = (long) (1_000_000_000L / options.rate());
+        CompletableFuture<?>[] connections = new CompletableFuture<?>[options.users()];
+        for (int i = 0; i < options.users(); i++) {
+            LockSupport.parkNanos(rampStart + i * connectInterval - System.nanoTime());
+            SimulatedUser user = new SimulatedUser("load" + i, "load-room-" + (i % options.rooms()),
+                stats, mapper, options.cbor());
+            connections[i] = user.connect(client, options.url(), subProtocol).whenComplete((connected, error) -> {
+                if (error != null) {
+                    stats.connectFailures.increment();
+                    return;
+                }
+                stats.connected.increment();
+                users.add(user);
+                scheduler.scheduleAtFixedRate(() -> sendNext(user, options),
+                    ThreadLocalRandom.current().nextLong(sendInterval), sendInterval, TimeUnit.NANOSECONDS);
+            });
+        }
+        CompletableFuture.allOf(connections).handle((result, error) -> null).join();
+        double rampSeconds = (System.nanoTime() - rampStart) / 1e9;
+        System.out.printf("Connected %d of %d users in %.1fs (%.1f/s), %d failed%n",
+            stats.connected.sum(), options.users(), rampSeconds, stats.connected.sum() / rampSeconds,
+            stats.connectFailures.sum());
+
+        Thread.sleep(options.warmup().toMillis());
+        stats.startMeasuring();
+        long sentBefore = stats.sent();
+        long receivedBefore = stats.receivedFrames.sum();
+        long measureStart = System.nanoTime();
+
+        long end = measureStart + options.duration().toNanos();
+        while (System.nanoTime() < end) {
+            Thread.sleep(Math.min(PROGRESS_INTERVAL.toMillis(), Math.max(1, (end - System.nanoTime()) / 1_000_000)));
+            printProgress(stats, measureStart);
+        }
+
+        double seconds = (System.nanoTime() - measureStart) / 1e9;
+        long sent = stats.sent() - sentBefore;
+        long received = stats.receivedFrames.sum() - receivedBefore;
+
+        scheduler.shutdownNow();
+        CompletableFuture.allOf(users.stream().map(SimulatedUser::close).toArray(CompletableFuture[]::new))
+            .completeOnTimeout(null, 5, TimeUnit.SECONDS)
+            .handle((result, error) -> null)
+            .join();
+
+        report(stats, seconds, sent, received);
+    }
+
+    /**
+     * Send the next frame of a user, picked by the weights of the mix
+     */
+    private static void sendNext(SimulatedUser user, Options options) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int pick = random.nextInt(options.chatWeight() + options.privateWeight() + options.typingWeight());
+        if (pick < options.chatWeight()) {
+            user.sendChat();
+        } else if (pick < options.chatWeight() + options.privateWeight()) {
+            user.sendPrivate("load" + random.nextInt(options.users()));
+        } else {
+            user.sendTyping(true);
+        }
+    }
+
+    private static void printProgress(LoadStats stats, long measureStart) {
+        System.out.printf("[%4ds] connected %d, sent %d, received %d, rate-limited %d, chat p99 %s%n",
+            (System.nanoTime() - measureStart) / 1_000_000_000L, stats.connected.sum() - stats.closed.sum(),
+            stats.sent(), stats.receivedFrames.sum(), stats.rateLimited.sum(),
+            millis(stats.chatLatency.percentileMicros(99)));
+    }
+
+    private static void report(LoadStats stats, double seconds, long sent, long received) {
+        System.out.println();
+        System.out.printf("Measured %.1fs%n", seconds);
+        System.out.printf("Sent:      %d frames (%.1f/s); whole run: %d CHAT, %d PRIVATE, %d TYPING%n",
+            sent, sent / seconds, stats.sentChat.sum(), stats.sentPrivate.sum(), stats.sentTyping.sum());
+        System.out.printf("Received:  %d frames (%.1f/s)%n", received, received / seconds);
+        System.out.printf("Errors:    %d connect, %d send, %d receive; %d rate-limit warnings%n",
+            stats.connectFailures.sum(), stats.sendErrors.sum(), stats.receiveErrors.sum(), stats.rateLimited.sum());
+        System.out.println();
+        System.out.printf("%-24s %10s %10s %10s %10s %10s%n", "Latency (ms)", "count", "p50", "p99", "p999", "max");
+        printLatency("connect + handshake", stats.connectLatency);
+        printLatency("CHAT send to receive", stats.chatLatency);
+        printLatency("PRIVATE send to receive", stats.privateLatency);
+    }
+
+    private static void printLatency(String name, LatencyHistogram histogram) {
+        System.out.printf("%-24s %10d %10s %10s %10s %10s%n", name, histogram.count(),
+            millis(histogram.percentileMicros(50)), millis(histogram.percentileMicros(99)),
+            millis(histogram.percentileMicros(99.9)), millis(histogram.maxMicros()));
+    }
+
+    private static String millis(long micros) {
+        return String.format("%.2f", micros / 1000.0);
+    }
+}
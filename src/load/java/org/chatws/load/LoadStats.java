@@ -0,0 +1,41 @@
+package org.chatws.load;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms shared by all simulated users
+ */
+class LoadStats {
+
+    final LongAdder connected = new LongAdder();
+    final LongAdder connectFailures = new LongAdder();
+    final LongAdder closed = new LongAdder();
+
+    final LongAdder sentChat = new LongAdder();
+    final LongAdder sentPrivate = new LongAdder();
+    final LongAdder sentTyping = new LongAdder();
+    final LongAdder sendErrors = new LongAdder();
+
+    final LongAdder receivedFrames = new LongAdder();
+    final LongAdder receiveErrors = new LongAdder();
+    final LongAdder rateLimited = new LongAdder();
+
+    final LatencyHistogram connectLatency = new LatencyHistogram();
+    final LatencyHistogram chatLatency = new LatencyHistogram();
+    final LatencyHistogram privateLatency = new LatencyHistogram();
+
+    // Latencies are recorded only after the warm-up
+    private volatile boolean measuring;
+
+    boolean isMeasuring() {
+        return measuring;
+    }
+
+    void startMeasuring() {
+        measuring = true;
+    }
+
+    long sent() {
+        return sentChat.sum() + sentPrivate.sum() + sentTyping.sum();
+    }
+}
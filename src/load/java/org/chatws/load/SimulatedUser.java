@@ -0,0 +1,212 @@
+package org.chatws.load;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * One connection of the load test: joins a room, sends the frames it is told to and
+ * times every CHAT/PRIVATE frame it receives that a simulated user sent.
+ * Sent content carries the System.nanoTime() of the send, so latencies are only
+ * meaningful while sender and receiver run in the same JVM (which they do here).
+ */
+class SimulatedUser implements WebSocket.Listener {
+
+    static final String STAMP_PREFIX = "lt:";
+
+    private final String username;
+    private final String room;
+    private final LoadStats stats;
+    private final ObjectMapper mapper;
+    private final boolean binary;
+
+    private final StringBuilder text = new StringBuilder();
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    private WebSocket webSocket;
+    // WebSocket allows one outstanding send at a time; sends are chained on this future
+    private CompletableFuture<?> lastSend = CompletableFuture.completedFuture(null);
+
+    SimulatedUser(String username, String room, LoadStats stats, ObjectMapper mapper, boolean binary) {
+        this.username = username;
+        this.room = room;
+        this.stats = stats;
+        this.mapper = mapper;
+        this.binary = binary;
+    }
+
+    String getUsername() {
+        return username;
+    }
+
+    String getRoom() {
+        return room;
+    }
+
+    /**
+     * Open the connection and join the room
+     */
+    CompletableFuture<SimulatedUser> connect(HttpClient client, URI uri, String subProtocol) {
+        long started = System.nanoTime();
+        return client.newWebSocketBuilder()
+            .subprotocols(subProtocol)
+            .buildAsync(uri, this)
+            .thenApply(ws -> {
+                stats.connectLatency.recordNanos(System.nanoTime() - started);
+                webSocket = ws;
+                send(frame("JOIN", null, null));
+                return this;
+            });
+    }
+
+    void sendChat() {
+        if (send(frame("CHAT", stamp(), null))) {
+            stats.sentChat.increment();
+        }
+    }
+
+    void sendPrivate(String recipient) {
+        if (send(frame("PRIVATE", stamp(), recipient))) {
+            stats.sentPrivate.increment();
+        }
+    }
+
+    void sendTyping(boolean typing) {
+        if (send(frame("TYPING", Boolean.toString(typing), null))) {
+            stats.sentTyping.increment();
+        }
+    }
+
+    CompletableFuture<?> close() {
+        if (webSocket == null || webSocket.isOutputClosed()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        synchronized (this) {
+            lastSend = lastSend.handle((result, error) -> null)
+                .thenCompose(ignored -> webSocket.sendClose(WebSocket.NORMAL_CLOSURE, "done"));
+            return lastSend;
+        }
+    }
+
+    private ObjectNode frame(String type, String content, String recipient) {
+        ObjectNode frame = mapper.createObjectNode()
+            .put("type", type)
+            .put("sender", username)
+            .put("room", room);
+        if (content != null) {
+            frame.put("content", content);
+        }
+        if (recipient != null) {
+            frame.put("recipient", recipient);
+        }
+        return frame;
+    }
+
+    private static String stamp() {
+        return STAMP_PREFIX + System.nanoTime();
+    }
+
+    /**
+     * Queue a frame behind the previous send
+     * @return false if the connection is gone
+     */
+    private synchronized boolean send(ObjectNode frame) {
+        if (webSocket == null || webSocket.isOutputClosed()) {
+            return false;
+        }
+        try {
+            if (binary) {
+                ByteBuffer payload = ByteBuffer.wrap(mapper.writeValueAsBytes(frame));
+                lastSend = lastSend.thenCompose(ignored -> webSocket.sendBinary(payload, true));
+            } else {
+                String payload = mapper.writeValueAsString(frame);
+                lastSend = lastSend.thenCompose(ignored -> webSocket.sendText(payload, true));
+            }
+            lastSend.exceptionally(e -> {
+                stats.sendErrors.increment();
+                return null;
+            });
+            return true;
+        } catch (IOException e) {
+            stats.sendErrors.increment();
+            return false;
+        }
+    }
+
+    @Override
+    public CompletionStage<?> onText(WebSocket ws, CharSequence data, boolean last) {
+        text.append(data);
+        if (last) {
+            received(text.toString());
+            text.setLength(0);
+        }
+        ws.request(1);
+        return null;
+    }
+
+    @Override
+    public CompletionStage<?> onBinary(WebSocket ws, ByteBuffer data, boolean last) {
+        byte[] chunk = new byte[data.remaining()];
+        data.get(chunk);
+        bytes.writeBytes(chunk);
+        if (last) {
+            try {
+                onFrame(mapper.readTree(bytes.toByteArray()));
+            } catch (IOException e) {
+                stats.receiveErrors.increment();
+            }
+            bytes.reset();
+        }
+        ws.request(1);
+        return null;
+    }
+
+    @Override
+    public CompletionStage<?> onClose(WebSocket ws, int statusCode, String reason) {
+        stats.closed.increment();
+        return null;
+    }
+
+    @Override
+    public void onError(WebSocket ws, Throwable error) {
+        stats.receiveErrors.increment();
+    }
+
+    private void received(String payload) {
+        try {
+            onFrame(mapper.readTree(payload));
+        } catch (IOException e) {
+            stats.receiveErrors.increment();
+        }
+    }
+
+    private void onFrame(JsonNode frame) {
+        long now = System.nanoTime();
+        stats.receivedFrames.increment();
+
+        String type = frame.path("type").asText();
+        String content = frame.path("content").asText();
+        if ("System".equals(frame.path("sender").asText()) && content.startsWith("Please slow down")) {
+            stats.rateLimited.increment();
+            return;
+        }
+        if (!content.startsWith(STAMP_PREFIX) || !stats.isMeasuring()) {
+            return;
+        }
+        long sentAt = Long.parseLong(content, STAMP_PREFIX.length(), content.length(), 10);
+        if ("CHAT".equals(type)) {
+            stats.chatLatency.recordNanos(now - sentAt);
+        } else if ("PRIVATE".equals(type)) {
+            stats.privateLatency.recordNanos(now - sentAt);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package org.chatws.bus;
+
+import org.chatws.model.ChatMessage;
+
+/**
+ * An event exchanged between chat nodes
+ * @param origin node that published the event; it is not delivered back to that node
+ * @param kind what happened
+ * @param room room the event belongs to
+ * @param username user the event is about (presence and typing events)
+ * @param message the message itself (message, broadcast, edit, delete and typing events)
+ */
+public record BusEvent(String origin, Kind kind, String room, String username, ChatMessage message) {
+
+    public enum Kind {
+        MESSAGE,    // Accepted CHAT or PRIVATE message: add to history and deliver
+        BROADCAST,  // Transient frame for the members of a room (join/leave notices)
+        EDIT,       // Edited message: update the history copy and deliver
+        DELETE,     // Deleted message: tombstone the history copy and deliver
+        JOINED,     // User joined a room on the origin node
+        LEFT,       // User left a room on the origin node
+        TYPING,     // Typing state of a user (message content is "true" or "false")
+        NODE_UP,    // Node started; other nodes answer with JOINED events for their users
+        NODE_DOWN,  // Node is shutting down; its users are gone
+        HEARTBEAT   // Node is alive; a node not heard from within the claim TTL has crashed
+    }
+
+    public static BusEvent ofMessage(String origin, Kind kind, ChatMessage message) {
+        return new BusEvent(origin, kind, message.getRoom(), message.getSender(), message);
+    }
+
+    public static BusEvent ofUser(String origin, Kind kind, String room, String username) {
+        return new BusEvent(origin, kind, room, username, null);
+    }
+
+    public static BusEvent ofNode(String origin, Kind kind) {
+        return new BusEvent(origin, kind, null, null, null);
+    }
+}
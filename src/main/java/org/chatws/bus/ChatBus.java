@@ -0,0 +1,22 @@
+package org.chatws.bus;
+
+import java.util.function.Consumer;
+
+/**
+ * Channel between the chat nodes of a cluster.
+ * Each node delivers its own events to its local sessions directly and publishes
+ * them here; the bus hands them to the other nodes, never back to the origin.
+ */
+public interface ChatBus {
+
+    /**
+     * Publish an event to the other nodes. Events of one node arrive in publish order.
+     */
+    void publish(BusEvent event);
+
+    /**
+     * Register the event listener of a node
+     * @param nodeId the node's id; events published by this node are not delivered to it
+     */
+    void subscribe(String nodeId, Consumer<BusEvent> listener);
+}
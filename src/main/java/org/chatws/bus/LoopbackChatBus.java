@@ -0,0 +1,38 @@
+package org.chatws.bus;
+
+import org.chatws.model.ChatMessage;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * In-process bus (chat.bus.type=local, the default).
+ * Events are handed synchronously to the listeners of the other nodes subscribed to the
+ * same instance, so a single node sees nothing and tests can share one instance between nodes.
+ * Like a real bus, every node gets its own copy of the message.
+ */
+@Component
+@ConditionalOnProperty(name = "chat.bus.type", havingValue = "local", matchIfMissing = true)
+public class LoopbackChatBus implements ChatBus {
+
+    private final List<Map.Entry<String, Consumer<BusEvent>>> listeners = new CopyOnWriteArrayList<>();
+
+    @Override
+    public void publish(BusEvent event) {
+        for (Map.Entry<String, Consumer<BusEvent>> listener : listeners) {
+            if (!listener.getKey().equals(event.origin())) {
+                listener.getValue().accept(event.message() == null ? event : new BusEvent(event.origin(),
+                    event.kind(), event.room(), event.username(), new ChatMessage(event.message())));
+            }
+        }
+    }
+
+    @Override
+    public void subscribe(String nodeId, Consumer<BusEvent> listener) {
+        listeners.add(Map.entry(nodeId, listener));
+    }
+}
@@ -0,0 +1,33 @@
+package org.chatws.bus;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-process username claims (chat.bus.type=local, the default)
+ */
+@Component
+@ConditionalOnProperty(name = "chat.bus.type", havingValue = "local", matchIfMissing = true)
+public class LoopbackUsernameRegistry implements UsernameRegistry {
+
+    // username -> node holding the claim
+    private final Map<String, String> claims = new ConcurrentHashMap<>();
+
+    @Override
+    public boolean claim(String username, String nodeId) {
+        return claims.putIfAbsent(username, nodeId) == null;
+    }
+
+    @Override
+    public void release(String username, String nodeId) {
+        claims.remove(username, nodeId);
+    }
+
+    @Override
+    public boolean isClaimed(String username) {
+        return claims.containsKey(username);
+    }
+}
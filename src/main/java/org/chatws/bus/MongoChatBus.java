@@ -0,0 +1,170 @@
+package org.chatws.bus;
+
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import jakarta.annotation.PreDestroy;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.chatws.config.ChatProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.stereotype.Component;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Bus over a MongoDB collection (chat.bus.type=mongo).
+ * Events are inserted into the "bus_events" collection and every node follows the
+ * inserts through a change stream, so MongoDB must run as a replica set.
+ * Old events are removed by a TTL index.
+ */
+@Component
+@ConditionalOnProperty(name = "chat.bus.type", havingValue = "mongo")
+public class MongoChatBus implements ChatBus {
+
+    private static final Logger log = LoggerFactory.getLogger(MongoChatBus.class);
+
+    private static final String COLLECTION = "bus_events";
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private ChatProperties chatProperties;
+
+    private final List<Map.Entry<String, Consumer<BusEvent>>> listeners = new CopyOnWriteArrayList<>();
+
+    // A single publisher thread keeps the events of this node in order
+    private final ExecutorService publisher = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "chat-bus-publisher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Thread watcher;
+    private volatile boolean running;
+    // Position in the change stream, so a reconnect continues where it stopped
+    private BsonDocument resumeToken;
+
+    @Override
+    public void publish(BusEvent event) {
+        if (publisher.isShutdown()) {
+            return;
+        }
+        publisher.execute(() -> {
+            try {
+                Document document = new Document();
+                mongoTemplate.getConverter().write(event, document);
+                document.put("createdAt", new Date());
+                mongoTemplate.getCollection(COLLECTION).insertOne(document);
+            } catch (RuntimeException e) {
+                log.warn("Error publishing {} event: {}", event.kind(), e.getMessage());
+            }
+        });
+    }
+
+    @Override
+    public void subscribe(String nodeId, Consumer<BusEvent> listener) {
+        listeners.add(Map.entry(nodeId, listener));
+        startWatcher();
+    }
+
+    /**
+     * Follow the event collection in the background; an unreachable database does not block startup
+     */
+    private synchronized void startWatcher() {
+        if (watcher != null) {
+            return;
+        }
+        running = true;
+        watcher = new Thread(this::watchLoop, "chat-bus-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private void watchLoop() {
+        boolean indexed = false;
+        while (running) {
+            try {
+                if (!indexed) {
+                    mongoTemplate.indexOps(COLLECTION).createIndex(new Index().on("createdAt", Sort.Direction.ASC)
+                        .expire(chatProperties.getBus().getEventTtl()));
+                    indexed = true;
+                }
+                watch();
+            } catch (RuntimeException e) {
+                if (!running) {
+                    break;
+                }
+                log.warn("Bus change stream failed, reconnecting: {}", e.getMessage());
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException interrupted) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private void watch() {
+        var stream = mongoTemplate.getCollection(COLLECTION)
+            .watch(List.of(Aggregates.match(Filters.eq("operationType", "insert"))))
+            .maxAwaitTime(1, TimeUnit.SECONDS);
+        if (resumeToken != null) {
+            stream = stream.resumeAfter(resumeToken);
+        }
+
+        try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = stream.cursor()) {
+            while (running) {
+                ChangeStreamDocument<Document> change = cursor.tryNext();
+                if (change == null) {
+                    continue;
+                }
+                resumeToken = change.getResumeToken();
+                if (change.getFullDocument() != null) {
+                    dispatch(mongoTemplate.getConverter().read(BusEvent.class, change.getFullDocument()));
+                }
+            }
+        }
+    }
+
+    private void dispatch(BusEvent event) {
+        for (Map.Entry<String, Consumer<BusEvent>> listener : listeners) {
+            if (listener.getKey().equals(event.origin())) {
+                continue;
+            }
+            try {
+                listener.getValue().accept(event);
+            } catch (RuntimeException e) {
+                log.warn("Error handling {} event: {}", event.kind(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Publish what is still queued (e.g. the node's NODE_DOWN event) and stop following the stream
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        publisher.shutdown();
+        publisher.awaitTermination(2, TimeUnit.SECONDS);
+        running = false;
+        if (watcher != null) {
+            watcher.interrupt();
+        }
+    }
+}
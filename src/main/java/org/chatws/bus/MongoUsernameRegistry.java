@@ -0,0 +1,95 @@
+package org.chatws.bus;
+
+import org.chatws.config.ChatProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Username claims in MongoDB (chat.bus.type=mongo).
+ * A claim is a document keyed by the username, so the unique _id index makes claiming atomic
+ * across nodes. Nodes refresh their claims periodically; claims of a node that stopped
+ * refreshing (crashed) count as free after the claim TTL and are removed by a TTL index.
+ */
+@Component
+@ConditionalOnProperty(name = "chat.bus.type", havingValue = "mongo")
+public class MongoUsernameRegistry implements UsernameRegistry {
+
+    private static final Logger log = LoggerFactory.getLogger(MongoUsernameRegistry.class);
+
+    private static final String COLLECTION = "username_claims";
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Autowired
+    private ChatProperties chatProperties;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void createIndexes() {
+        CompletableFuture.runAsync(() -> {
+            try {
+                mongoTemplate.indexOps(COLLECTION).createIndex(new Index().on("lastSeen", Sort.Direction.ASC)
+                    .expire(chatProperties.getBus().getClaimTtl()));
+            } catch (RuntimeException e) {
+                log.warn("Error creating username claim index: {}", e.getMessage());
+            }
+        });
+    }
+
+    @Override
+    public boolean claim(String username, String nodeId) {
+        Date now = new Date();
+        // Matches only a stale claim; if a live claim exists, the upsert collides on _id
+        Query staleClaim = Query.query(Criteria.where("_id").is(username).and("lastSeen").lt(staleBefore(now)));
+        try {
+            mongoTemplate.upsert(staleClaim, Update.update("nodeId", nodeId).set("lastSeen", now), COLLECTION);
+            return true;
+        } catch (DuplicateKeyException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void release(String username, String nodeId) {
+        mongoTemplate.remove(Query.query(Criteria.where("_id").is(username).and("nodeId").is(nodeId)), COLLECTION);
+    }
+
+    @Override
+    public boolean isClaimed(String username) {
+        return mongoTemplate.exists(Query.query(Criteria.where("_id").is(username)
+            .and("lastSeen").gte(staleBefore(new Date()))), COLLECTION);
+    }
+
+    /**
+     * Keep this node's claims alive
+     */
+    @Scheduled(fixedDelayString = "${chat.bus.claim-refresh:20s}")
+    public void refreshClaims() {
+        try {
+            mongoTemplate.updateMulti(Query.query(Criteria.where("nodeId").is(chatProperties.getBus().getNodeId())),
+                Update.update("lastSeen", new Date()), COLLECTION);
+        } catch (RuntimeException e) {
+            log.warn("Error refreshing username claims: {}", e.getMessage());
+        }
+    }
+
+    private Date staleBefore(Date now) {
+        return new Date(now.getTime() - chatProperties.getBus().getClaimTtl().toMillis());
+    }
+}
@@ -0,0 +1,23 @@
+package org.chatws.bus;
+
+/**
+ * Cluster-wide claims on usernames, so a name is in use on at most one node at a time
+ */
+public interface UsernameRegistry {
+
+    /**
+     * Atomically claim a username for a node
+     * @return false if the name is already claimed (on any node)
+     */
+    boolean claim(String username, String nodeId);
+
+    /**
+     * Give up a node's claim on a username
+     */
+    void release(String username, String nodeId);
+
+    /**
+     * Check if a username is claimed on any node
+     */
+    boolean isClaimed(String username);
+}
@@ -0,0 +1,607 @@
+package org.chatws.config;
+
+import org.chatws.model.ChatMessage;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Tunable settings of the chat server, bound from the "chat.*" properties
+ */
+@Component
+@ConfigurationProperties(prefix = "chat")
+public class ChatProperties {
+
+    // Where messages are stored: MONGO, JOURNAL on local disk, or MEMORY for load tests
+    private StorageType storage = StorageType.MONGO;
+
+    private final Inbound inbound = new Inbound();
+    private final Outbound outbound = new Outbound();
+    private final Persistence persistence = new Persistence();
+    private final History history = new History();
+    private final Typing typing = new Typing();
+    private final RateLimit rateLimit = new RateLimit();
+    private final Execution execution = new Execution();
+    private final Bus bus = new Bus();
+    private final Metrics metrics = new Metrics();
+    private final Journal journal = new Journal();
+
+    public StorageType getStorage() {
+        return storage;
+    }
+
+    public void setStorage(StorageType storage) {
+        this.storage = storage;
+    }
+
+    public Inbound getInbound() {
+        return inbound;
+    }
+
+    public Outbound getOutbound() {
+        return outbound;
+    }
+
+    public Persistence getPersistence() {
+        return persistence;
+    }
+
+    public History getHistory() {
+        return history;
+    }
+
+    public Typing getTyping() {
+        return typing;
+    }
+
+    public RateLimit getRateLimit() {
+        return rateLimit;
+    }
+
+    public Execution getExecution() {
+        return execution;
+    }
+
+    public Bus getBus() {
+        return bus;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public Journal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Where messages are stored
+     */
+    public enum StorageType {
+        MONGO,   // The messages collection in MongoDB
+        JOURNAL, // Memory-mapped append-only journal on local disk (see the "journal" profile)
+        MEMORY   // In-memory only, nothing survives a restart (load tests; see the "memory" profile)
+    }
+
+    /**
+     * What to do when a session's outbound queue is full
+     */
+    public enum OverflowPolicy {
+        DROP_THEN_DISCONNECT, // Drop TYPING/USERS frames first, disconnect if only chat traffic is queued
+        DISCONNECT,           // Disconnect as soon as the queue is full
+        DROP                  // Drop droppable frames, then the new frame; never disconnect
+    }
+
+    /**
+     * Inbound frame settings
+     */
+    public static class Inbound {
+        // Larger frames are rejected before they are parsed and the connection is closed
+        // (for text frames the length in chars is compared)
+        private DataSize maxFrameSize = DataSize.ofKilobytes(8);
+
+        public DataSize getMaxFrameSize() {
+            return maxFrameSize;
+        }
+
+        public void setMaxFrameSize(DataSize maxFrameSize) {
+            this.maxFrameSize = maxFrameSize;
+        }
+    }
+
+    /**
+     * Per-session outbound queue settings
+     */
+    public static class Outbound {
+        // Maximum number of frames waiting to be written to one session
+        private int queueCapacity = 256;
+        // Queue depth above which TYPING/USERS frames are no longer queued
+        private int droppableThreshold = 128;
+        private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_THEN_DISCONNECT;
+
+        public int getQueueCapacity() {
+            return queueCapacity;
+        }
+
+        public void setQueueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+        }
+
+        public int getDroppableThreshold() {
+            return droppableThreshold;
+        }
+
+        public void setDroppableThreshold(int droppableThreshold) {
+            this.droppableThreshold = droppableThreshold;
+        }
+
+        public OverflowPolicy getOverflowPolicy() {
+            return overflowPolicy;
+        }
+
+        public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+        }
+    }
+
+    /**
+     * When a sender's message counts as delivered relative to the database write
+     */
+    public enum Durability {
+        FIRE_AND_FORGET, // Fan out immediately; the write happens in the background
+        ACK_AFTER_FLUSH  // Fan out (and echo to the sender) only after the batch is stored
+    }
+
+    /**
+     * Write-behind persistence settings
+     */
+    public static class Persistence {
+        // Maximum number of messages stored with one insertMany
+        private int batchSize = 200;
+        // Maximum time a message waits for its batch to fill up
+        private Duration flushInterval = Duration.ofMillis(50);
+        // Messages waiting to be written before senders are pushed back
+        private int queueCapacity = 10000;
+        // How long a sender waits for queue space before its message is rejected
+        private Duration offerTimeout = Duration.ofSeconds(1);
+        private Durability durability = Durability.FIRE_AND_FORGET;
+        // Upper bound for draining the queue on shutdown
+        private Duration shutdownTimeout = Duration.ofSeconds(10);
+        // Re-key messages stored with UUID ids (MongoDB) at startup; enable for one start after upgrading
+        private boolean migrateLegacyIds = false;
+
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        public void setBatchSize(int batchSize) {
+            this.batchSize = batchSize;
+        }
+
+        public Duration getFlushInterval() {
+            return flushInterval;
+        }
+
+        public void setFlushInterval(Duration flushInterval) {
+            this.flushInterval = flushInterval;
+        }
+
+        public int getQueueCapacity() {
+            return queueCapacity;
+        }
+
+        public void setQueueCapacity(int queueCapacity) {
+            this.queueCapacity = queueCapacity;
+        }
+
+        public Duration getOfferTimeout() {
+            return offerTimeout;
+        }
+
+        public void setOfferTimeout(Duration offerTimeout) {
+            this.offerTimeout = offerTimeout;
+        }
+
+        public Durability getDurability() {
+            return durability;
+        }
+
+        public void setDurability(Durability durability) {
+            this.durability = durability;
+        }
+
+        public Duration getShutdownTimeout() {
+            return shutdownTimeout;
+        }
+
+        public void setShutdownTimeout(Duration shutdownTimeout) {
+            this.shutdownTimeout = shutdownTimeout;
+        }
+
+        public boolean isMigrateLegacyIds() {
+            return migrateLegacyIds;
+        }
+
+        public void setMigrateLegacyIds(boolean migrateLegacyIds) {
+            this.migrateLegacyIds = migrateLegacyIds;
+        }
+    }
+
+    /**
+     * In-memory room history settings
+     */
+    public static class History {
+        // Messages kept in memory per room
+        private int roomCapacity = 100;
+        // Rooms without members are dropped from memory after this long without messages
+        private Duration idleEviction = Duration.ofMinutes(30);
+        // Stored messages loaded from the database on join, on top of the in-memory history
+        private int replayStoredCount = 50;
+        // Upper bound for one HISTORY frame in characters; larger histories are sent in chunks (0 = no limit)
+        private int replayFrameSize = 64 * 1024;
+        // Newest private messages kept in memory per online user, and replayed to them on join
+        private int inboxCapacity = 50;
+        // Memory for the cached newest pages of room histories served by the REST API (0 = no caching)
+        private DataSize pageCacheSize = DataSize.ofMegabytes(4);
+
+        public int getRoomCapacity() {
+            return roomCapacity;
+        }
+
+        public void setRoomCapacity(int roomCapacity) {
+            this.roomCapacity = roomCapacity;
+        }
+
+        public Duration getIdleEviction() {
+            return idleEviction;
+        }
+
+        public void setIdleEviction(Duration idleEviction) {
+            this.idleEviction = idleEviction;
+        }
+
+        public int getReplayStoredCount() {
+            return replayStoredCount;
+        }
+
+        public void setReplayStoredCount(int replayStoredCount) {
+            this.replayStoredCount = replayStoredCount;
+        }
+
+        public int getReplayFrameSize() {
+            return replayFrameSize;
+        }
+
+        public void setReplayFrameSize(int replayFrameSize) {
+            this.replayFrameSize = replayFrameSize;
+        }
+
+        public int getInboxCapacity() {
+            return inboxCapacity;
+        }
+
+        public void setInboxCapacity(int inboxCapacity) {
+            this.inboxCapacity = inboxCapacity;
+        }
+
+        public DataSize getPageCacheSize() {
+            return pageCacheSize;
+        }
+
+        public void setPageCacheSize(DataSize pageCacheSize) {
+            this.pageCacheSize = pageCacheSize;
+        }
+    }
+
+    /**
+     * Typing indicator settings
+     */
+    public static class Typing {
+        // A user stops counting as typing this long after their last TYPING frame
+        private Duration expiry = Duration.ofSeconds(3);
+        // Interval at which changed typing sets are published (read by the scheduler)
+        private Duration tick = Duration.ofMillis(250);
+
+        public Duration getExpiry() {
+            return expiry;
+        }
+
+        public void setExpiry(Duration expiry) {
+            this.expiry = expiry;
+        }
+
+        public Duration getTick() {
+            return tick;
+        }
+
+        public void setTick(Duration tick) {
+            this.tick = tick;
+        }
+    }
+
+    /**
+     * Token bucket: up to "burst" messages at once, refilled at "perSecond" tokens per second
+     */
+    public static class Bucket {
+        private int burst;
+        private double perSecond;
+
+        public Bucket() {
+        }
+
+        public Bucket(int burst, double perSecond) {
+            this.burst = burst;
+            this.perSecond = perSecond;
+        }
+
+        public int getBurst() {
+            return burst;
+        }
+
+        public void setBurst(int burst) {
+            this.burst = burst;
+        }
+
+        public double getPerSecond() {
+            return perSecond;
+        }
+
+        public void setPerSecond(double perSecond) {
+            this.perSecond = perSecond;
+        }
+    }
+
+    /**
+     * Inbound rate limit settings
+     */
+    public static class RateLimit {
+        // Per-user budget per message type; types without an entry are not limited
+        private final Map<ChatMessage.MessageType, Bucket> types = new EnumMap<>(ChatMessage.MessageType.class);
+        // Per-connection budget for inbound frame sizes, across all message types
+        private long bytesPerSecond = 64 * 1024;
+        private int bytesBurst = 128 * 1024;
+        // Buckets that have been full this long are dropped from memory
+        private Duration idleEviction = Duration.ofMinutes(10);
+
+        public RateLimit() {
+            types.put(ChatMessage.MessageType.CHAT, new Bucket(5, 2));
+            types.put(ChatMessage.MessageType.PRIVATE, new Bucket(5, 2));
+            types.put(ChatMessage.MessageType.TYPING, new Bucket(5, 2));
+            types.put(ChatMessage.MessageType.EDIT, new Bucket(3, 1));
+            types.put(ChatMessage.MessageType.DELETE, new Bucket(3, 1));
+        }
+
+        public Map<ChatMessage.MessageType, Bucket> getTypes() {
+            return types;
+        }
+
+        public long getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        public void setBytesPerSecond(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        public int getBytesBurst() {
+            return bytesBurst;
+        }
+
+        public void setBytesBurst(int bytesBurst) {
+            this.bytesBurst = bytesBurst;
+        }
+
+        public Duration getIdleEviction() {
+            return idleEviction;
+        }
+
+        public void setIdleEviction(Duration idleEviction) {
+            this.idleEviction = idleEviction;
+        }
+    }
+
+    /**
+     * Thread settings; virtual threads are switched on with spring.threads.virtual.enabled
+     */
+    public static class Execution {
+        // Platform threads for blocking database reads when virtual threads are off
+        private int ioThreads = 16;
+        // Threads that accept and fan out room messages, each room on one of them (0 = one per processor)
+        private int lanes = 0;
+
+        public int getIoThreads() {
+            return ioThreads;
+        }
+
+        public void setIoThreads(int ioThreads) {
+            this.ioThreads = ioThreads;
+        }
+
+        public int getLanes() {
+            return lanes;
+        }
+
+        public void setLanes(int lanes) {
+            this.lanes = lanes;
+        }
+    }
+
+    /**
+     * How chat nodes exchange events and username claims
+     */
+    public enum BusType {
+        LOCAL, // In-process only: a single node (or several nodes in one JVM, for tests)
+        MONGO  // MongoDB change streams and a claims collection; needs a replica set
+    }
+
+    /**
+     * Cross-node bus settings
+     */
+    public static class Bus {
+        private BusType type = BusType.LOCAL;
+        // Id of this node; events are never delivered back to the node that published them
+        private String nodeId = UUID.randomUUID().toString();
+        // Published events are removed from the bus collection after this long
+        private Duration eventTtl = Duration.ofMinutes(5);
+        // A username claim that was not refreshed for this long is free again, and the users of a node
+        // that sent no heartbeat for this long are dropped from presence (node crashed)
+        private Duration claimTtl = Duration.ofSeconds(60);
+        // Interval at which a node refreshes its username claims and sends its heartbeat (read by the schedulers)
+        private Duration claimRefresh = Duration.ofSeconds(20);
+
+        public BusType getType() {
+            return type;
+        }
+
+        public void setType(BusType type) {
+            this.type = type;
+        }
+
+        public String getNodeId() {
+            return nodeId;
+        }
+
+        public void setNodeId(String nodeId) {
+            this.nodeId = nodeId;
+        }
+
+        public Duration getEventTtl() {
+            return eventTtl;
+        }
+
+        public void setEventTtl(Duration eventTtl) {
+            this.eventTtl = eventTtl;
+        }
+
+        public Duration getClaimTtl() {
+            return claimTtl;
+        }
+
+        public void setClaimTtl(Duration claimTtl) {
+            this.claimTtl = claimTtl;
+        }
+
+        public Duration getClaimRefresh() {
+            return claimRefresh;
+        }
+
+        public void setClaimRefresh(Duration claimRefresh) {
+            this.claimRefresh = claimRefresh;
+        }
+    }
+
+    /**
+     * Metrics settings (meters are exposed at /actuator/prometheus)
+     */
+    public static class Metrics {
+        // Rooms with their own chat.room.sessions series (the largest ones), to bound the number of series
+        private int maxRoomSeries = 50;
+        // Interval at which the per-room session gauges are refreshed (read by the scheduler)
+        private Duration roomRefresh = Duration.ofSeconds(15);
+
+        public int getMaxRoomSeries() {
+            return maxRoomSeries;
+        }
+
+        public void setMaxRoomSeries(int maxRoomSeries) {
+            this.maxRoomSeries = maxRoomSeries;
+        }
+
+        public Duration getRoomRefresh() {
+            return roomRefresh;
+        }
+
+        public void setRoomRefresh(Duration roomRefresh) {
+            this.roomRefresh = roomRefresh;
+        }
+    }
+
+    /**
+     * When the journal forces appended records to disk
+     */
+    public enum FsyncPolicy {
+        ALWAYS,   // After every write (one insert batch, edit or delete); survives a power loss
+        INTERVAL, // Every fsync-interval; a power loss may cost the last interval
+        NEVER     // Left to the operating system; survives a process crash, not a power loss
+    }
+
+    /**
+     * Journal storage engine settings (chat.storage=journal)
+     */
+    public static class Journal {
+        // Directory of the segment files
+        private String directory = "data/journal";
+        // Size of one memory-mapped segment file; a new segment is started when it is full
+        private DataSize segmentSize = DataSize.ofMegabytes(64);
+        // Every n-th message of a room gets an entry in the room's sparse offset index
+        private int indexInterval = 32;
+        private FsyncPolicy fsync = FsyncPolicy.INTERVAL;
+        // Interval of the INTERVAL fsync policy (read by the scheduler)
+        private Duration fsyncInterval = Duration.ofSeconds(1);
+        // Segments whose newest message is older than this are deleted (0 = keep everything)
+        private Duration retention = Duration.ofDays(30);
+        // Interval at which expired segments are deleted (read by the scheduler)
+        private Duration retentionCheck = Duration.ofMinutes(10);
+
+        public String getDirectory() {
+            return directory;
+        }
+
+        public void setDirectory(String directory) {
+            this.directory = directory;
+        }
+
+        public DataSize getSegmentSize() {
+            return segmentSize;
+        }
+
+        public void setSegmentSize(DataSize segmentSize) {
+            this.segmentSize = segmentSize;
+        }
+
+        public int getIndexInterval() {
+            return indexInterval;
+        }
+
+        public void setIndexInterval(int indexInterval) {
+            this.indexInterval = indexInterval;
+        }
+
+        public FsyncPolicy getFsync() {
+            return fsync;
+        }
+
+        public void setFsync(FsyncPolicy fsync) {
+            this.fsync = fsync;
+        }
+
+        public Duration getFsyncInterval() {
+            return fsyncInterval;
+        }
+
+        public void setFsyncInterval(Duration fsyncInterval) {
+            this.fsyncInterval = fsyncInterval;
+        }
+
+        public Duration getRetention() {
+            return retention;
+        }
+
+        public void setRetention(Duration retention) {
+            this.retention = retention;
+        }
+
+        public Duration getRetentionCheck() {
+            return retentionCheck;
+        }
+
+        public void setRetentionCheck(Duration retentionCheck) {
+            this.retentionCheck = retentionCheck;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.chatws.config;
+
+import org.springframework.boot.autoconfigure.thread.Threading;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors for outbound writes and blocking database calls.
+ * With spring.threads.virtual.enabled=true Tomcat already handles inbound frames on
+ * virtual threads; these executors then also start one virtual thread per task.
+ * Otherwise they use platform threads as before.
+ */
+@Configuration
+public class ExecutionConfig {
+
+    /**
+     * Runs the per-session outbound writers (see OutboundDispatcher)
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService chatWriterExecutor(Environment environment) {
+        if (Threading.VIRTUAL.isActive(environment)) {
+            return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("chat-writer-", 1).factory());
+        }
+        return Executors.newCachedThreadPool(daemonThreads("chat-writer-"));
+    }
+
+    /**
+     * Runs blocking database reads that are started from a WebSocket handler
+     * (and, in the reactive mode, the REST controller; see ReactiveWebConfig)
+     */
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService chatIoExecutor(Environment environment, ChatProperties chatProperties) {
+        if (Threading.VIRTUAL.isActive(environment)) {
+            return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("chat-io-", 1).factory());
+        }
+        return Executors.newFixedThreadPool(chatProperties.getExecution().getIoThreads(), daemonThreads("chat-io-"));
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return task -> {
+            Thread thread = new Thread(task, prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -1,14 +1,17 @@
 package org.chatws.config;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Primary;
 
 /**
- * Configuration for Jackson ObjectMapper to handle Java 8 date/time types
+ * Configuration for Jackson ObjectMapper to handle Java 8 date/time types,
+ * plus the CBOR mapper for clients using the binary wire format
  */
 @Configuration
 public class JacksonConfig {
@@ -21,4 +24,16 @@ public class JacksonConfig {
         objectMapper.disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
         return objectMapper;
     }
-}
\ No newline at end of file
+
+    /**
+     * Same mapping as the JSON mapper; null fields are left out to keep binary frames small
+     */
+    @Bean
+    public CBORMapper cborMapper() {
+        return CBORMapper.builder()
+            .addModule(new JavaTimeModule())
+            .disable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+            .serializationInclusion(JsonInclude.Include.NON_NULL)
+            .build();
+    }
+}
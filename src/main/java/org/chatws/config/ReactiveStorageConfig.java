@@ -0,0 +1,27 @@
+package org.chatws.config;
+
+import org.chatws.repository.ChatMessageRepository;
+import org.chatws.repository.ReactiveChatMessageRepository;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.autoconfigure.data.mongo.MongoReactiveDataAutoConfiguration;
+import org.springframework.boot.autoconfigure.mongo.MongoReactiveAutoConfiguration;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.mongodb.repository.config.EnableMongoRepositories;
+import org.springframework.data.mongodb.repository.config.EnableReactiveMongoRepositories;
+
+/**
+ * Reactive MongoDB client and ReactiveChatMessageRepository, only in the reactive mode with
+ * chat.storage=mongo. Their auto-configuration is excluded in application.properties, so the
+ * servlet mode does not open a second connection pool. Enabling reactive repositories makes
+ * Boot back off from the blocking ones, so ChatMessageRepository is enabled here as well.
+ */
+@Configuration
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+@ConditionalOnProperty(name = "chat.storage", havingValue = "mongo", matchIfMissing = true)
+@Import({MongoReactiveAutoConfiguration.class, MongoReactiveDataAutoConfiguration.class})
+@EnableMongoRepositories(basePackageClasses = ChatMessageRepository.class)
+@EnableReactiveMongoRepositories(basePackageClasses = ReactiveChatMessageRepository.class)
+public class ReactiveStorageConfig {
+}
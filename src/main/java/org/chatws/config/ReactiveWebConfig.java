@@ -0,0 +1,69 @@
+package org.chatws.config;
+
+import org.chatws.handler.ReactiveChatWebSocketHandler;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.web.embedded.netty.NettyReactiveWebServerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+import org.springframework.web.reactive.HandlerMapping;
+import org.springframework.web.reactive.config.BlockingExecutionConfigurer;
+import org.springframework.web.reactive.config.WebFluxConfigurer;
+import org.springframework.web.reactive.handler.SimpleUrlHandlerMapping;
+import org.springframework.web.reactive.socket.server.WebSocketService;
+import org.springframework.web.reactive.socket.server.support.HandshakeWebSocketService;
+import org.springframework.web.reactive.socket.server.upgrade.ReactorNettyRequestUpgradeStrategy;
+import reactor.netty.http.server.WebsocketServerSpec;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * WebFlux setup of the reactive mode (spring.main.web-application-type=reactive, see
+ * application-reactive.properties): /chat is served by ReactiveChatWebSocketHandler on
+ * Reactor Netty, and the REST controller, whose methods read the store, runs on the
+ * chat-io executor instead of the event loop.
+ */
+@Configuration
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveWebConfig implements WebFluxConfigurer {
+
+    @Autowired
+    @Qualifier("chatIoExecutor")
+    private ExecutorService chatIoExecutor;
+
+    /**
+     * Reactor Netty; Tomcat is on the classpath for the servlet mode and would be preferred otherwise
+     */
+    @Bean
+    public NettyReactiveWebServerFactory nettyReactiveWebServerFactory() {
+        return new NettyReactiveWebServerFactory();
+    }
+
+    @Bean
+    public ReactiveChatWebSocketHandler reactiveChatWebSocketHandler() {
+        return new ReactiveChatWebSocketHandler();
+    }
+
+    @Bean
+    public HandlerMapping chatWebSocketMapping(ReactiveChatWebSocketHandler reactiveChatWebSocketHandler) {
+        // Ahead of the annotated controllers; like the servlet mode, any origin may connect
+        return new SimpleUrlHandlerMapping(Map.of("/chat", reactiveChatWebSocketHandler), -1);
+    }
+
+    /**
+     * Upgrade with Reactor Netty, which would otherwise be skipped for Tomcat's strategy
+     */
+    @Override
+    public WebSocketService getWebSocketService() {
+        return new HandshakeWebSocketService(new ReactorNettyRequestUpgradeStrategy(() -> WebsocketServerSpec.builder()
+            .maxFramePayloadLength(ReactiveChatWebSocketHandler.MAX_FRAME_PAYLOAD)));
+    }
+
+    @Override
+    public void configureBlockingExecution(BlockingExecutionConfigurer configurer) {
+        configurer.setExecutor(new TaskExecutorAdapter(chatIoExecutor));
+    }
+}
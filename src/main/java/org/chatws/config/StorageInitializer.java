@@ -0,0 +1,43 @@
+package org.chatws.config;
+
+import org.chatws.repository.ChatMessageRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Creates the message indexes once the application has started and, if
+ * chat.persistence.migrate-legacy-ids is set, gives messages stored with UUIDs their time-ordered ids.
+ * Runs in the background so an unreachable database does not block startup.
+ */
+@Component
+public class StorageInitializer {
+
+    private static final Logger log = LoggerFactory.getLogger(StorageInitializer.class);
+
+    @Autowired
+    private ChatMessageRepository chatMessageRepository;
+
+    @Autowired
+    private ChatProperties chatProperties;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void createIndexes() {
+        CompletableFuture.runAsync(() -> {
+            try {
+                chatMessageRepository.ensureIndexes();
+                log.info("Message indexes are in place");
+                if (chatProperties.getPersistence().isMigrateLegacyIds()) {
+                    log.info("Gave {} stored messages time-ordered ids", chatMessageRepository.migrateLegacyIds());
+                }
+            } catch (RuntimeException e) {
+                log.warn("Error preparing message storage: {}", e.getMessage());
+            }
+        });
+    }
+}
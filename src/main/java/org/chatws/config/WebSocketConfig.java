@@ -1,5 +1,6 @@
 package org.chatws.config;
 
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.socket.config.annotation.EnableWebSocket;
 import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
@@ -8,7 +9,11 @@ import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry
 import org.chatws.handler.ChatWebSocketHandler;
 import org.springframework.beans.factory.annotation.Autowired;
 
+/**
+ * Servlet WebSocket endpoint (the default mode); the reactive mode is set up by ReactiveWebConfig
+ */
 @Configuration
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 @EnableWebSocket
 public class WebSocketConfig implements WebSocketConfigurer {
 
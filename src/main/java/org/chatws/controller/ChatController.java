@@ -1,12 +1,17 @@
 package org.chatws.controller;
 
+import org.chatws.handler.OutboundDispatcher;
 import org.chatws.model.ChatMessage;
 import org.chatws.service.ChatService;
+import org.chatws.service.RoomPageCache;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
@@ -15,26 +20,106 @@ import java.util.List;
 @Controller
 public class ChatController {
 
+    // Largest page the history endpoints return
+    private static final int MAX_PAGE_SIZE = 200;
+
+    // Token a user gets in their HISTORY frames; private messages are only served to its user
+    private static final String TOKEN_HEADER = "X-Chat-Token";
+
     @Autowired
     private ChatService chatService;
 
+    @Autowired
+    private OutboundDispatcher outboundDispatcher;
+
     @GetMapping("/")
     public String getChatPage() {
         return "chat"; // This will resolve to chat.html in the templates directory
     }
 
     /**
-     * REST endpoint to get message history for a specific room
+     * REST endpoint to get message history for a specific room, newest first.
+     * To page back, pass the id of the oldest message received so far as "before".
      * @param room the room identifier
-     * @param limit optional parameter to limit the number of messages returned
+     * @param limit optional parameter to limit the number of messages returned (at most 200)
+     * @param before optional cursor: a message id or an ISO-8601 timestamp
+     * The newest page comes from a cache and carries an ETag and Last-Modified time; a client
+     * revalidating with If-None-Match or If-Modified-Since gets 304 Not Modified while the room is unchanged.
      * @return list of messages in the room
      */
     @GetMapping("/api/messages/{room}")
     @org.springframework.web.bind.annotation.ResponseBody
     public ResponseEntity<List<ChatMessage>> getMessagesByRoom(
             @PathVariable String room,
-            @RequestParam(required = false, defaultValue = "50") int limit) {
-        List<ChatMessage> messages = chatService.getRecentMessagesByRoom(room, limit);
-        return ResponseEntity.ok(messages);
+            @RequestParam(required = false, defaultValue = "50") int limit,
+            @RequestParam(required = false) String before) {
+        int pageSize = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+        if (before == null || before.isEmpty()) {
+            RoomPageCache.RoomPage page = chatService.getRecentPageByRoom(room, pageSize);
+            // Spring answers a matching conditional request with 304 and no body
+            ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                .eTag(page.etag())
+                .cacheControl(CacheControl.noCache());
+            if (page.lastModified() > 0) {
+                response.lastModified(page.lastModified());
+            }
+            return response.body(page.messages());
+        }
+        return ResponseEntity.ok(chatService.getMessagesByRoomBefore(room, before, pageSize));
+    }
+
+    /**
+     * REST endpoint to get the private messages of the calling user over all their
+     * conversations, newest first; paged like the room history
+     * @param token the token from the user's HISTORY frames
+     * @return the messages, or 401 if the token does not belong to an online user
+     */
+    @GetMapping("/api/conversations")
+    @org.springframework.web.bind.annotation.ResponseBody
+    public ResponseEntity<List<ChatMessage>> getInbox(
+            @RequestHeader(name = TOKEN_HEADER, required = false) String token,
+            @RequestParam(required = false, defaultValue = "50") int limit,
+            @RequestParam(required = false) String before) {
+        String username = chatService.getUserByToken(token);
+        if (username == null) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
+        }
+        int pageSize = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+        return ResponseEntity.ok(chatService.getInboxPage(username, emptyToNull(before), pageSize));
+    }
+
+    /**
+     * REST endpoint to get the private conversation of the calling user with another user, newest first
+     * @param token the token from the user's HISTORY frames
+     * @param peer the other participant
+     * @return the messages, or 401 if the token does not belong to an online user
+     */
+    @GetMapping("/api/conversations/{peer}")
+    @org.springframework.web.bind.annotation.ResponseBody
+    public ResponseEntity<List<ChatMessage>> getConversation(
+            @RequestHeader(name = TOKEN_HEADER, required = false) String token,
+            @PathVariable String peer,
+            @RequestParam(required = false, defaultValue = "50") int limit,
+            @RequestParam(required = false) String before) {
+        String username = chatService.getUserByToken(token);
+        if (username == null) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED).build();
+        }
+        int pageSize = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+        return ResponseEntity.ok(chatService.getConversationPage(username, peer, emptyToNull(before), pageSize));
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    /**
+     * REST endpoint to inspect the outbound queue of every connected session
+     * @return queue depth and dropped frame count per session, slowest consumers first
+     */
+    @GetMapping("/api/sessions/outbound")
+    @org.springframework.web.bind.annotation.ResponseBody
+    public ResponseEntity<List<OutboundDispatcher.QueueStatus>> getOutboundQueues() {
+        return ResponseEntity.ok(outboundDispatcher.getQueueStatus());
     }
 }
@@ -1,123 +1,325 @@
 package org.chatws.handler;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.chatws.bus.BusEvent;
+import org.chatws.bus.ChatBus;
+import org.chatws.config.ChatProperties;
 import org.chatws.model.ChatMessage;
+import org.chatws.model.ConversationId;
+import org.chatws.model.WireFormat;
+import org.chatws.service.ChatMetrics;
 import org.chatws.service.ChatService;
+import org.chatws.service.HistoryReplay;
+import org.chatws.service.MessageDecoder;
+import org.chatws.service.MessageEncoder;
+import org.chatws.service.MessageIdGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
 import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.SubProtocolCapable;
 import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
 import org.springframework.web.socket.WebSocketSession;
-import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
 import java.util.List;
-import java.util.Set;
-import java.util.concurrent.CopyOnWriteArrayList;
-
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * WebSocket handler for /chat. Clients pick the wire format with the Sec-WebSocket-Protocol
+ * header ("chatws.json" or "chatws.cbor"); without one, frames are JSON text.
+ * Messages, presence and typing changes are delivered to the local sessions and published
+ * on the ChatBus; events from other nodes are delivered to the local sessions in onBusEvent.
+ */
 @Component
-public class ChatWebSocketHandler extends TextWebSocketHandler {
+public class ChatWebSocketHandler extends AbstractWebSocketHandler implements SubProtocolCapable {
 
-    private final List<WebSocketSession> sessions = new CopyOnWriteArrayList<>();
+    private static final Logger log = LoggerFactory.getLogger(ChatWebSocketHandler.class);
 
-    @Autowired
-    private ObjectMapper objectMapper;
+    // Sessions that have not joined yet may only send a JOIN
+    private static final MessageDecoder.TypeFilter JOIN_ONLY = type -> type == ChatMessage.MessageType.JOIN;
+
+    // Result of a frame that was handled in full before its handler returned
+    private static final CompletableFuture<Void> HANDLED = CompletableFuture.completedFuture(null);
 
     @Autowired
     private ChatService chatService;
 
+    @Autowired
+    private OutboundDispatcher outboundDispatcher;
+
+    @Autowired
+    private MessageEncoder messageEncoder;
+
+    // Accepts and fans out the messages of each room in order
+    @Autowired
+    private RoomSequencer roomSequencer;
+
+    @Autowired
+    private MessageDecoder messageDecoder;
+
+    @Autowired
+    private ChatProperties chatProperties;
+
+    @Autowired
+    private ChatMetrics chatMetrics;
+
+    @Autowired
+    private MessageIdGenerator messageIdGenerator;
+
+    // Events to and from the other nodes of the cluster
+    @Autowired
+    private ChatBus chatBus;
+
+    private String nodeId;
+
+    @PostConstruct
+    public void subscribe() {
+        nodeId = chatProperties.getBus().getNodeId();
+        chatBus.subscribe(nodeId, this::onBusEvent);
+    }
+
+    /**
+     * Announce this node; the other nodes answer with the users connected to them
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void announce() {
+        chatBus.publish(BusEvent.ofNode(nodeId, BusEvent.Kind.NODE_UP));
+    }
+
+    @PreDestroy
+    public void withdraw() {
+        chatBus.publish(BusEvent.ofNode(nodeId, BusEvent.Kind.NODE_DOWN));
+    }
+
+    /**
+     * Tell the other nodes this node is alive, and drop the users of the nodes that stopped doing so
+     */
+    @Scheduled(fixedDelayString = "${chat.bus.claim-refresh:20s}")
+    public void heartbeat() {
+        chatBus.publish(BusEvent.ofNode(nodeId, BusEvent.Kind.HEARTBEAT));
+        for (String expired : chatService.expireRemoteNodes()) {
+            log.warn("No events from node {} for {}; its users are gone", expired, chatProperties.getBus().getClaimTtl());
+        }
+    }
+
     @Override
     public void afterConnectionEstablished(WebSocketSession session) throws Exception {
-        sessions.add(session);
-        System.out.println("New connection established: " + session.getId());
+        outboundDispatcher.register(session);
+        log.debug("New connection established: {}", session.getId());
+    }
+
+    @Override
+    public List<String> getSubProtocols() {
+        return List.of(WireFormat.CBOR.getSubProtocol(), WireFormat.JSON.getSubProtocol());
     }
 
     @Override
     protected void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
+        // The container reads the next frame of the session once this one is handled, join replay included
+        handleInbound(session, message).join();
+    }
+
+    @Override
+    protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) throws Exception {
+        handleInbound(session, message).join();
+    }
+
+    /**
+     * Handle an inbound text or binary frame. The future completes once the frame has been
+     * handled: right away for most frames, after the history replay for a join. The reactive
+     * mode waits on it before the next frame of the session without holding a thread.
+     */
+    CompletableFuture<Void> handleInbound(WebSocketSession session, WebSocketMessage<?> message) throws IOException {
+        if (message instanceof TextMessage text) {
+            return handleText(session, text);
+        }
+        if (message instanceof BinaryMessage binary) {
+            return handleBinary(session, binary);
+        }
+        return HANDLED;
+    }
+
+    private CompletableFuture<Void> handleText(WebSocketSession session, TextMessage message) throws IOException {
+        long receivedAt = System.nanoTime();
         String payload = message.getPayload();
-        System.out.println("Received message: " + payload);
 
-        ChatMessage chatMessage = objectMapper.readValue(payload, ChatMessage.class);
+        // Per-connection byte budget, charged before the frame is parsed
+        // (the payload length in chars stands in for its size in bytes)
+        if (!chatService.tryAcquireBytes(session.getId(), payload.length())) {
+            return HANDLED;
+        }
+
+        // Streamed rather than bound; frames that would be dropped are not read past their type
         String username = chatService.getUsernameBySession(session);
+        try {
+            ChatMessage chatMessage = messageDecoder.decode(payload, admission(session, username));
+            if (chatMessage != null) {
+                return handleChatFrame(session, chatMessage, receivedAt);
+            }
+        } catch (MessageDecoder.InvalidFrameException e) {
+            reject(session, e);
+        }
+        return HANDLED;
+    }
 
-        // Skip processing if no username is associated with this session
-        if (username == null && chatMessage.getType() != ChatMessage.MessageType.JOIN) {
-            return;
+    private CompletableFuture<Void> handleBinary(WebSocketSession session, BinaryMessage message) throws IOException {
+        long receivedAt = System.nanoTime();
+        ByteBuffer payload = message.getPayload();
+
+        // Per-connection byte budget, charged before the frame is parsed
+        if (!chatService.tryAcquireBytes(session.getId(), payload.remaining())) {
+            return HANDLED;
+        }
+
+        // Streamed rather than bound; frames that would be dropped are not read past their type
+        String username = chatService.getUsernameBySession(session);
+        try {
+            ChatMessage chatMessage = messageDecoder.decode(payload, admission(session, username));
+            if (chatMessage != null) {
+                return handleChatFrame(session, chatMessage, receivedAt);
+            }
+        } catch (MessageDecoder.InvalidFrameException e) {
+            reject(session, e);
         }
+        return HANDLED;
+    }
+
+    /**
+     * Which frames of a session are decoded, decided from their type alone: a session without
+     * a username may only join, and a user's frames must fit the budget of their type
+     * (over-budget typing updates are dropped silently, other types get a warning)
+     */
+    private MessageDecoder.TypeFilter admission(WebSocketSession session, String username) {
+        if (username == null) {
+            return JOIN_ONLY;
+        }
+        return type -> {
+            if (chatService.tryAcquireMessage(username, type)) {
+                return true;
+            }
+            if (type != ChatMessage.MessageType.TYPING) {
+                sendRateLimitWarning(session, username, type);
+            }
+            return false;
+        };
+    }
+
+    /**
+     * Close the connection of a session that sent an oversized or malformed frame
+     */
+    private void reject(WebSocketSession session, MessageDecoder.InvalidFrameException e) throws IOException {
+        chatMetrics.frameRejected(e.getRejection());
+        log.debug("Closing {}: {}", session.getId(), e.getMessage());
+        session.close(e.getRejection() == MessageDecoder.Rejection.TOO_LARGE
+            ? CloseStatus.TOO_BIG_TO_PROCESS : CloseStatus.BAD_DATA);
+    }
 
+    /**
+     * Handle a decoded inbound message that passed the admission check, whichever wire format it came in
+     * @param receivedAt System.nanoTime() when the frame arrived, for the delivery latency
+     */
+    private CompletableFuture<Void> handleChatFrame(WebSocketSession session, ChatMessage chatMessage,
+                                                    long receivedAt) throws IOException {
         // Handle different message types
         switch (chatMessage.getType()) {
             case JOIN:
-                handleJoinMessage(session, chatMessage);
-                break;
+                return handleJoinMessage(session, chatMessage);
             case CHAT:
-                // Apply rate limiting for chat messages
-                if (chatService.shouldRateLimit(username)) {
-                    sendRateLimitWarning(session, username);
-                    return;
-                }
-                chatService.updateLastMessageTime(username);
-                handleChatMessage(chatMessage);
+                handleChatMessage(session, chatMessage, receivedAt);
                 break;
             case PRIVATE:
-                // Apply rate limiting for private messages
-                if (chatService.shouldRateLimit(username)) {
-                    sendRateLimitWarning(session, username);
-                    return;
-                }
-                chatService.updateLastMessageTime(username);
-                handlePrivateMessage(chatMessage);
+                handlePrivateMessage(session, chatMessage, receivedAt);
                 break;
             case LEAVE:
                 handleLeaveMessage(session);
                 break;
+            case USERS:
+                // A client that missed a presence delta asks for a fresh snapshot
+                send(session, chatService.getPresenceSnapshot(chatService.getRoomBySession(session)));
+                break;
             case TYPING:
-                handleTypingMessage(chatMessage);
+                handleTypingMessage(session, chatMessage);
                 break;
             case EDIT:
-                handleEditMessage(chatMessage);
+                handleEditMessage(session, chatMessage);
                 break;
             case DELETE:
-                handleDeleteMessage(chatMessage);
+                handleDeleteMessage(session, chatMessage);
                 break;
             default:
                 break;
         }
+        return HANDLED;
     }
 
     @Override
     public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
-        String username = chatService.getUsernameBySession(session);
-        if (username != null) {
-            // Remove from typing users if they were typing
-            chatService.removeTypingUser(username);
-            // Broadcast typing status update
-            broadcastTypingUsers();
-        }
-
+        // Leaving also clears the typing state and updates the room
         handleLeaveMessage(session);
-        sessions.remove(session);
-        System.out.println("Connection closed: " + session.getId());
+        outboundDispatcher.unregister(session);
+        chatService.removeConnectionBudget(session.getId());
+        log.debug("Connection closed: {}", session.getId());
     }
 
-    private void handleJoinMessage(WebSocketSession session, ChatMessage message) throws IOException {
+    /**
+     * Join a room; the future completes once the history and presence snapshot have been queued
+     */
+    private CompletableFuture<Void> handleJoinMessage(WebSocketSession session, ChatMessage message) throws IOException {
         // Register the user
         String username = message.getSender();
-        String room = message.getRoom();
+        String room = ChatService.normalizeRoom(message.getRoom());
+
+        // A session that has joined already leaves its room and releases its username first,
+        // so it no longer gets the old room's messages and the old name is free again
+        if (chatService.getUsernameBySession(session) != null) {
+            handleLeaveMessage(session);
+        }
 
-        // Check if username is already taken
-        if (chatService.isUsernameTaken(username)) {
+        // Claim the username; taken means in use on any node of the cluster
+        if (!chatService.claimUsername(username)) {
             // Send error message back to the client
             ChatMessage errorMessage = new ChatMessage(
                 ChatMessage.MessageType.CHAT, 
                 "Username is already taken. Please choose another one.", 
                 "System"
             );
-            session.sendMessage(new TextMessage(objectMapper.writeValueAsString(errorMessage)));
-            return;
+            send(session, errorMessage);
+            return HANDLED;
         }
 
-        chatService.registerUser(session, username);
+        chatService.registerUser(session, username, room);
+        chatBus.publish(BusEvent.ofUser(nodeId, BusEvent.Kind.JOINED, room, username));
+
+        // A reconnecting client that sends the epoch and seq of the history it has seen only gets
+        // the messages it missed, if they are still buffered; otherwise the stored room history
+        // is loaded for a full replay. The user's private messages (only their own conversations)
+        // are loaded concurrently
+        boolean resumable = chatService.canResumeHistory(room, message.getEpoch(), message.getSeq());
+        int storedCount = chatProperties.getHistory().getReplayStoredCount();
+        CompletableFuture<List<ChatMessage>> storedHistory = resumable || room.isEmpty()
+            ? CompletableFuture.completedFuture(List.of())
+            : chatService.loadRecentMessagesByRoom(room, storedCount)
+                .exceptionally(e -> {
+                    log.warn("Error loading room history: {}", e.getMessage());
+                    return List.of();
+                });
+        CompletableFuture<Void> inbox = chatService.loadInbox(username)
+            .exceptionally(e -> {
+                log.warn("Error loading private messages of {}: {}", username, e.getMessage());
+                return null;
+            });
 
         // Send welcome message
         ChatMessage welcomeMessage = new ChatMessage(
@@ -126,224 +328,408 @@ public class ChatWebSocketHandler extends TextWebSocketHandler {
             "System",
             room
         );
-        broadcastMessage(welcomeMessage);
-
-        // Send in-memory message history to the new user
-        for (ChatMessage historyMessage : chatService.getMessageHistory()) {
-            if (historyMessage.getType() == ChatMessage.MessageType.CHAT) {
-                session.sendMessage(new TextMessage(objectMapper.writeValueAsString(historyMessage)));
-            } else if (historyMessage.getType() == ChatMessage.MessageType.PRIVATE && 
-                      (historyMessage.getSender().equals(username) || 
-                       historyMessage.getRecipient().equals(username))) {
-                session.sendMessage(new TextMessage(objectMapper.writeValueAsString(historyMessage)));
-            }
-        }
-
-        // Send room-specific message history from database if room is specified
-        if (room != null && !room.isEmpty()) {
-            List<ChatMessage> roomHistory = chatService.getRecentMessagesByRoom(room, 50);
-            for (ChatMessage historyMessage : roomHistory) {
-                if (historyMessage.getType() == ChatMessage.MessageType.CHAT) {
-                    session.sendMessage(new TextMessage(objectMapper.writeValueAsString(historyMessage)));
-                } else if (historyMessage.getType() == ChatMessage.MessageType.PRIVATE && 
-                          (historyMessage.getSender().equals(username) || 
-                           historyMessage.getRecipient().equals(username))) {
-                    session.sendMessage(new TextMessage(objectMapper.writeValueAsString(historyMessage)));
+        broadcastToRoom(room, welcomeMessage);
+        chatBus.publish(BusEvent.ofMessage(nodeId, BusEvent.Kind.BROADCAST, welcomeMessage));
+
+        // Send the missed messages, or the in-memory and stored history as one deduplicated HISTORY
+        // batch (chunked when large), once the stored part and the inbox are loaded. The next frame
+        // of the session waits for this, which keeps the replay ahead of later frames. A gap evicted
+        // since the check above falls back to a full replay of the in-memory history
+        return CompletableFuture.allOf(storedHistory, inbox).thenRun(() -> {
+            try {
+                HistoryReplay replay = resumable
+                    ? chatService.resumeHistory(room, username, message.getEpoch(), message.getSeq()) : null;
+                if (replay == null) {
+                    replay = chatService.getReplayHistory(room, username, storedHistory.join());
+                }
+                chatMetrics.historyReplayed(replay.resumed());
+                for (WebSocketMessage<?> frame : messageEncoder.encodeHistory(replay,
+                        chatProperties.getHistory().getReplayFrameSize(), wireFormat(session))) {
+                    outboundDispatcher.send(session, frame, ChatMessage.MessageType.HISTORY);
                 }
+
+                // Send the full presence snapshot to the new user; the room learns about
+                // the join from the next batched presence delta. Taken now rather than on
+                // join, so deltas queued while the history loaded are older than it
+                send(session, chatService.getPresenceSnapshot(room));
+            } catch (IOException e) {
+                log.warn("Error sending the history to {}: {}", username, e.getMessage());
             }
-        }
+        });
+    }
 
-        // Send active users list to all clients
-        sendActiveUsers();
+    private void handleChatMessage(WebSocketSession session, ChatMessage message, long receivedAt) throws IOException {
+        // Chat messages always belong to the room the sender joined
+        String room = chatService.getRoomBySession(session);
+        message.setRoom(room);
+
+        // On the room's lane: accept and store, then add to history and broadcast to the members of the room
+        roomSequencer.execute(room, () -> {
+            accept(message);
+            deliverWhenStored(session, room, chatService.storeMessage(message),
+                () -> {
+                    chatService.addMessageToHistory(message);
+                    broadcastToRoom(room, message);
+                    chatMetrics.delivered(message.getType(), receivedAt);
+                    chatBus.publish(BusEvent.ofMessage(nodeId, BusEvent.Kind.MESSAGE, message));
+                });
+        });
     }
 
-    private void handleChatMessage(ChatMessage message) throws IOException {
-        // Ensure message has a timestamp
-        if (message.getTimestamp() == null) {
-            message.setTimestamp(java.time.LocalDateTime.now());
+    private void handlePrivateMessage(WebSocketSession session, ChatMessage message, long receivedAt) throws IOException {
+        if (message.getRecipient() == null || message.getRecipient().isBlank()) {
+            return;
         }
 
-        // Add message to history
-        chatService.addMessageToHistory(message);
-
-        // Broadcast to all users
-        broadcastMessage(message);
+        // Private messages belong to the conversation of sender and recipient, not to a room;
+        // the sender is the session's user, so nobody can write into someone else's conversation
+        String sender = chatService.getUsernameBySession(session);
+        String conversation = ConversationId.of(sender, message.getRecipient());
+        message.setSender(sender);
+        message.setRoom(null);
+        message.setConversation(conversation);
+        message.setParticipants(List.of(sender, message.getRecipient()));
+
+        // On the conversation's lane: accept and store, then add to the inboxes and send it to both participants
+        roomSequencer.execute(conversation, () -> {
+            accept(message);
+            deliverWhenStored(session, conversation, chatService.storeMessage(message),
+                () -> {
+                    chatService.addMessageToHistory(message);
+                    sendPrivateMessage(message);
+                    chatMetrics.delivered(message.getType(), receivedAt);
+                    chatBus.publish(BusEvent.ofMessage(nodeId, BusEvent.Kind.MESSAGE, message));
+                });
+        });
     }
 
-    private void handlePrivateMessage(ChatMessage message) throws IOException {
-        // Ensure message has a timestamp
-        if (message.getTimestamp() == null) {
-            message.setTimestamp(java.time.LocalDateTime.now());
-        }
+    /**
+     * Give an accepted message its id and timestamp; whatever the client sent for them is ignored
+     */
+    private void accept(ChatMessage message) {
+        message.setId(messageIdGenerator.next());
+        message.setTimestamp(LocalDateTime.now());
+    }
 
-        // Add message to history
-        chatService.addMessageToHistory(message);
+    /**
+     * Deliver a private message to whichever participants are connected to this node
+     */
+    private void sendPrivateMessage(ChatMessage message) throws IOException {
+        // The message is in history, so both participants get its cached frame
 
         // Send to recipient
         WebSocketSession recipientSession = chatService.getSessionByUsername(message.getRecipient());
-        if (recipientSession != null && recipientSession.isOpen()) {
-            recipientSession.sendMessage(new TextMessage(objectMapper.writeValueAsString(message)));
+        if (recipientSession != null) {
+            send(recipientSession, message);
         }
 
         // Send back to sender
         WebSocketSession senderSession = chatService.getSessionByUsername(message.getSender());
-        if (senderSession != null && senderSession.isOpen()) {
-            senderSession.sendMessage(new TextMessage(objectMapper.writeValueAsString(message)));
+        if (senderSession != null) {
+            send(senderSession, message);
         }
     }
 
     private void handleLeaveMessage(WebSocketSession session) throws IOException {
         String username = chatService.getUsernameBySession(session);
         if (username != null) {
-            // Remove from typing users if they were typing
-            chatService.removeTypingUser(username);
+            String room = chatService.getRoomBySession(session);
+
+            // Remove from typing users if they were typing; the next tick publishes the change
+            chatService.removeTypingUser(room, username);
 
             chatService.removeUser(session);
+            chatBus.publish(BusEvent.ofUser(nodeId, BusEvent.Kind.LEFT, room, username));
 
-            // Notify other users
+            // Notify other users in the room
             ChatMessage leaveMessage = new ChatMessage(
                 ChatMessage.MessageType.CHAT, 
                 username + " has left the chat.", 
-                "System"
+                "System",
+                room
             );
-            broadcastMessage(leaveMessage);
-
-            // Update active users list
-            sendActiveUsers();
-
-            // Update typing users
-            broadcastTypingUsers();
+            broadcastToRoom(room, leaveMessage);
+            chatBus.publish(BusEvent.ofMessage(nodeId, BusEvent.Kind.BROADCAST, leaveMessage));
         }
     }
 
-    private void sendActiveUsers() throws IOException {
-        List<String> activeUsers = chatService.getActiveUsers();
-        ChatMessage usersMessage = new ChatMessage(
-            ChatMessage.MessageType.USERS, 
-            String.join(",", activeUsers), 
-            "System"
-        );
-        broadcastMessage(usersMessage);
-    }
-
-    private void broadcastMessage(ChatMessage message) throws IOException {
-        String json = objectMapper.writeValueAsString(message);
-        TextMessage textMessage = new TextMessage(json);
-
-        for (WebSocketSession session : sessions) {
+    /**
+     * Publish the joins and leaves of the last batching window as one PRESENCE delta per room
+     */
+    @Scheduled(fixedRateString = "${chat.presence.batch-window:200ms}")
+    public void publishPresenceDeltas() {
+        for (Map.Entry<String, ChatMessage> delta : chatService.collectPresenceDeltas().entrySet()) {
             try {
-                if (session.isOpen()) {
-                    session.sendMessage(textMessage);
-                }
-            } catch (IOException | IllegalStateException e) {
-                System.err.println("Error sending message: " + e.getMessage());
+                broadcastToRoom(delta.getKey(), delta.getValue());
+            } catch (IOException e) {
+                log.warn("Error publishing presence: {}", e.getMessage());
             }
         }
     }
 
-    private void broadcastMessage(String message) {
-        TextMessage textMessage = new TextMessage(message);
-        for (WebSocketSession session : sessions) {
-            try {
-                if (session.isOpen()) {
-                    session.sendMessage(textMessage);
+    /**
+     * Send a message to the members of a single room only.
+     * Frames are queued per session, so this never waits on a slow client.
+     */
+    private void broadcastToRoom(String room, ChatMessage message) throws IOException {
+        // Each format is encoded at most once per broadcast
+        String json = null;
+        byte[] cbor = null;
+        int sessions = 0;
+
+        for (WebSocketSession session : chatService.getRoomMembers(room)) {
+            WebSocketMessage<?> frame;
+            if (wireFormat(session) == WireFormat.CBOR) {
+                if (cbor == null) {
+                    cbor = messageEncoder.encodeCbor(message);
+                }
+                // A binary frame's buffer is consumed when sent, so every session gets its own wrapper
+                frame = new BinaryMessage(cbor);
+            } else {
+                if (json == null) {
+                    json = messageEncoder.encode(message);
                 }
-            } catch (IOException | IllegalStateException e) {
-                System.err.println("Error sending message: " + e.getMessage());
+                frame = new TextMessage(json);
             }
+            outboundDispatcher.send(session, frame, message.getType());
+            sessions++;
         }
+        chatMetrics.fannedOut(sessions);
     }
 
     /**
-     * Handle typing indicator messages
+     * Queue a message for a single session
      */
-    private void handleTypingMessage(ChatMessage message) throws IOException {
-        String username = message.getSender();
-        boolean isTyping = Boolean.parseBoolean(message.getContent());
-
-        if (isTyping) {
-            chatService.addTypingUser(username);
-        } else {
-            chatService.removeTypingUser(username);
-        }
+    private void send(WebSocketSession session, ChatMessage message) throws IOException {
+        outboundDispatcher.send(session, messageEncoder.frame(message, wireFormat(session)), message.getType());
+    }
 
-        // Broadcast typing users to all clients
-        broadcastTypingUsers();
+    /**
+     * The wire format negotiated for a session
+     */
+    private static WireFormat wireFormat(WebSocketSession session) {
+        return WireFormat.fromSubProtocol(session.getAcceptedProtocol());
     }
 
     /**
-     * Broadcast the list of currently typing users
+     * Handle typing indicator messages.
+     * Only the state is updated here; changes are published by the typing tick.
      */
-    private void broadcastTypingUsers() throws IOException {
-        Set<String> typingUsers = chatService.getTypingUsers();
-        if (typingUsers.isEmpty()) {
-            return;
-        }
+    private void handleTypingMessage(WebSocketSession session, ChatMessage message) {
+        String username = chatService.getUsernameBySession(session);
+        String room = chatService.getRoomBySession(session);
+        boolean isTyping = Boolean.parseBoolean(message.getContent());
 
-        // Convert Set to List for String.join
-        String typingUsersStr = String.join(",", typingUsers);
-        ChatMessage typingMessage = new ChatMessage(
-            ChatMessage.MessageType.TYPING,
-            typingUsersStr,
-            "System"
-        );
+        chatService.setTyping(room, username, isTyping);
 
-        broadcastMessage(typingMessage);
+        // Other nodes track the state too, so their typing tick includes this user
+        message.setSender(username);
+        message.setRoom(room);
+        chatBus.publish(BusEvent.ofMessage(nodeId, BusEvent.Kind.TYPING, message));
     }
 
     /**
-     * Handle edit message requests
+     * Publish the typing users of every room whose typing set changed since the last tick
      */
-    private void handleEditMessage(ChatMessage message) throws IOException {
-        // Verify the sender is the original message author
-        String username = message.getSender();
-        String messageId = message.getId();
-
-        // Find the message in history and update it
-        boolean updated = false;
-        for (ChatMessage historyMessage : chatService.getMessageHistory()) {
-            if (historyMessage.getId().equals(messageId) && historyMessage.getSender().equals(username)) {
-                historyMessage.setContent(message.getContent());
-                updated = true;
-                break;
+    @Scheduled(fixedRateString = "${chat.typing.tick:250ms}")
+    public void publishTypingUsers() {
+        for (Map.Entry<String, List<String>> change : chatService.collectTypingChanges().entrySet()) {
+            String room = change.getKey();
+            ChatMessage typingMessage = new ChatMessage(
+                ChatMessage.MessageType.TYPING,
+                String.join(",", change.getValue()),
+                "System",
+                room
+            );
+
+            try {
+                broadcastToRoom(room, typingMessage);
+            } catch (IOException e) {
+                log.warn("Error publishing typing users: {}", e.getMessage());
             }
         }
+    }
 
-        if (updated) {
-            // Broadcast the edit to all users
-            broadcastMessage(message);
+    /**
+     * Handle edit message requests
+     */
+    private void handleEditMessage(WebSocketSession session, ChatMessage message) throws IOException {
+        // Verify the sender is the original message author
+        String username = chatService.getUsernameBySession(session);
+        String room = chatService.getRoomBySession(session);
+
+        // Update the message in history and in the database
+        ChatMessage edited = chatService.editMessage(room, message.getId(), username, message.getContent());
+        if (edited != null) {
+            // Send the edit to the sender's room, or to the participants of a private message
+            deliverRevision(message, edited, username, room);
+            chatBus.publish(BusEvent.ofMessage(nodeId, BusEvent.Kind.EDIT, message));
         }
     }
 
     /**
      * Handle delete message requests
      */
-    private void handleDeleteMessage(ChatMessage message) throws IOException {
+    private void handleDeleteMessage(WebSocketSession session, ChatMessage message) throws IOException {
         // Verify the sender is the original message author
-        String username = message.getSender();
-        String messageId = message.getId();
-
-        // Find the message in history and mark it as deleted
-        boolean deleted = false;
-        for (ChatMessage historyMessage : chatService.getMessageHistory()) {
-            if (historyMessage.getId().equals(messageId) && historyMessage.getSender().equals(username)) {
-                // We don't actually remove it from history, just mark it as deleted by broadcasting
-                deleted = true;
-                break;
+        String username = chatService.getUsernameBySession(session);
+        String room = chatService.getRoomBySession(session);
+
+        // Turn the message into a tombstone; it is no longer replayed or returned by history queries
+        ChatMessage deleted = chatService.deleteMessage(room, message.getId(), username);
+        if (deleted != null) {
+            deliverRevision(message, deleted, username, room);
+            chatBus.publish(BusEvent.ofMessage(nodeId, BusEvent.Kind.DELETE, message));
+        }
+    }
+
+    /**
+     * Address an EDIT or DELETE frame like the message it revises and deliver it: a private
+     * message's revision only goes to its two participants
+     */
+    private void deliverRevision(ChatMessage revision, ChatMessage target, String username, String room)
+            throws IOException {
+        revision.setSender(username);
+        if (target.getConversation() != null) {
+            revision.setRoom(null);
+            revision.setConversation(target.getConversation());
+            revision.setRecipient(target.getRecipient());
+            sendPrivateMessage(revision);
+        } else {
+            revision.setRoom(room);
+            broadcastToRoom(room, revision);
+        }
+    }
+
+    /**
+     * Deliver an event published by another node to the sessions of this node
+     */
+    private void onBusEvent(BusEvent event) {
+        ChatMessage message = event.message();
+        boolean unknownNode = event.kind() != BusEvent.Kind.NODE_DOWN && chatService.remoteNodeSeen(event.origin());
+        try {
+            switch (event.kind()) {
+                case MESSAGE:
+                    // Stored by the origin node; only kept in the local history here, in order with
+                    // this node's messages of the room
+                    deliverRemoteMessage(event, message);
+                    break;
+                case BROADCAST:
+                    broadcastToRoom(event.room(), message);
+                    break;
+                case EDIT:
+                    chatService.applyRemoteEdit(message);
+                    deliverRemoteRevision(event, message);
+                    break;
+                case DELETE:
+                    chatService.applyRemoteDelete(message);
+                    deliverRemoteRevision(event, message);
+                    break;
+                case JOINED:
+                    chatService.remoteUserJoined(event.origin(), event.room(), event.username());
+                    break;
+                case LEFT:
+                    chatService.remoteUserLeft(event.username());
+                    break;
+                case TYPING:
+                    chatService.setTyping(event.room(), event.username(), Boolean.parseBoolean(message.getContent()));
+                    break;
+                case NODE_UP:
+                    // Tell the new node who is connected here
+                    for (Map.Entry<String, String> user : chatService.getLocalUsers().entrySet()) {
+                        chatBus.publish(BusEvent.ofUser(nodeId, BusEvent.Kind.JOINED, user.getValue(), user.getKey()));
+                    }
+                    break;
+                case NODE_DOWN:
+                    chatService.removeRemoteNode(event.origin());
+                    break;
+                case HEARTBEAT:
+                    if (unknownNode) {
+                        // A node that had expired (e.g. after a network partition) is back: ask for its users again
+                        chatBus.publish(BusEvent.ofNode(nodeId, BusEvent.Kind.NODE_UP));
+                    }
+                    break;
+                default:
+                    break;
             }
+        } catch (IOException e) {
+            log.warn("Error delivering {} event: {}", event.kind(), e.getMessage());
         }
+    }
+
+    private void deliverRemoteMessage(BusEvent event, ChatMessage message) {
+        String lane = message.getConversation() != null ? message.getConversation() : event.room();
+        roomSequencer.execute(lane, () -> {
+            chatService.addRemoteMessageToHistory(message);
+            roomSequencer.afterReady(lane, CompletableFuture.completedFuture(null), error -> {
+                try {
+                    if (message.getType() == ChatMessage.MessageType.PRIVATE) {
+                        sendPrivateMessage(message);
+                    } else {
+                        broadcastToRoom(event.room(), message);
+                    }
+                } catch (IOException e) {
+                    log.warn("Error delivering {} event: {}", event.kind(), e.getMessage());
+                }
+            });
+        });
+    }
 
-        if (deleted) {
-            // Broadcast the deletion to all users
-            broadcastMessage(message);
+    private void deliverRemoteRevision(BusEvent event, ChatMessage revision) throws IOException {
+        if (revision.getConversation() != null) {
+            sendPrivateMessage(revision);
+        } else {
+            broadcastToRoom(event.room(), revision);
         }
     }
 
+    /**
+     * Delivery step that runs once the message store has accepted the message
+     */
+    @FunctionalInterface
+    private interface Delivery {
+        void run() throws IOException;
+    }
+
+    /**
+     * Run the delivery when the message has been accepted by the store (immediately in
+     * fire-and-forget mode, after the batch flush in ack mode), or warn the sender if it was rejected.
+     * Called on the room's lane; deliveries of a room run on it in the order the messages were accepted
+     */
+    private void deliverWhenStored(WebSocketSession session, String room, CompletableFuture<Void> stored,
+                                   Delivery delivery) {
+        roomSequencer.afterReady(room, stored, error -> {
+            try {
+                if (error == null) {
+                    delivery.run();
+                } else {
+                    sendStoreWarning(session);
+                }
+            } catch (IOException e) {
+                log.warn("Error delivering message: {}", e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Tell a sender that their message could not be stored
+     */
+    private void sendStoreWarning(WebSocketSession session) throws IOException {
+        ChatMessage warningMessage = new ChatMessage(
+            ChatMessage.MessageType.CHAT,
+            "The server is busy and your message was not sent. Please try again.",
+            "System"
+        );
+
+        send(session, warningMessage);
+    }
+
     /**
      * Send a rate limit warning to a user
      */
-    private void sendRateLimitWarning(WebSocketSession session, String username) throws IOException {
-        long cooldownMs = chatService.getRemainingCooldownMs(username);
+    private void sendRateLimitWarning(WebSocketSession session, String username,
+                                      ChatMessage.MessageType type) throws IOException {
+        long cooldownMs = chatService.getRemainingCooldownMs(username, type);
 
         ChatMessage warningMessage = new ChatMessage(
             ChatMessage.MessageType.CHAT,
@@ -351,6 +737,6 @@ public class ChatWebSocketHandler extends TextWebSocketHandler {
             "System"
         );
 
-        session.sendMessage(new TextMessage(objectMapper.writeValueAsString(warningMessage)));
+        send(session, warningMessage);
     }
 }
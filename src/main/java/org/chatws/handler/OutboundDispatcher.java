@@ -0,0 +1,97 @@
+package org.chatws.handler;
+
+import org.chatws.config.ChatProperties;
+import org.chatws.model.ChatMessage;
+import org.chatws.service.ChatMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Asynchronous delivery of outbound frames.
+ * Every session gets its own bounded queue that is drained by a writer task
+ * (or, in the reactive mode, pulled by the connection), so senders never block on a client's socket.
+ */
+@Component
+public class OutboundDispatcher {
+
+    /**
+     * Snapshot of one session's outbound queue
+     */
+    public record QueueStatus(String sessionId, int depth, long droppedFrames) {
+    }
+
+    @Autowired
+    private ChatProperties chatProperties;
+
+    @Autowired
+    private ChatMetrics chatMetrics;
+
+    // Platform or virtual threads, see ExecutionConfig
+    @Autowired
+    @Qualifier("chatWriterExecutor")
+    private ExecutorService writer;
+
+    private final Map<String, SessionOutbox> outboxes = new ConcurrentHashMap<>();
+
+    /**
+     * Create the outbound queue for a newly connected session; a reactive session pulls its frames from it
+     */
+    public void register(WebSocketSession session) {
+        SessionOutbox outbox = session instanceof ReactiveSessionAdapter reactive
+            ? reactive.openOutbox(chatProperties.getOutbound(), chatMetrics)
+            : new SessionOutbox(session, writer, chatProperties.getOutbound(), chatMetrics);
+        outboxes.put(session.getId(), outbox);
+    }
+
+    /**
+     * Discard the outbound queue of a closed session
+     */
+    public void unregister(WebSocketSession session) {
+        SessionOutbox outbox = outboxes.remove(session.getId());
+        if (outbox != null) {
+            outbox.close();
+        }
+    }
+
+    /**
+     * Queue a frame for a session; returns immediately
+     */
+    public void send(WebSocketSession session, WebSocketMessage<?> frame, ChatMessage.MessageType type) {
+        SessionOutbox outbox = outboxes.get(session.getId());
+        if (outbox != null) {
+            outbox.offer(frame, isDroppable(type));
+        }
+    }
+
+    /**
+     * Typing and presence frames only carry state that the next frame replaces
+     * (a client that misses a presence delta notices the version gap and asks for a snapshot)
+     */
+    private boolean isDroppable(ChatMessage.MessageType type) {
+        return type == ChatMessage.MessageType.TYPING ||
+               type == ChatMessage.MessageType.USERS ||
+               type == ChatMessage.MessageType.PRESENCE;
+    }
+
+    /**
+     * Get the queue depth of every session, deepest (slowest consumer) first
+     */
+    public List<QueueStatus> getQueueStatus() {
+        List<QueueStatus> status = new ArrayList<>();
+        for (SessionOutbox outbox : outboxes.values()) {
+            status.add(new QueueStatus(outbox.getSessionId(), outbox.getDepth(), outbox.getDroppedFrames()));
+        }
+        status.sort(Comparator.comparingInt(QueueStatus::depth).reversed());
+        return status;
+    }
+}
@@ -0,0 +1,109 @@
+package org.chatws.handler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.web.reactive.socket.WebSocketHandler;
+import org.springframework.web.reactive.socket.WebSocketMessage;
+import org.springframework.web.reactive.socket.WebSocketSession;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * WebFlux handler for /chat in the reactive mode (see ReactiveWebConfig). Every connection
+ * is adapted to the servlet session API and handed to ChatWebSocketHandler, so both modes
+ * speak the same protocol. An idle connection holds no thread: its inbound frames are handled
+ * one at a time on the bounded elastic scheduler, and its outbound frames are pulled from the
+ * session's outbox as the connection asks for them. A join releases the thread while the
+ * history and inbox load; the next frame waits for the replay. The rest of a frame's handling
+ * is not reactive (e.g. username claims, and edits and deletes in the store) and holds the
+ * thread while it blocks.
+ */
+public class ReactiveChatWebSocketHandler implements WebSocketHandler {
+
+    private static final Logger log = LoggerFactory.getLogger(ReactiveChatWebSocketHandler.class);
+
+    // Largest inbound frame Reactor Netty accepts (its default), reported as the session's size limits
+    public static final int MAX_FRAME_PAYLOAD = 65_536;
+
+    @Autowired
+    private ChatWebSocketHandler chatWebSocketHandler;
+
+    @Override
+    public List<String> getSubProtocols() {
+        return chatWebSocketHandler.getSubProtocols();
+    }
+
+    @Override
+    public Mono<Void> handle(WebSocketSession session) {
+        ReactiveSessionAdapter adapter = new ReactiveSessionAdapter(session);
+        return Mono.defer(() -> {
+            try {
+                chatWebSocketHandler.afterConnectionEstablished(adapter);
+            } catch (Exception e) {
+                return Mono.error(e);
+            }
+            Mono<Void> inbound = session.receive()
+                // Copied first: the payload buffer is released once the frame has been received
+                .mapNotNull(ReactiveChatWebSocketHandler::copy)
+                .publishOn(Schedulers.boundedElastic())
+                .concatMap(frame -> handleFrame(adapter, frame))
+                .then();
+            // Whichever side ends first ends the connection
+            return Mono.zip(inbound, session.send(adapter.outbound())).then();
+        }).doFinally(signal -> closed(adapter, signal));
+    }
+
+    /**
+     * Handle a frame; completes when the handler's future does, so the next frame waits for a join's replay
+     */
+    private Mono<Void> handleFrame(ReactiveSessionAdapter adapter,
+                                   org.springframework.web.socket.WebSocketMessage<?> frame) {
+        return Mono.fromFuture(() -> {
+            try {
+                return chatWebSocketHandler.handleInbound(adapter, frame);
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }).onErrorResume(e -> {
+            // As the servlet container does for an exception of the handler
+            log.warn("Closing {} after an error: {}", adapter.getId(), e.getMessage(), e);
+            adapter.close(CloseStatus.SERVER_ERROR);
+            return Mono.empty();
+        });
+    }
+
+    private void closed(ReactiveSessionAdapter adapter, SignalType signal) {
+        try {
+            chatWebSocketHandler.afterConnectionClosed(adapter,
+                signal == SignalType.ON_ERROR ? CloseStatus.SERVER_ERROR : CloseStatus.NORMAL);
+        } catch (Exception e) {
+            log.warn("Error closing {}: {}", adapter.getId(), e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Copy an inbound frame into a servlet message; null for pings and pongs (answered by the server)
+     */
+    private static org.springframework.web.socket.WebSocketMessage<?> copy(WebSocketMessage message) {
+        return switch (message.getType()) {
+            case TEXT -> new TextMessage(message.getPayloadAsText());
+            case BINARY -> {
+                DataBuffer payload = message.getPayload();
+                byte[] bytes = new byte[payload.readableByteCount()];
+                payload.read(bytes);
+                yield new BinaryMessage(bytes);
+            }
+            default -> null;
+        };
+    }
+}
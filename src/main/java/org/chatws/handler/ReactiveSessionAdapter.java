@@ -0,0 +1,152 @@
+package org.chatws.handler;
+
+import org.chatws.config.ChatProperties;
+import org.chatws.service.ChatMetrics;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import reactor.core.publisher.Flux;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.security.Principal;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A WebFlux session seen through the servlet WebSocketSession API, so ChatService and
+ * ChatWebSocketHandler serve both modes. Frames are not written to the connection directly:
+ * sendMessage queues them in the session's outbox, pulled by the reactive send pipeline.
+ * Frame size limits are those of the server (see ReactiveWebConfig) and cannot be changed
+ * per session; the local address and the principal are not available.
+ */
+final class ReactiveSessionAdapter implements WebSocketSession {
+
+    private final org.springframework.web.reactive.socket.WebSocketSession delegate;
+    private volatile ReactiveSessionOutbox outbox;
+
+    ReactiveSessionAdapter(org.springframework.web.reactive.socket.WebSocketSession delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Create the outbound queue of the session (see OutboundDispatcher.register)
+     */
+    SessionOutbox openOutbox(ChatProperties.Outbound settings, ChatMetrics metrics) {
+        outbox = new ReactiveSessionOutbox(this, settings, metrics);
+        return outbox;
+    }
+
+    /**
+     * The frames to send, once the outbox has been opened
+     */
+    Flux<org.springframework.web.reactive.socket.WebSocketMessage> outbound() {
+        return Flux.defer(() -> outbox != null ? outbox.frames() : Flux.empty());
+    }
+
+    /**
+     * Convert an encoded frame for the reactive session; cached binary frames are shared, so their buffer is duplicated
+     */
+    org.springframework.web.reactive.socket.WebSocketMessage toReactive(WebSocketMessage<?> frame) {
+        if (frame instanceof BinaryMessage binary) {
+            return delegate.binaryMessage(factory -> factory.wrap(binary.getPayload().duplicate()));
+        }
+        return delegate.textMessage(((TextMessage) frame).getPayload());
+    }
+
+    @Override
+    public String getId() {
+        return delegate.getId();
+    }
+
+    @Override
+    public URI getUri() {
+        return delegate.getHandshakeInfo().getUri();
+    }
+
+    @Override
+    public HttpHeaders getHandshakeHeaders() {
+        return delegate.getHandshakeInfo().getHeaders();
+    }
+
+    @Override
+    public Map<String, Object> getAttributes() {
+        return delegate.getAttributes();
+    }
+
+    @Override
+    public Principal getPrincipal() {
+        // Only available as a Mono on a reactive session; the chat does not authenticate connections
+        return null;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return null;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return delegate.getHandshakeInfo().getRemoteAddress();
+    }
+
+    @Override
+    public String getAcceptedProtocol() {
+        return delegate.getHandshakeInfo().getSubProtocol();
+    }
+
+    @Override
+    public void setTextMessageSizeLimit(int messageSizeLimit) {
+        throw new UnsupportedOperationException("Frame size limits of reactive sessions are set on the server");
+    }
+
+    @Override
+    public int getTextMessageSizeLimit() {
+        return ReactiveChatWebSocketHandler.MAX_FRAME_PAYLOAD;
+    }
+
+    @Override
+    public void setBinaryMessageSizeLimit(int messageSizeLimit) {
+        throw new UnsupportedOperationException("Frame size limits of reactive sessions are set on the server");
+    }
+
+    @Override
+    public int getBinaryMessageSizeLimit() {
+        return ReactiveChatWebSocketHandler.MAX_FRAME_PAYLOAD;
+    }
+
+    @Override
+    public List<WebSocketExtension> getExtensions() {
+        return List.of();
+    }
+
+    @Override
+    public void sendMessage(WebSocketMessage<?> message) {
+        // Queued like any chat frame: never dropped, subject to the overflow policy
+        ReactiveSessionOutbox target = outbox;
+        if (target == null) {
+            throw new IllegalStateException("The outbox of session " + getId() + " is not open");
+        }
+        target.offer(message, false);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return delegate.isOpen();
+    }
+
+    @Override
+    public void close() {
+        close(CloseStatus.NORMAL);
+    }
+
+    @Override
+    public void close(CloseStatus status) {
+        delegate.close(new org.springframework.web.reactive.socket.CloseStatus(status.getCode(), status.getReason()))
+            .subscribe();
+    }
+}
@@ -0,0 +1,58 @@
+package org.chatws.handler;
+
+import org.chatws.config.ChatProperties;
+import org.chatws.service.ChatMetrics;
+import org.springframework.web.reactive.socket.WebSocketMessage;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Outbound queue of a session in the reactive mode. No writer task: the session's send
+ * pipeline subscribes to frames(), and queued frames are handed to its sink only as far as
+ * the connection has requested them. A slow client's frames stay in this bounded queue, so
+ * the overflow policy applies as it does for servlet sessions.
+ */
+final class ReactiveSessionOutbox extends SessionOutbox {
+
+    private final ReactiveSessionAdapter session;
+    private final AtomicBoolean emitting = new AtomicBoolean();
+    private volatile FluxSink<WebSocketMessage> sink;
+
+    ReactiveSessionOutbox(ReactiveSessionAdapter session, ChatProperties.Outbound settings, ChatMetrics metrics) {
+        super(session, null, settings, metrics);
+        this.session = session;
+    }
+
+    /**
+     * The frames of the session, for the single subscription of its send pipeline
+     */
+    Flux<WebSocketMessage> frames() {
+        return Flux.create(sink -> {
+            this.sink = sink;
+            sink.onRequest(demand -> scheduleDrain());
+        });
+    }
+
+    /**
+     * Emit queued frames while the connection has demand; called when a frame is queued and
+     * when the connection asks for more. The loop picks up frames and demand that arrive
+     * while another thread was emitting.
+     */
+    @Override
+    void scheduleDrain() {
+        FluxSink<WebSocketMessage> target = sink;
+        while (target != null && target.requestedFromDownstream() > 0 && !isEmpty()
+                && emitting.compareAndSet(false, true)) {
+            try {
+                org.springframework.web.socket.WebSocketMessage<?> frame;
+                while (target.requestedFromDownstream() > 0 && (frame = poll()) != null) {
+                    target.next(session.toReactive(frame));
+                }
+            } finally {
+                emitting.set(false);
+            }
+        }
+    }
+}
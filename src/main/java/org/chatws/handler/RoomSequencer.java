@@ -0,0 +1,129 @@
+package org.chatws.handler;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.chatws.config.ChatProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Single-writer lanes for room messages. Every room (or private conversation) is mapped
+ * to one of chat.execution.lanes threads, and its messages are accepted, numbered, stored
+ * and fanned out there one at a time, so every member sees them in the same order.
+ * Different rooms run on different lanes in parallel; nothing is shared between lanes.
+ *
+ * Delivery that has to wait for the store (ACK_AFTER_FLUSH) is chained behind the
+ * deliveries still pending for the room, so it keeps the order without blocking the lane.
+ */
+@Component
+public class RoomSequencer {
+
+    private static final Logger log = LoggerFactory.getLogger(RoomSequencer.class);
+
+    /**
+     * One lane thread and the pending deliveries of its rooms
+     */
+    private static final class Lane {
+
+        private final ExecutorService executor;
+        // Last pending delivery of each room; only touched on the lane's thread
+        private final Map<String, CompletableFuture<Void>> tails = new HashMap<>();
+
+        private Lane(int number) {
+            executor = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, "chat-lane-" + number);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    @Autowired
+    private ChatProperties chatProperties;
+
+    private Lane[] lanes;
+
+    @PostConstruct
+    public void start() {
+        int count = chatProperties.getExecution().getLanes();
+        if (count <= 0) {
+            count = Runtime.getRuntime().availableProcessors();
+        }
+        lanes = new Lane[count];
+        for (int i = 0; i < count; i++) {
+            lanes[i] = new Lane(i + 1);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        for (Lane lane : lanes) {
+            lane.executor.shutdown();
+        }
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    /**
+     * Run a task on the lane of a room; the tasks of one room run one at a time, in the order they were submitted
+     */
+    public void execute(String room, Runnable task) {
+        lane(room).executor.execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.warn("Error in room {}: {}", room, e.getMessage(), e);
+            }
+        });
+    }
+
+    /**
+     * Run a delivery step on the room's lane once ready has completed and every step ordered
+     * before it for the room has run; must be called from a task on that lane.
+     * When nothing is pending and ready is already complete, the step runs right away.
+     * @param step gets the exception ready completed with, or null
+     */
+    public void afterReady(String room, CompletableFuture<?> ready, Consumer<Throwable> step) {
+        Lane lane = lane(room);
+        CompletableFuture<Void> previous = lane.tails.get(room);
+        if (previous == null && ready.isDone()) {
+            step.accept(ready.handle((value, error) -> error).join());
+            return;
+        }
+
+        CompletableFuture<Void> tail = new CompletableFuture<>();
+        lane.tails.put(room, tail);
+        ready.handle((value, error) -> error)
+            .thenCombine(previous != null ? previous : CompletableFuture.completedFuture(null), (error, ignored) -> error)
+            .thenAcceptAsync(error -> {
+                try {
+                    step.accept(error);
+                } catch (RuntimeException e) {
+                    log.warn("Error delivering in room {}: {}", room, e.getMessage(), e);
+                } finally {
+                    lane.tails.remove(room, tail);
+                    tail.complete(null);
+                }
+            }, lane.executor);
+    }
+
+    private Lane lane(String room) {
+        int hash = room == null ? 0 : room.hashCode();
+        // Spread similar room names (room-1, room-2) over the lanes
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        return lanes[Math.floorMod(hash, lanes.length)];
+    }
+}
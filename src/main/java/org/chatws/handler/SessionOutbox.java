@@ -0,0 +1,190 @@
+package org.chatws.handler;
+
+import org.chatws.config.ChatProperties;
+import org.chatws.service.ChatMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded outbound queue of a single WebSocket session.
+ * Frames are written by at most one writer task at a time, so a session is
+ * never written to concurrently and a slow client only delays itself.
+ * In the reactive mode the session pulls its frames instead (see ReactiveSessionOutbox).
+ */
+class SessionOutbox {
+
+    private static final Logger log = LoggerFactory.getLogger(SessionOutbox.class);
+
+    private record Frame(WebSocketMessage<?> message, boolean droppable) {
+    }
+
+    private final WebSocketSession session;
+    private final Executor writer;
+    private final ChatProperties.Outbound settings;
+    private final ChatMetrics metrics;
+
+    private final Queue<Frame> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final AtomicLong droppedFrames = new AtomicLong();
+
+    SessionOutbox(WebSocketSession session, Executor writer, ChatProperties.Outbound settings, ChatMetrics metrics) {
+        this.session = session;
+        this.writer = writer;
+        this.settings = settings;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Queue a frame for delivery, applying the overflow policy when the queue is full
+     */
+    void offer(WebSocketMessage<?> message, boolean droppable) {
+        if (closed.get()) {
+            return;
+        }
+
+        int currentDepth = depth.get();
+        if (droppable && currentDepth >= settings.getDroppableThreshold()) {
+            // Presence and typing updates are superseded by the next one anyway
+            dropped();
+            return;
+        }
+
+        if (currentDepth >= settings.getQueueCapacity() && !makeRoom()) {
+            return;
+        }
+
+        queue.add(new Frame(message, droppable));
+        depth.incrementAndGet();
+        scheduleDrain();
+    }
+
+    /**
+     * Free one slot for a chat frame according to the overflow policy
+     * @return true if the new frame may be queued
+     */
+    private boolean makeRoom() {
+        ChatProperties.OverflowPolicy policy = settings.getOverflowPolicy();
+        if (policy != ChatProperties.OverflowPolicy.DISCONNECT && evictDroppable()) {
+            return true;
+        }
+        if (policy == ChatProperties.OverflowPolicy.DROP) {
+            dropped();
+            return false;
+        }
+        disconnect();
+        return false;
+    }
+
+    private boolean evictDroppable() {
+        for (Frame frame : queue) {
+            if (frame.droppable() && queue.remove(frame)) {
+                depth.decrementAndGet();
+                dropped();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void dropped() {
+        droppedFrames.incrementAndGet();
+        metrics.frameDropped();
+    }
+
+    /**
+     * Start sending the queued frames, unless they are already being sent
+     */
+    void scheduleDrain() {
+        if (draining.compareAndSet(false, true)) {
+            writer.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        try {
+            WebSocketMessage<?> frame;
+            while ((frame = poll()) != null) {
+                if (!session.isOpen()) {
+                    continue;
+                }
+                try {
+                    session.sendMessage(frame);
+                } catch (IOException | IllegalStateException e) {
+                    metrics.sendFailed();
+                    log.debug("Error sending message to {}: {}", session.getId(), e.getMessage());
+                }
+            }
+        } finally {
+            draining.set(false);
+            // A frame may have been queued after the last poll but before the flag was cleared
+            if (!queue.isEmpty()) {
+                scheduleDrain();
+            }
+        }
+    }
+
+    /**
+     * Take the oldest queued frame
+     * @return the frame, or null if the queue is empty
+     */
+    WebSocketMessage<?> poll() {
+        Frame frame = queue.poll();
+        if (frame == null) {
+            return null;
+        }
+        depth.decrementAndGet();
+        return frame.message();
+    }
+
+    boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    private void disconnect() {
+        if (closed.compareAndSet(false, true)) {
+            metrics.slowSessionDisconnected();
+            queue.clear();
+            depth.set(0);
+            try {
+                session.close(CloseStatus.SESSION_NOT_RELIABLE);
+            } catch (IOException e) {
+                log.warn("Error closing slow session: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stop accepting frames once the session has been closed
+     */
+    void close() {
+        closed.set(true);
+        queue.clear();
+        depth.set(0);
+    }
+
+    String getSessionId() {
+        return session.getId();
+    }
+
+    int getDepth() {
+        // The writer may still be decrementing after a close reset the counter
+        return Math.max(0, depth.get());
+    }
+
+    long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+}
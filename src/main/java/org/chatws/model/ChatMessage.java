@@ -1,18 +1,21 @@
 package org.chatws.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Transient;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.time.LocalDateTime;
-import java.util.UUID;
+import java.util.List;
 
 /**
  * Model class for chat messages with support for:
  * - User identification
  * - Timestamps
- * - Message types (public, private)
+ * - Message types (public, private; private messages belong to a conversation, not a room)
  * - Message content
- * - Message editing and deletion
+ * - Message editing and deletion (deleted messages are kept as tombstones)
  * - Typing indicators
  * - Persistence in MongoDB
  */
@@ -27,26 +30,69 @@ public class ChatMessage {
         USERS,      // Active users list update
         TYPING,     // User is typing
         EDIT,       // Edit a message
-        DELETE      // Delete a message
+        DELETE,     // Delete a message
+        PRESENCE,   // Users added to / removed from the room since the previous version
+        HISTORY     // Batch of earlier messages, sent on join
     }
 
     @Id
-    private String id;         // Unique message ID
+    private String id;         // Time-ordered message ID (MessageId), assigned on acceptance
     private MessageType type;
     private String content;
     private String sender;
     private String recipient;  // For private messages
     private String room;       // Chat room identifier
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String conversation;       // Private messages: ConversationId of sender and recipient
+    @JsonIgnore
+    private List<String> participants; // Private messages: both users, for the inbox query
     private LocalDateTime timestamp;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private LocalDateTime editedAt;    // Set when the content was edited
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    private boolean deleted;           // Tombstone flag; deleted messages are never replayed
 
-    // Default constructor for JSON deserialization
+    // Presence protocol (USERS snapshot and PRESENCE delta), not stored
+    @Transient
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Long version;
+    @Transient
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private List<String> added;
+    @Transient
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private List<String> removed;
+
+    // Resume protocol, not stored: the position of a message in its room's history on this node
+    // (1, 2, ...), and in a JOIN the history epoch and last position a reconnecting client has seen
+    @Transient
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Long seq;
+    @Transient
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String epoch;
+
+    // Messages of a HISTORY batch, oldest first; not stored
+    @Transient
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private List<ChatMessage> messages;
+
+    // Encoded JSON frame, cached once the message is accepted into history
+    @Transient
+    @JsonIgnore
+    private volatile String encodedFrame;
+    // Encoded CBOR frame of a message in history, cached on its first binary send
+    @Transient
+    @JsonIgnore
+    private volatile byte[] encodedCbor;
+
+    // Default constructor for JSON deserialization; id and timestamp are assigned
+    // when the server accepts the message (see MessageIdGenerator)
     public ChatMessage() {
-        this.id = UUID.randomUUID().toString();
-        this.timestamp = LocalDateTime.now();
     }
 
+    // Server notices (not stored) carry a timestamp but no id
     public ChatMessage(MessageType type, String content, String sender) {
-        this.id = UUID.randomUUID().toString();
         this.type = type;
         this.content = content;
         this.sender = sender;
@@ -78,6 +124,25 @@ public class ChatMessage {
         this.room = room;
     }
 
+    // Copy of a message for another node's history, without its sequence number and cached frames
+    public ChatMessage(ChatMessage other) {
+        this.id = other.id;
+        this.type = other.type;
+        this.content = other.content;
+        this.sender = other.sender;
+        this.recipient = other.recipient;
+        this.room = other.room;
+        this.conversation = other.conversation;
+        this.participants = other.participants;
+        this.timestamp = other.timestamp;
+        this.editedAt = other.editedAt;
+        this.deleted = other.deleted;
+        this.version = other.version;
+        this.added = other.added;
+        this.removed = other.removed;
+        this.messages = other.messages;
+    }
+
     // Getters and setters
     public String getId() {
         return id;
@@ -101,6 +166,8 @@ public class ChatMessage {
 
     public void setContent(String content) {
         this.content = content;
+        // The cached frames carry the old content
+        clearEncodedFrames();
     }
 
     public String getSender() {
@@ -119,6 +186,22 @@ public class ChatMessage {
         this.recipient = recipient;
     }
 
+    public String getConversation() {
+        return conversation;
+    }
+
+    public void setConversation(String conversation) {
+        this.conversation = conversation;
+    }
+
+    public List<String> getParticipants() {
+        return participants;
+    }
+
+    public void setParticipants(List<String> participants) {
+        this.participants = participants;
+    }
+
     public LocalDateTime getTimestamp() {
         return timestamp;
     }
@@ -134,4 +217,90 @@ public class ChatMessage {
     public void setRoom(String room) {
         this.room = room;
     }
+
+    public LocalDateTime getEditedAt() {
+        return editedAt;
+    }
+
+    public void setEditedAt(LocalDateTime editedAt) {
+        this.editedAt = editedAt;
+        clearEncodedFrames();
+    }
+
+    public boolean isDeleted() {
+        return deleted;
+    }
+
+    public void setDeleted(boolean deleted) {
+        this.deleted = deleted;
+    }
+
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
+    public List<String> getAdded() {
+        return added;
+    }
+
+    public void setAdded(List<String> added) {
+        this.added = added;
+    }
+
+    public List<String> getRemoved() {
+        return removed;
+    }
+
+    public void setRemoved(List<String> removed) {
+        this.removed = removed;
+    }
+
+    public Long getSeq() {
+        return seq;
+    }
+
+    public void setSeq(Long seq) {
+        this.seq = seq;
+    }
+
+    public String getEpoch() {
+        return epoch;
+    }
+
+    public void setEpoch(String epoch) {
+        this.epoch = epoch;
+    }
+
+    public List<ChatMessage> getMessages() {
+        return messages;
+    }
+
+    public void setMessages(List<ChatMessage> messages) {
+        this.messages = messages;
+    }
+
+    public String getEncodedFrame() {
+        return encodedFrame;
+    }
+
+    public void setEncodedFrame(String encodedFrame) {
+        this.encodedFrame = encodedFrame;
+    }
+
+    public byte[] getEncodedCbor() {
+        return encodedCbor;
+    }
+
+    public void setEncodedCbor(byte[] encodedCbor) {
+        this.encodedCbor = encodedCbor;
+    }
+
+    private void clearEncodedFrames() {
+        this.encodedFrame = null;
+        this.encodedCbor = null;
+    }
 }
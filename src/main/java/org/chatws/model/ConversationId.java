@@ -0,0 +1,43 @@
+package org.chatws.model;
+
+import java.util.List;
+
+/**
+ * Ids of private conversations: the two participants in sorted order, joined by '|'.
+ * '%' and '|' in usernames are escaped, so every pair has exactly one id and the
+ * participants can be read back from it.
+ */
+public final class ConversationId {
+
+    private ConversationId() {
+    }
+
+    public static String of(String user, String peer) {
+        String first = user.compareTo(peer) <= 0 ? user : peer;
+        String second = first == user ? peer : user;
+        return escape(first) + '|' + escape(second);
+    }
+
+    /**
+     * The two participants of a conversation id, in sorted order
+     */
+    public static List<String> participants(String id) {
+        int separator = id.indexOf('|');
+        if (separator < 0) {
+            throw new IllegalArgumentException("Not a conversation id: " + id);
+        }
+        return List.of(unescape(id.substring(0, separator)), unescape(id.substring(separator + 1)));
+    }
+
+    public static boolean isParticipant(String id, String username) {
+        return participants(id).contains(username);
+    }
+
+    private static String escape(String username) {
+        return username.replace("%", "%25").replace("|", "%7C");
+    }
+
+    private static String unescape(String part) {
+        return part.replace("%7C", "|").replace("%25", "%");
+    }
+}
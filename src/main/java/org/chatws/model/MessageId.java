@@ -0,0 +1,97 @@
+package org.chatws.model;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+
+/**
+ * Time-ordered message ids: 48 bits of epoch milliseconds, a 16-bit sequence within the
+ * millisecond and 32 bits identifying the node, written as 20 characters of Crockford
+ * base32. Ids sort like the numbers they encode, so ordering by id orders messages by
+ * the time they were accepted.
+ */
+public final class MessageId {
+
+    public static final int LENGTH = 20;
+
+    private static final char[] ALPHABET = "0123456789ABCDEFGHJKMNPQRSTVWXYZ".toCharArray();
+    private static final int[] VALUES = new int[128];
+
+    static {
+        Arrays.fill(VALUES, -1);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            VALUES[ALPHABET[i]] = i;
+        }
+    }
+
+    private MessageId() {
+    }
+
+    /**
+     * Encode an id
+     * @param clock epoch milliseconds in the upper 48 bits, the sequence in the lower 16
+     * @param node bits identifying the node
+     */
+    public static String encode(long clock, int node) {
+        long low = node & 0xFFFFFFFFL;
+        char[] chars = new char[LENGTH];
+        // 96 bits in 20 digits of 5 bits, most significant first (the top 4 bits are always 0)
+        for (int i = 0; i < LENGTH; i++) {
+            int shift = 5 * (LENGTH - 1 - i);
+            long digit;
+            if (shift >= 32) {
+                digit = clock >>> (shift - 32);
+            } else if (shift > 27) {
+                digit = (low >>> shift) | (clock << (32 - shift));
+            } else {
+                digit = low >>> shift;
+            }
+            chars[i] = ALPHABET[(int) (digit & 31)];
+        }
+        return new String(chars);
+    }
+
+    public static String of(long epochMillis, int sequence, int node) {
+        return encode(epochMillis << 16 | (sequence & 0xFFFF), node);
+    }
+
+    /**
+     * The smallest id of a point in time; every message accepted at or after it has a larger id
+     */
+    public static String lowerBound(LocalDateTime timestamp) {
+        return of(epochMillis(timestamp), 0, 0);
+    }
+
+    /**
+     * Milliseconds since the epoch a (zone-less) timestamp of this server stands for
+     */
+    public static long epochMillis(LocalDateTime timestamp) {
+        return timestamp.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * Epoch milliseconds of an id
+     * @return the time, or -1 if the string is not a message id (e.g. a UUID of an older message)
+     */
+    public static long epochMillis(String id) {
+        if (id == null || id.length() != LENGTH) {
+            return -1;
+        }
+        long clock = 0;
+        long low = 0;
+        for (int i = 0; i < LENGTH; i++) {
+            char c = id.charAt(i);
+            int digit = c < VALUES.length ? VALUES[c] : -1;
+            if (digit < 0 || (i == 0 && digit > 1)) {
+                return -1;
+            }
+            clock = (clock << 5) | (low >>> 27);
+            low = ((low << 5) | digit) & 0xFFFFFFFFL;
+        }
+        return clock >>> 16;
+    }
+
+    public static boolean isMessageId(String id) {
+        return epochMillis(id) >= 0;
+    }
+}
@@ -0,0 +1,26 @@
+package org.chatws.model;
+
+/**
+ * Encodings of WebSocket frames, negotiated through the Sec-WebSocket-Protocol header
+ */
+public enum WireFormat {
+    JSON("chatws.json"),  // Text frames; also used when the client asks for no subprotocol
+    CBOR("chatws.cbor");  // Binary frames (RFC 8949) with the same fields as JSON
+
+    private final String subProtocol;
+
+    WireFormat(String subProtocol) {
+        this.subProtocol = subProtocol;
+    }
+
+    public String getSubProtocol() {
+        return subProtocol;
+    }
+
+    /**
+     * Get the format of a negotiated subprotocol (JSON if none was negotiated)
+     */
+    public static WireFormat fromSubProtocol(String subProtocol) {
+        return CBOR.subProtocol.equals(subProtocol) ? CBOR : JSON;
+    }
+}
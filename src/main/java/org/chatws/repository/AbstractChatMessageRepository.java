@@ -0,0 +1,128 @@
+package org.chatws.repository;
+
+import org.chatws.model.ChatMessage;
+import org.springframework.data.domain.Example;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.repository.query.FluentQuery;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Function;
+
+/**
+ * Base class for ChatMessageRepository implementations that do not use MongoDB.
+ * The generic repository methods are built on a few primitives; query by example
+ * is not supported.
+ */
+public abstract class AbstractChatMessageRepository implements ChatMessageRepository {
+
+    @Override
+    public <S extends ChatMessage> List<S> insert(Iterable<S> entities) {
+        List<S> inserted = new ArrayList<>();
+        for (S entity : entities) {
+            inserted.add(insert(entity));
+        }
+        return inserted;
+    }
+
+    @Override
+    public <S extends ChatMessage> List<S> saveAll(Iterable<S> entities) {
+        List<S> saved = new ArrayList<>();
+        for (S entity : entities) {
+            saved.add(save(entity));
+        }
+        return saved;
+    }
+
+    @Override
+    public boolean existsById(String id) {
+        return findById(id).isPresent();
+    }
+
+    @Override
+    public List<ChatMessage> findAllById(Iterable<String> ids) {
+        List<ChatMessage> found = new ArrayList<>();
+        for (String id : ids) {
+            findById(id).ifPresent(found::add);
+        }
+        return found;
+    }
+
+    @Override
+    public List<ChatMessage> findAll(Sort sort) {
+        if (sort.isSorted()) {
+            throw new UnsupportedOperationException("Sorting is not supported by " + getClass().getSimpleName());
+        }
+        return findAll();
+    }
+
+    @Override
+    public Page<ChatMessage> findAll(Pageable pageable) {
+        List<ChatMessage> all = findAll(pageable.getSort());
+        if (pageable.isUnpaged()) {
+            return new PageImpl<>(all);
+        }
+        int from = (int) Math.min(pageable.getOffset(), all.size());
+        int to = Math.min(from + pageable.getPageSize(), all.size());
+        return new PageImpl<>(all.subList(from, to), pageable, all.size());
+    }
+
+    @Override
+    public void delete(ChatMessage entity) {
+        deleteById(entity.getId());
+    }
+
+    @Override
+    public void deleteAllById(Iterable<? extends String> ids) {
+        ids.forEach(this::deleteById);
+    }
+
+    @Override
+    public void deleteAll(Iterable<? extends ChatMessage> entities) {
+        entities.forEach(this::delete);
+    }
+
+    @Override
+    public <S extends ChatMessage> Optional<S> findOne(Example<S> example) {
+        throw queryByExample();
+    }
+
+    @Override
+    public <S extends ChatMessage> List<S> findAll(Example<S> example) {
+        throw queryByExample();
+    }
+
+    @Override
+    public <S extends ChatMessage> List<S> findAll(Example<S> example, Sort sort) {
+        throw queryByExample();
+    }
+
+    @Override
+    public <S extends ChatMessage> Page<S> findAll(Example<S> example, Pageable pageable) {
+        throw queryByExample();
+    }
+
+    @Override
+    public <S extends ChatMessage> long count(Example<S> example) {
+        throw queryByExample();
+    }
+
+    @Override
+    public <S extends ChatMessage> boolean exists(Example<S> example) {
+        throw queryByExample();
+    }
+
+    @Override
+    public <S extends ChatMessage, R> R findBy(Example<S> example,
+                                               Function<FluentQuery.FetchableFluentQuery<S>, R> queryFunction) {
+        throw queryByExample();
+    }
+
+    private UnsupportedOperationException queryByExample() {
+        return new UnsupportedOperationException("Query by example is not supported by " + getClass().getSimpleName());
+    }
+}
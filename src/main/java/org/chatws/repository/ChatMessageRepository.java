@@ -1,7 +1,9 @@
 package org.chatws.repository;
 
 import org.chatws.model.ChatMessage;
+import org.springframework.data.domain.Limit;
 import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.data.mongodb.repository.Query;
 import org.springframework.stereotype.Repository;
 
 import java.util.List;
@@ -11,7 +13,7 @@ import java.util.List;
  * Provides methods for saving and retrieving messages from MongoDB
  */
 @Repository
-public interface ChatMessageRepository extends MongoRepository<ChatMessage, String> {
+public interface ChatMessageRepository extends MongoRepository<ChatMessage, String>, ChatMessageRepositoryCustom {
     
     /**
      * Find messages by room
@@ -21,16 +23,76 @@ public interface ChatMessageRepository extends MongoRepository<ChatMessage, Stri
     List<ChatMessage> findByRoom(String room);
     
     /**
-     * Find messages by room ordered by timestamp (descending)
+     * Find messages by room, newest first (ids are time-ordered)
      * @param room the room identifier
-     * @return list of messages in the room ordered by timestamp
+     * @return list of messages in the room ordered by id
      */
-    List<ChatMessage> findByRoomOrderByTimestampDesc(String room);
-    
+    List<ChatMessage> findByRoomOrderByIdDesc(String room);
+
+    /**
+     * Find the newest messages of a room, skipping deleted ones (served by the room/id index)
+     * @param room the room identifier
+     * @param limit maximum number of messages to return
+     * @return newest messages first
+     */
+    @Query(value = "{ 'room': ?0, 'deleted': { '$ne': true } }", sort = "{ '_id': -1 }")
+    List<ChatMessage> findVisibleByRoom(String room, Limit limit);
+
+    /**
+     * Find the messages of a room that come before a given id (keyset pagination on the
+     * time-ordered id), skipping deleted ones
+     * @param room the room identifier
+     * @param id exclusive upper bound: the id of the cursor message, or MessageId.lowerBound of a time
+     * @param limit maximum number of messages to return
+     * @return newest messages first
+     */
+    @Query(value = "{ 'room': ?0, '_id': { '$lt': ?1 }, 'deleted': { '$ne': true } }", sort = "{ '_id': -1 }")
+    List<ChatMessage> findVisibleByRoomBefore(String room, String id, Limit limit);
+
+    /**
+     * Find the newest messages of a private conversation, skipping deleted ones
+     * (served by the conversation_id index)
+     * @param conversation the ConversationId of the two participants
+     * @param limit maximum number of messages to return
+     * @return newest messages first
+     */
+    @Query(value = "{ 'conversation': ?0, 'deleted': { '$ne': true } }", sort = "{ '_id': -1 }")
+    List<ChatMessage> findVisibleByConversation(String conversation, Limit limit);
+
+    /**
+     * Find the messages of a private conversation that come before a given id, skipping deleted ones
+     * @param conversation the ConversationId of the two participants
+     * @param id exclusive upper bound: the id of the cursor message
+     * @param limit maximum number of messages to return
+     * @return newest messages first
+     */
+    @Query(value = "{ 'conversation': ?0, '_id': { '$lt': ?1 }, 'deleted': { '$ne': true } }", sort = "{ '_id': -1 }")
+    List<ChatMessage> findVisibleByConversationBefore(String conversation, String id, Limit limit);
+
+    /**
+     * Find the newest private messages a user sent or received, over all their conversations,
+     * skipping deleted ones (served by the participants_id index)
+     * @param username the user
+     * @param limit maximum number of messages to return
+     * @return newest messages first
+     */
+    @Query(value = "{ 'participants': ?0, 'deleted': { '$ne': true } }", sort = "{ '_id': -1 }")
+    List<ChatMessage> findVisibleByParticipant(String username, Limit limit);
+
+    /**
+     * Find the private messages of a user that come before a given id, skipping deleted ones
+     * @param username the user
+     * @param id exclusive upper bound: the id of the cursor message
+     * @param limit maximum number of messages to return
+     * @return newest messages first
+     */
+    @Query(value = "{ 'participants': ?0, '_id': { '$lt': ?1 }, 'deleted': { '$ne': true } }", sort = "{ '_id': -1 }")
+    List<ChatMessage> findVisibleByParticipantBefore(String username, String id, Limit limit);
+
     /**
      * Find messages by sender
      * @param sender the sender username
      * @return list of messages sent by the user
      */
     List<ChatMessage> findBySender(String sender);
-}
\ No newline at end of file
+}
@@ -0,0 +1,42 @@
+package org.chatws.repository;
+
+import java.time.LocalDateTime;
+
+/**
+ * Repository operations that are not derived from method names
+ */
+public interface ChatMessageRepositoryCustom {
+
+    /**
+     * Create the indexes the message queries rely on (no-op if they already exist)
+     */
+    void ensureIndexes();
+
+    /**
+     * Give messages stored with a random UUID a time-ordered id derived from their timestamp,
+     * so they sort correctly among newer messages. Each message is inserted under its new id,
+     * then removed under the old one: not atomic, but safe to run again after an interruption
+     * and on several nodes at once, as the new id is derived from the old one.
+     * Opt-in (chat.persistence.migrate-legacy-ids), since it scans for ids of the old shape
+     * @return the number of messages that were given a new id
+     */
+    long migrateLegacyIds();
+
+    /**
+     * Replace the content of a stored message without rewriting the document
+     * @param id the message id
+     * @param sender only messages of this sender are changed
+     * @param content the new content
+     * @param editedAt time of the edit
+     * @return true if a (not deleted) message matched
+     */
+    boolean markEdited(String id, String sender, String content, LocalDateTime editedAt);
+
+    /**
+     * Flag a stored message as deleted (tombstone)
+     * @param id the message id
+     * @param sender only messages of this sender are changed
+     * @return true if a (not yet deleted) message matched
+     */
+    boolean markDeleted(String id, String sender);
+}
@@ -0,0 +1,108 @@
+package org.chatws.repository;
+
+import org.chatws.model.ChatMessage;
+import org.chatws.model.MessageId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.IndexOperations;
+import org.springframework.data.mongodb.core.index.PartialIndexFilter;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * MongoTemplate based implementation of ChatMessageRepositoryCustom
+ */
+public class ChatMessageRepositoryImpl implements ChatMessageRepositoryCustom {
+
+    // Index of the timestamp-ordered queries, replaced by room_id
+    private static final String LEGACY_INDEX = "room_timestamp";
+    private static final String MESSAGE_ID = "^[0-9A-HJKMNP-TV-Z]{" + MessageId.LENGTH + "}$";
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Override
+    public void ensureIndexes() {
+        // Room history is always read newest first; ids are time-ordered, so no timestamp is needed
+        IndexOperations indexes = mongoTemplate.indexOps(ChatMessage.class);
+        indexes.createIndex(new Index()
+            .on("room", Sort.Direction.ASC)
+            .on("_id", Sort.Direction.DESC)
+            .named("room_id"));
+        // Private messages have no room: one index per conversation, one for each user's inbox
+        // (participants is an array, so every message is indexed under both users)
+        indexes.createIndex(new Index()
+            .on("conversation", Sort.Direction.ASC)
+            .on("_id", Sort.Direction.DESC)
+            .partial(PartialIndexFilter.of(Criteria.where("conversation").exists(true)))
+            .named("conversation_id"));
+        indexes.createIndex(new Index()
+            .on("participants", Sort.Direction.ASC)
+            .on("_id", Sort.Direction.DESC)
+            .partial(PartialIndexFilter.of(Criteria.where("participants").exists(true)))
+            .named("participants_id"));
+        if (indexes.getIndexInfo().stream().anyMatch(index -> LEGACY_INDEX.equals(index.getName()))) {
+            indexes.dropIndex(LEGACY_INDEX);
+        }
+    }
+
+    @Override
+    public long migrateLegacyIds() {
+        Query legacy = new Query(Criteria.where("_id").not().regex(MESSAGE_ID));
+        long migrated = 0;
+        try (Stream<ChatMessage> messages = mongoTemplate.stream(legacy, ChatMessage.class)) {
+            for (ChatMessage message : (Iterable<ChatMessage>) messages::iterator) {
+                String legacyId = message.getId();
+                message.setId(legacyId(message));
+                try {
+                    mongoTemplate.insert(message);
+                    migrated++;
+                } catch (DuplicateKeyException e) {
+                    // Another node migrated this message at the same time
+                }
+                mongoTemplate.remove(new Query(Criteria.where("_id").is(legacyId)), ChatMessage.class);
+            }
+        }
+        return migrated;
+    }
+
+    /**
+     * Time-ordered id of a legacy message: its timestamp, with sequence and node bits taken
+     * from a hash of the old id, so every node derives the same new id. Node bits are never
+     * 0 for ids handed out by a node, but a hash can be; a clash needs the same millisecond too
+     */
+    private static String legacyId(ChatMessage message) {
+        long millis = message.getTimestamp() != null ? MessageId.epochMillis(message.getTimestamp()) : 0;
+        long hash = UUID.nameUUIDFromBytes(message.getId().getBytes(StandardCharsets.UTF_8)).getMostSignificantBits();
+        return MessageId.of(millis, (int) (hash >>> 48), (int) hash);
+    }
+
+    @Override
+    public boolean markEdited(String id, String sender, String content, LocalDateTime editedAt) {
+        // Targeted $set on the _id index; the rest of the document is left alone
+        Update update = new Update().set("content", content).set("editedAt", editedAt);
+        return mongoTemplate.updateFirst(ownMessage(id, sender), update, ChatMessage.class).getMatchedCount() > 0;
+    }
+
+    @Override
+    public boolean markDeleted(String id, String sender) {
+        Update update = new Update().set("deleted", true);
+        return mongoTemplate.updateFirst(ownMessage(id, sender), update, ChatMessage.class).getMatchedCount() > 0;
+    }
+
+    /**
+     * Query for a live message of the given sender
+     */
+    private Query ownMessage(String id, String sender) {
+        return new Query(Criteria.where("_id").is(id).and("sender").is(sender).and("deleted").ne(true));
+    }
+}
@@ -0,0 +1,262 @@
+package org.chatws.repository;
+
+import org.chatws.model.ChatMessage;
+import org.chatws.model.ConversationId;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Limit;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * ChatMessageRepository kept in memory (chat.storage=memory), for load tests and
+ * development without MongoDB. Nothing survives a restart.
+ * Messages are stored as copies, like documents, and indexed per room or private
+ * conversation newest first (the order of the room_id and conversation_id indexes).
+ */
+@Repository
+@ConditionalOnProperty(name = "chat.storage", havingValue = "memory")
+public class InMemoryChatMessageRepository extends AbstractChatMessageRepository {
+
+    private final Map<String, ChatMessage> messages = new ConcurrentHashMap<>();
+    // Ids of the messages of each room, newest first (ids are time-ordered)
+    private final Map<String, NavigableSet<String>> rooms = new ConcurrentHashMap<>();
+    // Ids of the messages of each private conversation, newest first
+    private final Map<String, NavigableSet<String>> conversations = new ConcurrentHashMap<>();
+
+    @Override
+    public List<ChatMessage> findByRoom(String room) {
+        return findByRoomOrderByIdDesc(room).reversed();
+    }
+
+    @Override
+    public List<ChatMessage> findByRoomOrderByIdDesc(String room) {
+        return collect(room(room), message -> true, Limit.unlimited());
+    }
+
+    @Override
+    public List<ChatMessage> findVisibleByRoom(String room, Limit limit) {
+        return collect(room(room), message -> !message.isDeleted(), limit);
+    }
+
+    @Override
+    public List<ChatMessage> findVisibleByRoomBefore(String room, String id, Limit limit) {
+        return collect(room(room).tailSet(id, false), message -> !message.isDeleted(), limit);
+    }
+
+    @Override
+    public List<ChatMessage> findVisibleByConversation(String conversation, Limit limit) {
+        return collect(conversation(conversation), message -> !message.isDeleted(), limit);
+    }
+
+    @Override
+    public List<ChatMessage> findVisibleByConversationBefore(String conversation, String id, Limit limit) {
+        return collect(conversation(conversation).tailSet(id, false), message -> !message.isDeleted(), limit);
+    }
+
+    @Override
+    public List<ChatMessage> findVisibleByParticipant(String username, Limit limit) {
+        return inbox(username, index -> index, limit);
+    }
+
+    @Override
+    public List<ChatMessage> findVisibleByParticipantBefore(String username, String id, Limit limit) {
+        return inbox(username, index -> index.tailSet(id, false), limit);
+    }
+
+    @Override
+    public List<ChatMessage> findBySender(String sender) {
+        return messages.values().stream()
+            .filter(message -> sender.equals(message.getSender()))
+            .map(InMemoryChatMessageRepository::copy)
+            .toList();
+    }
+
+    @Override
+    public void ensureIndexes() {
+        // The room index is maintained on every write
+    }
+
+    @Override
+    public long migrateLegacyIds() {
+        // Nothing is stored before the server starts
+        return 0;
+    }
+
+    @Override
+    public boolean markEdited(String id, String sender, String content, LocalDateTime editedAt) {
+        return update(id, sender, message -> {
+            message.setContent(content);
+            message.setEditedAt(editedAt);
+        });
+    }
+
+    @Override
+    public boolean markDeleted(String id, String sender) {
+        return update(id, sender, message -> message.setDeleted(true));
+    }
+
+    @Override
+    public <S extends ChatMessage> S insert(S entity) {
+        if (messages.putIfAbsent(entity.getId(), copy(entity)) != null) {
+            throw new DuplicateKeyException("Duplicate message id " + entity.getId());
+        }
+        index(entity);
+        return entity;
+    }
+
+    @Override
+    public <S extends ChatMessage> S save(S entity) {
+        ChatMessage previous = messages.put(entity.getId(), copy(entity));
+        if (previous != null) {
+            unindex(previous);
+        }
+        index(entity);
+        return entity;
+    }
+
+    @Override
+    public Optional<ChatMessage> findById(String id) {
+        return Optional.ofNullable(messages.get(id)).map(InMemoryChatMessageRepository::copy);
+    }
+
+    @Override
+    public boolean existsById(String id) {
+        return messages.containsKey(id);
+    }
+
+    @Override
+    public List<ChatMessage> findAll() {
+        return messages.values().stream().map(InMemoryChatMessageRepository::copy).toList();
+    }
+
+    @Override
+    public long count() {
+        return messages.size();
+    }
+
+    @Override
+    public void deleteById(String id) {
+        ChatMessage removed = messages.remove(id);
+        if (removed != null) {
+            unindex(removed);
+        }
+    }
+
+    @Override
+    public void deleteAll() {
+        messages.clear();
+        rooms.clear();
+        conversations.clear();
+    }
+
+    /**
+     * Apply a change to a live message of the given sender; the stored copy is replaced, never mutated
+     */
+    private boolean update(String id, String sender, Consumer<ChatMessage> change) {
+        boolean[] matched = new boolean[1];
+        messages.computeIfPresent(id, (key, message) -> {
+            if (message.isDeleted() || !Objects.equals(message.getSender(), sender)) {
+                return message;
+            }
+            ChatMessage updated = copy(message);
+            change.accept(updated);
+            matched[0] = true;
+            return updated;
+        });
+        return matched[0];
+    }
+
+    private NavigableSet<String> room(String room) {
+        NavigableSet<String> index = rooms.get(room == null ? "" : room);
+        return index != null ? index : Collections.emptyNavigableSet();
+    }
+
+    private NavigableSet<String> conversation(String conversation) {
+        NavigableSet<String> index = conversations.get(conversation);
+        return index != null ? index : Collections.emptyNavigableSet();
+    }
+
+    private void index(ChatMessage message) {
+        if (message.getConversation() != null) {
+            conversations.computeIfAbsent(message.getConversation(),
+                    key -> new ConcurrentSkipListSet<>(Comparator.reverseOrder()))
+                .add(message.getId());
+            return;
+        }
+        rooms.computeIfAbsent(message.getRoom() == null ? "" : message.getRoom(),
+                key -> new ConcurrentSkipListSet<>(Comparator.reverseOrder()))
+            .add(message.getId());
+    }
+
+    private void unindex(ChatMessage message) {
+        NavigableSet<String> index = message.getConversation() != null
+            ? conversations.get(message.getConversation())
+            : rooms.get(message.getRoom() == null ? "" : message.getRoom());
+        if (index != null) {
+            index.remove(message.getId());
+        }
+    }
+
+    /**
+     * The newest visible messages over all conversations of a user: a page of each
+     * conversation (narrowed by the given view), merged by id
+     */
+    private List<ChatMessage> inbox(String username, UnaryOperator<NavigableSet<String>> view, Limit limit) {
+        List<ChatMessage> result = new ArrayList<>();
+        conversations.forEach((conversation, index) -> {
+            if (ConversationId.isParticipant(conversation, username)) {
+                result.addAll(collect(view.apply(index), message -> !message.isDeleted(), limit));
+            }
+        });
+        result.sort(Comparator.comparing(ChatMessage::getId).reversed());
+        return limit.isLimited() && result.size() > limit.max() ? result.subList(0, limit.max()) : result;
+    }
+
+    /**
+     * Copies of the indexed messages that pass the filter, in index order
+     */
+    private List<ChatMessage> collect(NavigableSet<String> index, Predicate<ChatMessage> filter, Limit limit) {
+        int max = limit.isLimited() ? limit.max() : Integer.MAX_VALUE;
+        List<ChatMessage> result = new ArrayList<>();
+        for (String id : index) {
+            if (result.size() >= max) {
+                break;
+            }
+            ChatMessage message = messages.get(id);
+            if (message != null && filter.test(message)) {
+                result.add(copy(message));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Copy of the stored fields of a message (what a document would hold)
+     */
+    private static ChatMessage copy(ChatMessage message) {
+        ChatMessage copy = new ChatMessage(message.getId(), message.getType(), message.getContent(),
+            message.getSender(), message.getRoom());
+        copy.setRecipient(message.getRecipient());
+        copy.setConversation(message.getConversation());
+        copy.setParticipants(message.getParticipants());
+        copy.setTimestamp(message.getTimestamp());
+        copy.setEditedAt(message.getEditedAt());
+        copy.setDeleted(message.isDeleted());
+        return copy;
+    }
+}
@@ -0,0 +1,404 @@
+package org.chatws.repository;
+
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.chatws.config.ChatProperties;
+import org.chatws.model.ChatMessage;
+import org.chatws.model.ConversationId;
+import org.chatws.model.MessageId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.data.domain.Limit;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Repository;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * ChatMessageRepository on a memory-mapped append-only journal on local disk
+ * (chat.storage=journal), for single-node deployments without MongoDB.
+ *
+ * Inserts, edits and deletes are appended as records (messages encoded as CBOR); edits
+ * and deletes are also kept in memory as revisions applied when a message is read.
+ * Room pages are read by walking the room's insert chain newest first, starting at the
+ * head or, for a page before a cursor, at the nearest point of the sparse room index.
+ * A private conversation is kept as a room of its own, keyed by its id after a NUL
+ * character (which a room name cannot start with); a user's inbox merges the chains of
+ * the conversations they take part in.
+ * The journal is append-only: save and the delete methods are not supported.
+ */
+@Repository
+@ConditionalOnProperty(name = "chat.storage", havingValue = "journal")
+public class JournalChatMessageRepository extends AbstractChatMessageRepository {
+
+    private static final Logger log = LoggerFactory.getLogger(JournalChatMessageRepository.class);
+
+    // Ids are time-ordered
+    private static final Comparator<ChatMessage> NEWEST_FIRST = Comparator.comparing(ChatMessage::getId).reversed();
+    private static final String CONVERSATION = "\u0000";
+
+    /**
+     * Edit or delete of a stored message; the time is the message's, for retention
+     */
+    private record Revision(String content, LocalDateTime editedAt, boolean deleted, long timeMillis) {
+
+        Revision then(Revision next) {
+            return new Revision(next.content() != null ? next.content() : content,
+                next.editedAt() != null ? next.editedAt() : editedAt,
+                deleted || next.deleted(), timeMillis);
+        }
+    }
+
+    /**
+     * Payload of an edit record
+     */
+    private record Edit(String content, LocalDateTime editedAt) {
+    }
+
+    @Autowired
+    private ChatProperties chatProperties;
+
+    @Autowired
+    private CBORMapper cborMapper;
+
+    private final Map<String, Revision> revisions = new ConcurrentHashMap<>();
+    private MessageJournal journal;
+
+    @PostConstruct
+    public void open() throws IOException {
+        journal = MessageJournal.open(chatProperties.getJournal(), this::replay);
+    }
+
+    @PreDestroy
+    public void close() {
+        journal.close();
+    }
+
+    private void replay(MessageJournal.Entry entry) {
+        if (entry.kind() == MessageJournal.EDIT) {
+            Edit edit = decode(entry.payload(), Edit.class);
+            if (edit != null) {
+                revise(entry.id(), new Revision(edit.content(), edit.editedAt(), false, entry.timeMillis()));
+            }
+        } else if (entry.kind() == MessageJournal.DELETE) {
+            revise(entry.id(), new Revision(null, null, true, entry.timeMillis()));
+        }
+    }
+
+    /**
+     * Force appended records to disk under the INTERVAL fsync policy
+     */
+    @Scheduled(fixedDelayString = "${chat.journal.fsync-interval:1s}")
+    public void flush() {
+        if (chatProperties.getJournal().getFsync() == ChatProperties.FsyncPolicy.INTERVAL) {
+            journal.force();
+        }
+    }
+
+    /**
+     * Delete the segments past the retention period, and the revisions of their messages
+     */
+    @Scheduled(fixedDelayString = "${chat.journal.retention-check:10m}")
+    public void expire() {
+        if (chatProperties.getJournal().getRetention().isZero()) {
+            return;
+        }
+        try {
+            long newestExpired = journal.expire(
+                System.currentTimeMillis() - chatProperties.getJournal().getRetention().toMillis());
+            if (newestExpired != Long.MIN_VALUE) {
+                revisions.values().removeIf(revision -> revision.timeMillis() <= newestExpired);
+            }
+        } catch (IOException e) {
+            log.warn("Error deleting expired journal segments: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public List<ChatMessage> findByRoom(String room) {
+        return findByRoomOrderByIdDesc(room).reversed();
+    }
+
+    @Override
+    public List<ChatMessage> findByRoomOrderByIdDesc(String room) {
+        MessageJournal.RoomIndex index = journal.room(room == null ? "" : room);
+        return index == null ? List.of() : walk(index.head(), entry -> true, message -> true, Limit.unlimited());
+    }
+
+    @Override
+    public List<ChatMessage> findVisibleByRoom(String room, Limit limit) {
+        MessageJournal.RoomIndex index = journal.room(room == null ? "" : room);
+        return index == null ? List.of() : walk(index.head(), entry -> true, message -> !message.isDeleted(), limit);
+    }
+
+    @Override
+    public List<ChatMessage> findVisibleByRoomBefore(String room, String id, Limit limit) {
+        MessageJournal.RoomIndex index = journal.room(room == null ? "" : room);
+        if (index == null) {
+            return List.of();
+        }
+        long before = MessageId.epochMillis(id);
+        return walk(before >= 0 ? index.seek(before) : index.head(),
+            entry -> entry.id().compareTo(id) < 0, message -> !message.isDeleted(), limit);
+    }
+
+    @Override
+    public List<ChatMessage> findVisibleByConversation(String conversation, Limit limit) {
+        return findVisibleByRoom(CONVERSATION + conversation, limit);
+    }
+
+    @Override
+    public List<ChatMessage> findVisibleByConversationBefore(String conversation, String id, Limit limit) {
+        return findVisibleByRoomBefore(CONVERSATION + conversation, id, limit);
+    }
+
+    @Override
+    public List<ChatMessage> findVisibleByParticipant(String username, Limit limit) {
+        return inbox(username, conversation -> findVisibleByConversation(conversation, limit), limit);
+    }
+
+    @Override
+    public List<ChatMessage> findVisibleByParticipantBefore(String username, String id, Limit limit) {
+        return inbox(username, conversation -> findVisibleByConversationBefore(conversation, id, limit), limit);
+    }
+
+    /**
+     * A page of each conversation of a user, merged by id
+     */
+    private List<ChatMessage> inbox(String username, Function<String, List<ChatMessage>> page, Limit limit) {
+        List<ChatMessage> found = new ArrayList<>();
+        for (String key : journal.roomKeys()) {
+            if (key.startsWith(CONVERSATION)
+                    && ConversationId.isParticipant(key.substring(CONVERSATION.length()), username)) {
+                found.addAll(page.apply(key.substring(CONVERSATION.length())));
+            }
+        }
+        found.sort(NEWEST_FIRST);
+        return limit.isLimited() && found.size() > limit.max() ? found.subList(0, limit.max()) : found;
+    }
+
+    @Override
+    public List<ChatMessage> findBySender(String sender) {
+        List<ChatMessage> found = new ArrayList<>();
+        journal.forEach(entry -> {
+            ChatMessage message = entry.kind() == MessageJournal.INSERT ? message(entry) : null;
+            if (message != null && sender.equals(message.getSender())) {
+                found.add(message);
+            }
+        });
+        return found;
+    }
+
+    @Override
+    public void ensureIndexes() {
+        // The room (and conversation) index is rebuilt when the journal is opened and maintained on every append
+    }
+
+    @Override
+    public long migrateLegacyIds() {
+        // The journal was introduced after ids became time-ordered
+        return 0;
+    }
+
+    @Override
+    public boolean markEdited(String id, String sender, String content, LocalDateTime editedAt) {
+        MessageJournal.Entry entry = liveInsert(id, sender);
+        if (entry == null) {
+            return false;
+        }
+        append(new MessageJournal.Write(MessageJournal.EDIT, entry.timeMillis(), id, null,
+            encode(new Edit(content, editedAt))));
+        revise(id, new Revision(content, editedAt, false, entry.timeMillis()));
+        return true;
+    }
+
+    @Override
+    public boolean markDeleted(String id, String sender) {
+        MessageJournal.Entry entry = liveInsert(id, sender);
+        if (entry == null) {
+            return false;
+        }
+        append(new MessageJournal.Write(MessageJournal.DELETE, entry.timeMillis(), id, null, null));
+        revise(id, new Revision(null, null, true, entry.timeMillis()));
+        return true;
+    }
+
+    /**
+     * The insert record of a message of the given sender that has not been deleted
+     */
+    private MessageJournal.Entry liveInsert(String id, String sender) {
+        MessageJournal.Entry entry = journal.findInsert(id);
+        ChatMessage message = entry != null ? message(entry) : null;
+        if (message == null || message.isDeleted() || !Objects.equals(message.getSender(), sender)) {
+            return null;
+        }
+        return entry;
+    }
+
+    @Override
+    public <S extends ChatMessage> S insert(S entity) {
+        insert(List.of(entity));
+        return entity;
+    }
+
+    /**
+     * Append a batch of messages as one write (one fsync under the ALWAYS policy).
+     * Unlike MongoDB, duplicate ids are not detected
+     */
+    @Override
+    public <S extends ChatMessage> List<S> insert(Iterable<S> entities) {
+        List<S> inserted = new ArrayList<>();
+        List<MessageJournal.Write> writes = new ArrayList<>();
+        for (S entity : entities) {
+            inserted.add(entity);
+            writes.add(new MessageJournal.Write(MessageJournal.INSERT, timeMillis(entity),
+                entity.getId(), roomKey(entity), encode(entity)));
+        }
+        append(writes.toArray(MessageJournal.Write[]::new));
+        return inserted;
+    }
+
+    @Override
+    public <S extends ChatMessage> S save(S entity) {
+        throw appendOnly();
+    }
+
+    @Override
+    public Optional<ChatMessage> findById(String id) {
+        MessageJournal.Entry entry = journal.findInsert(id);
+        return Optional.ofNullable(entry != null ? message(entry) : null);
+    }
+
+    @Override
+    public List<ChatMessage> findAll() {
+        List<ChatMessage> all = new ArrayList<>();
+        journal.forEach(entry -> {
+            ChatMessage message = entry.kind() == MessageJournal.INSERT ? message(entry) : null;
+            if (message != null) {
+                all.add(message);
+            }
+        });
+        return all;
+    }
+
+    @Override
+    public long count() {
+        return journal.count();
+    }
+
+    @Override
+    public void deleteById(String id) {
+        throw appendOnly();
+    }
+
+    @Override
+    public void deleteAll() {
+        throw appendOnly();
+    }
+
+    /**
+     * Walk a room's insert chain newest first from the given offset, collecting the messages
+     * of the records that pass the entry filter and pass the message filter. The chain is in
+     * append order, which is the write-behind order and matches the id order except for
+     * messages accepted at nearly the same time; the page itself is sorted by id
+     */
+    private List<ChatMessage> walk(long start, Predicate<MessageJournal.Entry> entryFilter,
+                                   Predicate<ChatMessage> messageFilter, Limit limit) {
+        int max = limit.isLimited() ? limit.max() : Integer.MAX_VALUE;
+        List<ChatMessage> page = new ArrayList<>();
+        for (MessageJournal.Entry entry = journal.read(start);
+             entry != null && page.size() < max;
+             entry = journal.read(entry.previous())) {
+            if (!entryFilter.test(entry)) {
+                continue;
+            }
+            ChatMessage message = message(entry);
+            if (message != null && messageFilter.test(message)) {
+                page.add(message);
+            }
+        }
+        page.sort(NEWEST_FIRST);
+        return page;
+    }
+
+    /**
+     * Decode an insert record and apply the message's revisions
+     */
+    private ChatMessage message(MessageJournal.Entry entry) {
+        ChatMessage message = decode(entry.payload(), ChatMessage.class);
+        Revision revision = message != null ? revisions.get(entry.id()) : null;
+        if (revision != null) {
+            if (revision.content() != null) {
+                message.setContent(revision.content());
+                message.setEditedAt(revision.editedAt());
+            }
+            message.setDeleted(message.isDeleted() || revision.deleted());
+        }
+        return message;
+    }
+
+    private void revise(String id, Revision revision) {
+        revisions.merge(id, revision, Revision::then);
+    }
+
+    private void append(MessageJournal.Write... writes) {
+        try {
+            journal.append(List.of(writes));
+        } catch (IOException e) {
+            throw new DataAccessResourceFailureException("Could not append to the message journal", e);
+        }
+    }
+
+    private byte[] encode(Object value) {
+        try {
+            return cborMapper.writeValueAsBytes(value);
+        } catch (IOException e) {
+            throw new DataAccessResourceFailureException("Could not encode a journal record", e);
+        }
+    }
+
+    private <T> T decode(byte[] payload, Class<T> type) {
+        try {
+            return cborMapper.readValue(payload, type);
+        } catch (IOException e) {
+            log.warn("Error decoding journal record: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private static String roomKey(ChatMessage message) {
+        if (message.getConversation() != null) {
+            return CONVERSATION + message.getConversation();
+        }
+        return message.getRoom() == null ? "" : message.getRoom();
+    }
+
+    /**
+     * Time of a message for the record header: the time in its id, or its timestamp
+     */
+    private static long timeMillis(ChatMessage message) {
+        long millis = MessageId.epochMillis(message.getId());
+        if (millis < 0 && message.getTimestamp() != null) {
+            millis = MessageId.epochMillis(message.getTimestamp());
+        }
+        return Math.max(0, millis);
+    }
+
+    private UnsupportedOperationException appendOnly() {
+        return new UnsupportedOperationException("The message journal is append-only");
+    }
+}
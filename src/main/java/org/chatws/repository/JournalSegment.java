@@ -0,0 +1,144 @@
+package org.chatws.repository;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * One memory-mapped file of the message journal. The file is mapped at its full size
+ * when it is created; records are appended by a single writer (under the journal's
+ * append lock) and read concurrently with absolute reads.
+ */
+final class JournalSegment {
+
+    private static final String SUFFIX = ".journal";
+    private static final byte[] ZEROS = new byte[64 * 1024];
+
+    private final long baseOffset;
+    private final Path path;
+    private final MappedByteBuffer buffer;
+    private final ByteBuffer reader;
+
+    // Bytes of complete records; readers never look past it
+    private volatile int size;
+    private int forced;
+    // Inserts in this segment and the time of its newest record (for retention)
+    private int inserts;
+    private volatile long newestMillis = Long.MIN_VALUE;
+
+    private JournalSegment(long baseOffset, Path path, MappedByteBuffer buffer) {
+        this.baseOffset = baseOffset;
+        this.path = path;
+        this.buffer = buffer;
+        this.reader = buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Create and map a new segment file starting at the given journal offset
+     */
+    static JournalSegment create(Path directory, long baseOffset, int capacity) throws IOException {
+        Path path = directory.resolve(String.format("%020d%s", baseOffset, SUFFIX));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new JournalSegment(baseOffset, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+        }
+    }
+
+    /**
+     * Map an existing segment file; its size is found by the journal's recovery scan
+     */
+    static JournalSegment open(Path path) throws IOException {
+        String name = path.getFileName().toString();
+        long baseOffset = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new JournalSegment(baseOffset, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+        }
+    }
+
+    static boolean isSegment(Path path) {
+        String name = path.getFileName().toString();
+        return name.endsWith(SUFFIX) && name.length() == 20 + SUFFIX.length();
+    }
+
+    long baseOffset() {
+        return baseOffset;
+    }
+
+    Path path() {
+        return path;
+    }
+
+    int capacity() {
+        return buffer.capacity();
+    }
+
+    int size() {
+        return size;
+    }
+
+    int remaining() {
+        return buffer.capacity() - size;
+    }
+
+    int inserts() {
+        return inserts;
+    }
+
+    long newestMillis() {
+        return newestMillis;
+    }
+
+    /**
+     * Read-only view for absolute reads; shared by all readers
+     */
+    ByteBuffer reader() {
+        return reader;
+    }
+
+    /**
+     * Append a complete record; the caller holds the append lock and has checked the space
+     */
+    void append(byte[] record, boolean insert, long timeMillis) {
+        buffer.put(size, record);
+        recorded(size + record.length, insert, timeMillis);
+    }
+
+    /**
+     * Account for a record found by the recovery scan, or just appended
+     */
+    void recorded(int end, boolean insert, long timeMillis) {
+        if (insert) {
+            inserts++;
+        }
+        if (timeMillis > newestMillis) {
+            newestMillis = timeMillis;
+        }
+        size = end;
+    }
+
+    /**
+     * Zero everything from the given position on, dropping a torn record left by a crash
+     */
+    void truncate(int position) {
+        for (int at = position; at < buffer.capacity(); at += ZEROS.length) {
+            buffer.put(at, ZEROS, 0, Math.min(ZEROS.length, buffer.capacity() - at));
+        }
+        size = position;
+        buffer.force();
+        forced = position;
+    }
+
+    /**
+     * Write the records appended since the last force to disk
+     */
+    synchronized void force() {
+        int end = size;
+        if (end > forced) {
+            buffer.force(forced, end - forced);
+            forced = end;
+        }
+    }
+}
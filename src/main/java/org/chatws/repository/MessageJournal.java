@@ -0,0 +1,422 @@
+package org.chatws.repository;
+
+import org.chatws.config.ChatProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Segmented, memory-mapped append-only log of message writes (inserts, edits, deletes).
+ *
+ * A record is addressed by its journal offset (segment base offset plus position). Every
+ * insert points back to the previous insert of its room, so a room's history is a chain
+ * walked newest first from the room's head; every n-th insert of a room is also kept in
+ * a sparse in-memory index, so reading before a cursor starts close to it. The offset of
+ * every insert is also kept by message id, for edits, deletes and lookups by id.
+ * Opening the journal scans all segments, rebuilds the room chains and both indexes,
+ * and truncates a record torn by a crash.
+ */
+final class MessageJournal {
+
+    private static final Logger log = LoggerFactory.getLogger(MessageJournal.class);
+
+    static final byte INSERT = 1;
+    static final byte EDIT = 2;
+    static final byte DELETE = 3;
+
+    // length (of the rest), CRC32 (of what follows it), kind, message time (epoch millis),
+    // offset of the room's previous insert, id length, room length; then id, room, payload
+    private static final int HEADER = 4 + 4 + 1 + 8 + 8 + 2 + 2;
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * A record to append; the time is the message's (for edits and deletes, the target's)
+     */
+    record Write(byte kind, long timeMillis, String id, String room, byte[] payload) {
+    }
+
+    /**
+     * A record read back from the journal
+     */
+    record Entry(long offset, byte kind, long timeMillis, long previous, String id, String room, byte[] payload) {
+    }
+
+    /**
+     * Head of a room's insert chain plus every n-th insert as (time, offset), in append order
+     */
+    static final class RoomIndex {
+
+        // Immutable snapshot: entries below count never change once published
+        private record Points(long[] times, long[] offsets, int count) {
+        }
+
+        private volatile long head = -1;
+        private volatile Points points = new Points(new long[8], new long[8], 0);
+        private int inserts;
+
+        long head() {
+            return head;
+        }
+
+        /**
+         * Record a new insert of the room; called under the append lock
+         */
+        private void add(long offset, long timeMillis, int interval) {
+            if (inserts++ % interval == 0) {
+                Points current = points;
+                long[] times = current.times();
+                long[] offsets = current.offsets();
+                if (current.count() == times.length) {
+                    times = Arrays.copyOf(times, times.length * 2);
+                    offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                }
+                times[current.count()] = timeMillis;
+                offsets[current.count()] = offset;
+                points = new Points(times, offsets, current.count() + 1);
+            }
+            head = offset;
+        }
+
+        /**
+         * Where to start walking back for the inserts older than the given time:
+         * the oldest indexed insert that is newer, or the head if there is none
+         */
+        long seek(long timeMillis) {
+            Points current = points;
+            int low = 0;
+            int high = current.count();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (current.times()[mid] > timeMillis) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            return low < current.count() ? current.offsets()[low] : head;
+        }
+
+        /**
+         * Drop the points of deleted segments; called under the append lock
+         */
+        private void trim(long firstOffset) {
+            Points current = points;
+            int dropped = 0;
+            while (dropped < current.count() && current.offsets()[dropped] < firstOffset) {
+                dropped++;
+            }
+            if (dropped > 0) {
+                int length = Math.max(8, current.times().length - dropped);
+                points = new Points(Arrays.copyOfRange(current.times(), dropped, dropped + length),
+                    Arrays.copyOfRange(current.offsets(), dropped, dropped + length), current.count() - dropped);
+            }
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int indexInterval;
+    private final ChatProperties.FsyncPolicy fsync;
+
+    private final ConcurrentSkipListMap<Long, JournalSegment> segments = new ConcurrentSkipListMap<>();
+    private final Map<String, RoomIndex> rooms = new ConcurrentHashMap<>();
+    // Offset of the newest insert of each message id
+    private final Map<String, Long> inserts = new ConcurrentHashMap<>();
+    private final AtomicLong messageCount = new AtomicLong();
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private volatile JournalSegment active;
+
+    private MessageJournal(ChatProperties.Journal settings) {
+        this.directory = Path.of(settings.getDirectory());
+        this.segmentSize = Math.toIntExact(settings.getSegmentSize().toBytes());
+        this.indexInterval = Math.max(1, settings.getIndexInterval());
+        this.fsync = settings.getFsync();
+    }
+
+    /**
+     * Open (or create) the journal and replay it; every intact record is passed to the
+     * given consumer, oldest first, after the room index has been updated with it
+     */
+    static MessageJournal open(ChatProperties.Journal settings, Consumer<Entry> replay) throws IOException {
+        MessageJournal journal = new MessageJournal(settings);
+        journal.recover(replay);
+        return journal;
+    }
+
+    private void recover(Consumer<Entry> replay) throws IOException {
+        Files.createDirectories(directory);
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(directory)) {
+            files = listing.filter(JournalSegment::isSegment).sorted().toList();
+        }
+
+        long started = System.nanoTime();
+        for (int i = 0; i < files.size(); i++) {
+            JournalSegment segment = JournalSegment.open(files.get(i));
+            segments.put(segment.baseOffset(), segment);
+            int end = scan(segment, replay);
+            if (end + 4 <= segment.capacity() && segment.reader().getInt(end) != 0) {
+                // Only the last segment can end with a record torn by a crash
+                log.warn("Truncating message journal segment {} at {} (incomplete or corrupt record){}",
+                    segment.path(), end, i < files.size() - 1 ? "; later records of this segment are lost" : "");
+                segment.truncate(end);
+            }
+        }
+
+        if (segments.isEmpty()) {
+            active = JournalSegment.create(directory, 0, segmentSize);
+            segments.put(active.baseOffset(), active);
+        } else {
+            active = segments.lastEntry().getValue();
+        }
+        log.info("Opened message journal {}: {} segments, {} messages in {} rooms, replayed in {} ms",
+            directory.toAbsolutePath(), segments.size(), messageCount.get(), rooms.size(),
+            (System.nanoTime() - started) / 1_000_000);
+    }
+
+    /**
+     * Replay the intact records of a segment
+     * @return the position after the last intact record
+     */
+    private int scan(JournalSegment segment, Consumer<Entry> replay) {
+        ByteBuffer reader = segment.reader();
+        int position = 0;
+        while (position + HEADER <= segment.capacity()) {
+            int length = reader.getInt(position);
+            if (length < HEADER - 4 || position + 4L + length > segment.capacity() || !intact(reader, position, length)) {
+                break;
+            }
+            Entry entry = parse(segment, position);
+            if (entry.kind() == INSERT) {
+                indexInsert(entry.room(), entry.id(), entry.offset(), entry.timeMillis());
+            }
+            segment.recorded(position + 4 + length, entry.kind() == INSERT, entry.timeMillis());
+            replay.accept(entry);
+            position += 4 + length;
+        }
+        return position;
+    }
+
+    private static boolean intact(ByteBuffer reader, int position, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(reader.slice(position + 8, length - 4));
+        return (int) crc.getValue() == reader.getInt(position + 4);
+    }
+
+    /**
+     * Append records as one write, forcing them to disk under the ALWAYS policy
+     */
+    void append(List<Write> writes) throws IOException {
+        JournalSegment written;
+        appendLock.lock();
+        try {
+            for (Write write : writes) {
+                appendRecord(write);
+            }
+            written = active;
+        } finally {
+            appendLock.unlock();
+        }
+        if (fsync == ChatProperties.FsyncPolicy.ALWAYS) {
+            written.force();
+        }
+    }
+
+    private void appendRecord(Write write) throws IOException {
+        boolean insert = write.kind() == INSERT;
+        RoomIndex room = insert ? rooms.get(write.room()) : null;
+        byte[] record = encode(write, room != null ? room.head() : -1);
+        if (record.length > segmentSize) {
+            throw new IllegalArgumentException("Journal record of " + record.length + " bytes exceeds the segment size");
+        }
+        if (record.length > active.remaining()) {
+            roll();
+        }
+
+        long offset = active.baseOffset() + active.size();
+        active.append(record, insert, write.timeMillis());
+        if (insert) {
+            indexInsert(write.room(), write.id(), offset, write.timeMillis());
+        }
+    }
+
+    private void indexInsert(String room, String id, long offset, long timeMillis) {
+        rooms.computeIfAbsent(room, key -> new RoomIndex()).add(offset, timeMillis, indexInterval);
+        inserts.put(id, offset);
+        messageCount.incrementAndGet();
+    }
+
+    /**
+     * Seal the active segment and start the next one; called under the append lock
+     */
+    private void roll() throws IOException {
+        JournalSegment sealed = active;
+        if (fsync != ChatProperties.FsyncPolicy.NEVER) {
+            sealed.force();
+        }
+        JournalSegment next = JournalSegment.create(directory, sealed.baseOffset() + sealed.capacity(), segmentSize);
+        segments.put(next.baseOffset(), next);
+        active = next;
+    }
+
+    private static byte[] encode(Write write, long previous) {
+        byte[] id = write.id().getBytes(StandardCharsets.UTF_8);
+        byte[] room = write.room() != null ? write.room().getBytes(StandardCharsets.UTF_8) : EMPTY;
+        byte[] payload = write.payload() != null ? write.payload() : EMPTY;
+        if (id.length > 0xFFFF || room.length > 0xFFFF) {
+            throw new IllegalArgumentException("Message id or room name too long for the journal");
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER + id.length + room.length + payload.length);
+        record.putInt(record.capacity() - 4).putInt(0)
+            .put(write.kind()).putLong(write.timeMillis()).putLong(previous)
+            .putShort((short) id.length).putShort((short) room.length)
+            .put(id).put(room).put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 8, record.capacity() - 8);
+        record.putInt(4, (int) crc.getValue());
+        return record.array();
+    }
+
+    private static Entry parse(JournalSegment segment, int position) {
+        ByteBuffer reader = segment.reader();
+        int length = reader.getInt(position);
+        int idLength = Short.toUnsignedInt(reader.getShort(position + 25));
+        int roomLength = Short.toUnsignedInt(reader.getShort(position + 27));
+        byte[] id = new byte[idLength];
+        byte[] room = new byte[roomLength];
+        byte[] payload = new byte[length + 4 - HEADER - idLength - roomLength];
+        reader.get(position + HEADER, id);
+        reader.get(position + HEADER + idLength, room);
+        reader.get(position + HEADER + idLength + roomLength, payload);
+
+        byte kind = reader.get(position + 8);
+        return new Entry(segment.baseOffset() + position, kind, reader.getLong(position + 9),
+            reader.getLong(position + 17), new String(id, StandardCharsets.UTF_8),
+            kind == INSERT ? new String(room, StandardCharsets.UTF_8) : null, payload);
+    }
+
+    /**
+     * The record at an offset, or null for -1 and for offsets in deleted segments
+     */
+    Entry read(long offset) {
+        if (offset < 0) {
+            return null;
+        }
+        Map.Entry<Long, JournalSegment> floor = segments.floorEntry(offset);
+        if (floor == null) {
+            return null;
+        }
+        int position = (int) (offset - floor.getKey());
+        return position < floor.getValue().size() ? parse(floor.getValue(), position) : null;
+    }
+
+    /**
+     * Index of a room, or null if it has no messages
+     */
+    RoomIndex room(String room) {
+        return rooms.get(room);
+    }
+
+    /**
+     * Keys of the rooms with messages (a live view)
+     */
+    Set<String> roomKeys() {
+        return rooms.keySet();
+    }
+
+    /**
+     * The newest insert with the given id, or null if there is none (or it has expired)
+     */
+    Entry findInsert(String id) {
+        Long offset = inserts.get(id);
+        return offset != null ? read(offset) : null;
+    }
+
+    /**
+     * Pass every record to the consumer, oldest first
+     */
+    void forEach(Consumer<Entry> consumer) {
+        for (JournalSegment segment : segments.values()) {
+            int end = segment.size();
+            ByteBuffer reader = segment.reader();
+            for (int position = 0; position < end; position += 4 + reader.getInt(position)) {
+                consumer.accept(parse(segment, position));
+            }
+        }
+    }
+
+    long count() {
+        return messageCount.get();
+    }
+
+    /**
+     * Force the records appended since the last force to disk
+     */
+    void force() {
+        active.force();
+    }
+
+    /**
+     * Delete the sealed segments whose newest record is older than the cutoff, oldest first
+     * @return the newest record time of the deleted segments, or Long.MIN_VALUE if none was deleted
+     */
+    long expire(long cutoffMillis) throws IOException {
+        appendLock.lock();
+        try {
+            List<JournalSegment> expired = new ArrayList<>();
+            for (JournalSegment segment : segments.values()) {
+                if (segment == active || segment.newestMillis() >= cutoffMillis) {
+                    break;
+                }
+                expired.add(segment);
+            }
+            if (expired.isEmpty()) {
+                return Long.MIN_VALUE;
+            }
+
+            long newest = Long.MIN_VALUE;
+            for (JournalSegment segment : expired) {
+                segments.remove(segment.baseOffset());
+                messageCount.addAndGet(-segment.inserts());
+                newest = Math.max(newest, segment.newestMillis());
+                // The mapping itself is released once the segment is garbage collected
+                Files.deleteIfExists(segment.path());
+            }
+            long firstOffset = segments.firstKey();
+            rooms.values().removeIf(room -> room.head() < firstOffset);
+            rooms.values().forEach(room -> room.trim(firstOffset));
+            inserts.values().removeIf(offset -> offset < firstOffset);
+            log.info("Deleted {} expired message journal segments", expired.size());
+            return newest;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    void close() {
+        appendLock.lock();
+        try {
+            active.force();
+        } finally {
+            appendLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package org.chatws.repository;
+
+import org.chatws.model.ChatMessage;
+import org.springframework.data.domain.Limit;
+import org.springframework.data.mongodb.repository.Query;
+import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+import reactor.core.publisher.Flux;
+
+/**
+ * Non-blocking reads of the messages collection, used in the reactive mode with MongoDB
+ * (see ReactiveStorageConfig); writes still go through ChatMessageRepository
+ */
+public interface ReactiveChatMessageRepository extends ReactiveMongoRepository<ChatMessage, String> {
+
+    /**
+     * Find the newest messages of a room, skipping deleted ones (see ChatMessageRepository.findVisibleByRoom)
+     * @param room the room identifier
+     * @param limit maximum number of messages to return
+     * @return newest messages first
+     */
+    @Query(value = "{ 'room': ?0, 'deleted': { '$ne': true } }", sort = "{ '_id': -1 }")
+    Flux<ChatMessage> findVisibleByRoom(String room, Limit limit);
+
+    /**
+     * Find the newest private messages a user sent or received, skipping deleted ones
+     * (see ChatMessageRepository.findVisibleByParticipant)
+     * @param username the user
+     * @param limit maximum number of messages to return
+     * @return newest messages first
+     */
+    @Query(value = "{ 'participants': ?0, 'deleted': { '$ne': true } }", sort = "{ '_id': -1 }")
+    Flux<ChatMessage> findVisibleByParticipant(String username, Limit limit);
+}
@@ -0,0 +1,255 @@
+package org.chatws.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.MultiGauge;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import org.chatws.config.ChatProperties;
+import org.chatws.model.ChatMessage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Micrometer meters of the chat server, exposed at /actuator/prometheus.
+ * Meters with a tag from a fixed set (message type, store operation) are created
+ * up front, so recording on the hot path is a counter increment without lookups.
+ */
+@Component
+public class ChatMetrics {
+
+    private static final ChatMessage.MessageType[] TYPES = ChatMessage.MessageType.values();
+
+    /**
+     * Database operations with their own latency timer
+     */
+    public enum StoreOperation {
+        INSERT,            // A batch of new messages (write-behind)
+        EDIT,
+        DELETE,
+        FIND_RECENT,       // Newest messages of a room (join, history page)
+        FIND_BEFORE,       // A page of older messages
+        FIND_ROOM,         // Full room history
+        FIND_INBOX,        // Private messages of a user over all conversations (join, inbox page)
+        FIND_CONVERSATION  // A page of one private conversation
+    }
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private ChatProperties chatProperties;
+
+    private final Counter[] received = new Counter[TYPES.length];
+    private final Counter[] rateLimited = new Counter[TYPES.length];
+    private final Timer[] delivery = new Timer[TYPES.length];
+    private final Timer[] store = new Timer[StoreOperation.values().length];
+    private final Counter[] rejectedFrames = new Counter[MessageDecoder.Rejection.values().length];
+    private Counter bytesRateLimited;
+    private Counter fullReplays;
+    private Counter resumedReplays;
+    private Counter pageCacheHits;
+    private Counter pageCacheMisses;
+    private DistributionSummary fanOutWidth;
+    private Counter sendFailures;
+    private Counter droppedFrames;
+    private Counter slowDisconnects;
+    private MultiGauge roomSessions;
+
+    @PostConstruct
+    public void init() {
+        for (ChatMessage.MessageType type : TYPES) {
+            received[type.ordinal()] = Counter.builder("chat.messages.received")
+                .description("Inbound frames by message type")
+                .tag("type", type.name())
+                .register(meterRegistry);
+            rateLimited[type.ordinal()] = Counter.builder("chat.ratelimit.rejections")
+                .description("Inbound frames rejected by the rate limit")
+                .tag("type", type.name())
+                .register(meterRegistry);
+        }
+        // Only chat messages are delivered to other users
+        for (ChatMessage.MessageType type : List.of(ChatMessage.MessageType.CHAT, ChatMessage.MessageType.PRIVATE)) {
+            delivery[type.ordinal()] = Timer.builder("chat.delivery.latency")
+                .description("Time from receiving a message to queueing it for every recipient")
+                .tag("type", type.name())
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        }
+        bytesRateLimited = Counter.builder("chat.ratelimit.rejections")
+            .description("Inbound frames rejected by the rate limit")
+            .tag("type", "BYTES")
+            .register(meterRegistry);
+
+        for (MessageDecoder.Rejection rejection : MessageDecoder.Rejection.values()) {
+            rejectedFrames[rejection.ordinal()] = Counter.builder("chat.inbound.rejected")
+                .description("Inbound frames rejected before they were handled; the connection is closed")
+                .tag("reason", rejection.name())
+                .register(meterRegistry);
+        }
+
+        for (StoreOperation operation : StoreOperation.values()) {
+            store[operation.ordinal()] = Timer.builder("chat.store.latency")
+                .description("Latency of message store operations")
+                .tag("operation", operation.name())
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        }
+
+        fullReplays = Counter.builder("chat.history.replays")
+            .description("History sent on join: the full history, or only the messages a reconnecting client missed")
+            .tag("mode", "FULL")
+            .register(meterRegistry);
+        resumedReplays = Counter.builder("chat.history.replays")
+            .description("History sent on join: the full history, or only the messages a reconnecting client missed")
+            .tag("mode", "RESUMED")
+            .register(meterRegistry);
+
+        pageCacheHits = Counter.builder("chat.history.page.cache")
+            .description("Lookups of the newest page of a room (REST API) in the page cache")
+            .tag("result", "HIT")
+            .register(meterRegistry);
+        pageCacheMisses = Counter.builder("chat.history.page.cache")
+            .description("Lookups of the newest page of a room (REST API) in the page cache")
+            .tag("result", "MISS")
+            .register(meterRegistry);
+        Gauge.builder("chat.history.page.cache.hit.ratio", this, ChatMetrics::pageCacheHitRatio)
+            .description("Share of page cache lookups that were hits, since the start")
+            .register(meterRegistry);
+
+        fanOutWidth = DistributionSummary.builder("chat.fanout.width")
+            .description("Sessions a room broadcast is queued for")
+            .baseUnit("sessions")
+            .publishPercentileHistogram()
+            .register(meterRegistry);
+        sendFailures = Counter.builder("chat.send.failures")
+            .description("Frames that could not be written to a session")
+            .register(meterRegistry);
+        droppedFrames = Counter.builder("chat.outbound.dropped")
+            .description("Frames dropped because a session's outbound queue was full")
+            .register(meterRegistry);
+        slowDisconnects = Counter.builder("chat.outbound.disconnects")
+            .description("Sessions closed because their outbound queue was full")
+            .register(meterRegistry);
+        roomSessions = MultiGauge.builder("chat.room.sessions")
+            .description("Sessions per room, for the largest rooms")
+            .register(meterRegistry);
+    }
+
+    public void messageReceived(ChatMessage.MessageType type) {
+        received[type.ordinal()].increment();
+    }
+
+    public void rateLimited(ChatMessage.MessageType type) {
+        rateLimited[type.ordinal()].increment();
+    }
+
+    public void bytesRateLimited() {
+        bytesRateLimited.increment();
+    }
+
+    public void frameRejected(MessageDecoder.Rejection rejection) {
+        rejectedFrames[rejection.ordinal()].increment();
+    }
+
+    /**
+     * Record the time since a message was received, once it has been queued for its recipients
+     */
+    public void delivered(ChatMessage.MessageType type, long receivedNanos) {
+        Timer timer = delivery[type.ordinal()];
+        if (timer != null) {
+            timer.record(System.nanoTime() - receivedNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    public void historyReplayed(boolean resumed) {
+        (resumed ? resumedReplays : fullReplays).increment();
+    }
+
+    public void pageCacheLookup(boolean hit) {
+        (hit ? pageCacheHits : pageCacheMisses).increment();
+    }
+
+    private double pageCacheHitRatio() {
+        double hits = pageCacheHits.count();
+        double lookups = hits + pageCacheMisses.count();
+        return lookups > 0 ? hits / lookups : 0;
+    }
+
+    /**
+     * Gauge of the estimated memory held by the page cache
+     */
+    public void registerPageCache(Supplier<Number> bytes) {
+        Gauge.builder("chat.history.page.cache.size", bytes)
+            .description("Estimated size of the cached room pages")
+            .baseUnit("bytes")
+            .register(meterRegistry);
+    }
+
+    public void fannedOut(int sessions) {
+        fanOutWidth.record(sessions);
+    }
+
+    public void sendFailed() {
+        sendFailures.increment();
+    }
+
+    public void frameDropped() {
+        droppedFrames.increment();
+    }
+
+    public void slowSessionDisconnected() {
+        slowDisconnects.increment();
+    }
+
+    /**
+     * Time a store operation; exceptions are passed on (and the attempt is still timed)
+     */
+    public <T> T timeStore(StoreOperation operation, Supplier<T> call) {
+        return store[operation.ordinal()].record(call);
+    }
+
+    /**
+     * Time a non-blocking store call from its subscription until it completes
+     */
+    public <T> Mono<T> timeStore(StoreOperation operation, Mono<T> call) {
+        Timer timer = store[operation.ordinal()];
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return call.doFinally(signal -> timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+        });
+    }
+
+    /**
+     * Gauge of the sessions connected to this node
+     */
+    public void registerActiveSessions(Supplier<Number> sessions) {
+        Gauge.builder("chat.sessions.active", sessions)
+            .description("WebSocket sessions that joined a room on this node")
+            .register(meterRegistry);
+    }
+
+    /**
+     * Replace the per-room session gauges; only the largest rooms get a series,
+     * so the number of time series stays bounded however many rooms there are
+     */
+    public void updateRoomSessions(Map<String, Integer> sessionsByRoom) {
+        List<MultiGauge.Row<?>> rows = sessionsByRoom.entrySet().stream()
+            .sorted(Map.Entry.<String, Integer>comparingByValue(Comparator.reverseOrder()))
+            .limit(chatProperties.getMetrics().getMaxRoomSeries())
+            .<MultiGauge.Row<?>>map(entry -> MultiGauge.Row.of(
+                Tags.of("room", entry.getKey().isEmpty() ? "lobby" : entry.getKey()), entry.getValue()))
+            .toList();
+        roomSessions.register(rows, true);
+    }
+}
@@ -1,25 +1,44 @@
 package org.chatws.service;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import jakarta.annotation.PostConstruct;
+import org.chatws.bus.UsernameRegistry;
+import org.chatws.config.ChatProperties;
 import org.chatws.model.ChatMessage;
+import org.chatws.model.ConversationId;
+import org.chatws.model.MessageId;
 import org.chatws.repository.ChatMessageRepository;
+import org.chatws.repository.ReactiveChatMessageRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.data.domain.Limit;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.web.socket.WebSocketSession;
 
-import java.time.Duration;
+import java.security.SecureRandom;
 import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 /**
  * Service for managing chat-related functionality:
- * - Storing message history
+ * - Storing message history (rooms, and private conversations in per-user inboxes)
  * - Tracking active users
  * - Managing user sessions
  * - Rate limiting messages
@@ -28,59 +47,420 @@ import java.util.stream.Collectors;
 @Service
 public class ChatService {
 
+    private static final Logger log = LoggerFactory.getLogger(ChatService.class);
+
     @Autowired
     private ChatMessageRepository chatMessageRepository;
 
-    // Store message history (limited to last 100 messages)
-    private final List<ChatMessage> messageHistory = new ArrayList<>();
-    private static final int MAX_HISTORY_SIZE = 100;
+    @Autowired
+    private MessageEncoder messageEncoder;
+
+    @Autowired
+    private MessageWriteBehind messageWriteBehind;
+
+    @Autowired
+    private ChatProperties chatProperties;
+
+    @Autowired
+    private ChatMetrics chatMetrics;
+
+    @Autowired
+    private MessageIdGenerator messageIdGenerator;
+
+    // Cluster-wide username claims (see org.chatws.bus)
+    @Autowired
+    private UsernameRegistry usernameRegistry;
+
+    // Newest private messages of each online user
+    @Autowired
+    private InboxCache inboxCache;
+
+    // Newest pages of room histories served by the REST API
+    @Autowired
+    private RoomPageCache roomPageCache;
+
+    // Blocking database reads started from a WebSocket handler (see ExecutionConfig)
+    @Autowired
+    @Qualifier("chatIoExecutor")
+    private ExecutorService chatIoExecutor;
+
+    // Non-blocking reads of the reactive mode on MongoDB (see ReactiveStorageConfig); absent otherwise
+    @Autowired(required = false)
+    private ReactiveChatMessageRepository reactiveChatMessageRepository;
+
+    // Recent message history, one ring buffer per room
+    private final Map<String, RoomHistory> roomHistories = new ConcurrentHashMap<>();
 
     // Map to store user sessions with their usernames
     private final Map<String, String> sessionUserMap = new ConcurrentHashMap<>();
     private final Map<String, WebSocketSession> userSessionMap = new ConcurrentHashMap<>();
 
-    // Rate limiting
-    private final Map<String, LocalDateTime> lastMessageTimeMap = new ConcurrentHashMap<>();
-    private static final Duration MESSAGE_RATE_LIMIT = Duration.ofMillis(500); // 500ms between messages
+    // Tokens for the private conversation endpoints of the REST API, one per online user
+    private static final SecureRandom TOKEN_RANDOM = new SecureRandom();
+    private final Map<String, String> userTokens = new ConcurrentHashMap<>();
+    private final Map<String, String> tokenUsers = new ConcurrentHashMap<>();
+
+    // Room membership index (room -> sessions currently in that room)
+    public static final String DEFAULT_ROOM = "";
+    private final Map<String, String> sessionRoomMap = new ConcurrentHashMap<>();
+    private final Map<String, Set<WebSocketSession>> roomMembers = new ConcurrentHashMap<>();
+
+    // Users connected to other nodes (username -> node and room), learned from the bus
+    private record RemoteUser(String nodeId, String room) {
+    }
+    private final Map<String, RemoteUser> remoteUsers = new ConcurrentHashMap<>();
+    // Other nodes -> when an event of theirs last arrived (System.nanoTime)
+    private final Map<String, Long> remoteNodes = new ConcurrentHashMap<>();
+
+    // Token-bucket rate limiting per user and message type, plus a byte budget per connection
+    private RateLimiter rateLimiter;
+
+    // Versioned room presence, published as batched deltas
+    private final PresenceTracker presenceTracker = new PresenceTracker();
+
+    // Typing indicators, per room with server-side expiry
+    private TypingTracker typingTracker;
+
+    @PostConstruct
+    public void init() {
+        typingTracker = new TypingTracker(chatProperties.getTyping().getExpiry().toNanos());
+        rateLimiter = new RateLimiter(chatProperties.getRateLimit());
+        chatMetrics.registerActiveSessions(sessionRoomMap::size);
+    }
+
+    /**
+     * Queue a chat or private message for storage in the database.
+     * Called on the sequencer lane of the message's room or conversation, which gives it its place in the order
+     * @return a future that completes when the message may be added to history and delivered (see MessageWriteBehind)
+     */
+    public CompletableFuture<Void> storeMessage(ChatMessage message) {
+        // Only store chat and private messages with a room or conversation
+        if (message.getType() != ChatMessage.MessageType.CHAT &&
+            message.getType() != ChatMessage.MessageType.PRIVATE) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (message.getRoom() == null && message.getConversation() == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return messageWriteBehind.enqueue(message);
+    }
+
+    /**
+     * Add a message to the history once storeMessage's future has completed, on the message's
+     * sequencer lane; under ACK_AFTER_FLUSH a message whose write failed never gets into history
+     */
+    public void addMessageToHistory(ChatMessage message) {
+        if (message.getType() != ChatMessage.MessageType.CHAT &&
+            message.getType() != ChatMessage.MessageType.PRIVATE) {
+            return;
+        }
+
+        appendToHistory(message);
+    }
+
+    /**
+     * Add a message accepted (and stored) by another node to the local history
+     */
+    public void addRemoteMessageToHistory(ChatMessage message) {
+        if (message.getType() != ChatMessage.MessageType.CHAT &&
+            message.getType() != ChatMessage.MessageType.PRIVATE) {
+            return;
+        }
+
+        appendToHistory(message);
+    }
+
+    private void appendToHistory(ChatMessage message) {
+        if (message.getConversation() != null) {
+            // Private messages go to the inboxes of their participants, not to a room
+            inboxCache.add(message);
+        } else {
+            // The room's ring buffer evicts the oldest message once it is full and gives the message its seq
+            roomHistory(message.getRoom()).append(message);
+            roomPageCache.invalidate(normalizeRoom(message.getRoom()));
+        }
+
+        // Encode once, with the seq; the frame is reused for fan-out and history replay
+        try {
+            messageEncoder.encodeAndCache(message);
+        } catch (JsonProcessingException e) {
+            log.error("Error encoding message {}: {}", message.getId(), e.getMessage());
+        }
+    }
+
+    private RoomHistory roomHistory(String room) {
+        // A new history's epoch is a fresh message id, so it differs across evictions and restarts
+        return roomHistories.computeIfAbsent(normalizeRoom(room),
+            key -> new RoomHistory(chatProperties.getHistory().getRoomCapacity(), messageIdGenerator.next()));
+    }
 
-    // Typing indicators
-    private final Set<String> typingUsers = new HashSet<>();
+    /**
+     * Get the in-memory message history of a room, oldest first (including tombstones)
+     */
+    public List<ChatMessage> getMessageHistory(String room) {
+        RoomHistory history = roomHistories.get(normalizeRoom(room));
+        return history != null ? history.snapshot() : Collections.emptyList();
+    }
 
     /**
-     * Add a message to the history and save to database
+     * Merge the in-memory history of a room with messages loaded from the database
+     * into the history replayed to a joining user: one entry per message id, oldest first,
+     * without tombstones and without private messages of other users; the user's inbox is added.
+     * The in-memory copy wins, as it already reflects edits and deletes that may not be stored yet.
      */
-    public synchronized void addMessageToHistory(ChatMessage message) {
-        // Only store chat and private messages
-        if (message.getType() == ChatMessage.MessageType.CHAT || 
-            message.getType() == ChatMessage.MessageType.PRIVATE) {
-            messageHistory.add(message);
+    public HistoryReplay getReplayHistory(String room, String username, List<ChatMessage> stored) {
+        RoomHistory roomHistory = roomHistory(room);
+        // Read before the snapshot, so every message up to it is included
+        long seq = roomHistory.getLastSeq();
+        Map<String, ChatMessage> merged = new HashMap<>();
+        for (ChatMessage message : roomHistory.snapshot()) {
+            merged.put(message.getId(), message);
+        }
+        for (ChatMessage message : stored) {
+            merged.putIfAbsent(message.getId(), message);
+        }
+        for (ChatMessage message : inboxCache.messages(username, null)) {
+            merged.putIfAbsent(message.getId(), message);
+        }
+
+        List<ChatMessage> history = visibleTo(username, merged.values());
+        // Ids are time-ordered
+        history.sort(Comparator.comparing(ChatMessage::getId));
+        return new HistoryReplay(roomHistory.getEpoch(), seq, false, history, userTokens.get(username));
+    }
 
-            // Trim history if it exceeds the maximum size
-            if (messageHistory.size() > MAX_HISTORY_SIZE) {
-                messageHistory.remove(0);
+    /**
+     * Whether a reconnecting client's epoch and seq are still resumable (see resumeHistory)
+     */
+    public boolean canResumeHistory(String room, String epoch, Long seq) {
+        RoomHistory roomHistory = epoch != null && seq != null ? roomHistories.get(normalizeRoom(room)) : null;
+        return roomHistory != null && roomHistory.getEpoch().equals(epoch) && roomHistory.since(seq) != null;
+    }
+
+    /**
+     * The messages a reconnecting user missed: those after the last sequence number the
+     * client has seen of the given history epoch, without tombstones and private messages of others.
+     * Private messages have no sequence number: those of the user's inbox newer than the last
+     * room message the client has are included (all of them if that one is no longer buffered)
+     * @return the replay, or null if the epoch is not the room's current one or the gap is no longer
+     *         buffered; the user then gets the full history
+     */
+    public HistoryReplay resumeHistory(String room, String username, String epoch, Long seq) {
+        RoomHistory roomHistory = epoch != null && seq != null ? roomHistories.get(normalizeRoom(room)) : null;
+        if (roomHistory == null || !roomHistory.getEpoch().equals(epoch)) {
+            return null;
+        }
+        List<ChatMessage> missed = roomHistory.since(seq);
+        if (missed == null) {
+            return null;
+        }
+        // The last missed message is the newest one covered (there may be newer ones by now)
+        long covered = missed.isEmpty() ? seq : missed.getLast().getSeq();
+        List<ChatMessage> replayed = visibleTo(username, missed);
+
+        ChatMessage seen = roomHistory.at(seq);
+        List<ChatMessage> privateMessages =
+            visibleTo(username, inboxCache.messages(username, seen != null ? seen.getId() : null));
+        if (!privateMessages.isEmpty()) {
+            replayed.addAll(privateMessages);
+            replayed.sort(Comparator.comparing(ChatMessage::getId));
+        }
+        return new HistoryReplay(roomHistory.getEpoch(), covered, true, replayed, userTokens.get(username));
+    }
+
+    /**
+     * Load the newest stored private messages of a user into their inbox without blocking the
+     * caller (see loadRecentMessagesByRoom)
+     */
+    public CompletableFuture<Void> loadInbox(String username) {
+        int capacity = chatProperties.getHistory().getInboxCapacity();
+        if (reactiveChatMessageRepository != null) {
+            return chatMetrics.timeStore(ChatMetrics.StoreOperation.FIND_INBOX,
+                    reactiveChatMessageRepository.findVisibleByParticipant(username, Limit.of(capacity)).collectList())
+                .toFuture()
+                .thenAccept(stored -> inboxCache.fill(username, stored));
+        }
+        return CompletableFuture.runAsync(() -> inboxCache.fill(username,
+            chatMetrics.timeStore(ChatMetrics.StoreOperation.FIND_INBOX,
+                () -> chatMessageRepository.findVisibleByParticipant(username, Limit.of(capacity)))), chatIoExecutor);
+    }
+
+    private static List<ChatMessage> visibleTo(String username, Collection<ChatMessage> messages) {
+        List<ChatMessage> visible = new ArrayList<>(messages.size());
+        for (ChatMessage message : messages) {
+            if (message.isDeleted()) {
+                continue;
             }
+            if (message.getType() == ChatMessage.MessageType.CHAT ||
+                (message.getType() == ChatMessage.MessageType.PRIVATE &&
+                 (username.equals(message.getSender()) || username.equals(message.getRecipient())))) {
+                visible.add(message);
+            }
+        }
+        return visible;
+    }
+
+    /**
+     * Find a message in the in-memory history of a room
+     * @return the message, or null if it is not (or no longer) buffered
+     */
+    public ChatMessage findMessageInHistory(String room, String messageId) {
+        RoomHistory history = roomHistories.get(normalizeRoom(room));
+        return history != null ? history.find(messageId) : null;
+    }
+
+    /**
+     * Find a message of the sender in memory: in the history of their room or in their inbox
+     */
+    private ChatMessage findOwnMessage(String room, String messageId, String sender) {
+        ChatMessage message = findMessageInHistory(room, messageId);
+        return message != null ? message : inboxCache.find(sender, messageId);
+    }
 
-            // Save to database if it has a room
-            if (message.getRoom() != null) {
-                chatMessageRepository.save(message);
+    /**
+     * Edit a message of the given sender. Messages still in memory are updated in place and
+     * the change is written behind them; older messages get a direct partial update by id.
+     * @return the edited message, which tells whether the edit goes to a room or a conversation;
+     *         null unless the message exists, belongs to the sender and is not deleted
+     */
+    public ChatMessage editMessage(String room, String messageId, String sender, String content) {
+        LocalDateTime editedAt = LocalDateTime.now();
+        Consumer<ChatMessage> edit = message -> {
+            message.setContent(content);
+            message.setEditedAt(editedAt);
+        };
+        ChatMessage memoryMessage = findOwnMessage(room, messageId, sender);
+        if (memoryMessage != null) {
+            if (!memoryMessage.getSender().equals(sender) || memoryMessage.isDeleted()) {
+                return null;
+            }
+            apply(memoryMessage, edit);
+            if (memoryMessage.getRoom() != null || memoryMessage.getConversation() != null) {
+                messageWriteBehind.enqueueEdit(memoryMessage, content, editedAt);
             }
+            invalidatePages(memoryMessage);
+            return memoryMessage;
         }
+        ChatMessage stored = messageId == null ? null : chatMetrics.timeStore(ChatMetrics.StoreOperation.EDIT,
+            () -> chatMessageRepository.markEdited(messageId, sender, content, editedAt)
+                ? chatMessageRepository.findById(messageId).orElse(null) : null);
+        if (stored != null && stored.getConversation() != null) {
+            // The recipient's inbox may still hold it
+            inboxCache.update(stored, edit);
+        }
+        if (stored != null) {
+            invalidatePages(stored);
+        }
+        return stored;
     }
 
     /**
-     * Get the in-memory message history
+     * Apply an edit made on another node to the local history or inbox copies (the origin node stores it)
      */
-    public List<ChatMessage> getMessageHistory() {
-        return new ArrayList<>(messageHistory);
+    public void applyRemoteEdit(ChatMessage edit) {
+        LocalDateTime editedAt = LocalDateTime.now();
+        applyRemote(edit, message -> {
+            message.setContent(edit.getContent());
+            message.setEditedAt(editedAt);
+        });
+    }
+
+    /**
+     * Apply a delete made on another node to the local history or inbox copies (the origin node stores it)
+     */
+    public void applyRemoteDelete(ChatMessage delete) {
+        applyRemote(delete, message -> message.setDeleted(true));
+    }
+
+    private void applyRemote(ChatMessage event, Consumer<ChatMessage> change) {
+        if (event.getConversation() != null) {
+            inboxCache.update(event, change);
+            return;
+        }
+        ChatMessage historyMessage = findMessageInHistory(event.getRoom(), event.getId());
+        if (historyMessage != null) {
+            change.accept(historyMessage);
+        }
+        // The message may be on a cached page even when it is no longer in the history
+        invalidatePages(event);
+    }
+
+    /**
+     * Drop the cached REST pages of the room of a changed message
+     */
+    private void invalidatePages(ChatMessage message) {
+        if (message.getConversation() == null && message.getRoom() != null) {
+            roomPageCache.invalidate(normalizeRoom(message.getRoom()));
+        }
+    }
+
+    /**
+     * Change a message held in memory; a private message also in the other participant's inbox
+     */
+    private void apply(ChatMessage message, Consumer<ChatMessage> change) {
+        if (message.getConversation() != null) {
+            inboxCache.update(message, change);
+        } else {
+            change.accept(message);
+        }
+    }
+
+    /**
+     * Delete a message of the given sender by turning it into a tombstone
+     * @return the deleted message (see editMessage); null unless the message exists, belongs to
+     *         the sender and was not deleted yet
+     */
+    public ChatMessage deleteMessage(String room, String messageId, String sender) {
+        Consumer<ChatMessage> delete = message -> message.setDeleted(true);
+        ChatMessage memoryMessage = findOwnMessage(room, messageId, sender);
+        if (memoryMessage != null) {
+            if (!memoryMessage.getSender().equals(sender) || memoryMessage.isDeleted()) {
+                return null;
+            }
+            apply(memoryMessage, delete);
+            if (memoryMessage.getRoom() != null || memoryMessage.getConversation() != null) {
+                messageWriteBehind.enqueueDelete(memoryMessage);
+            }
+            invalidatePages(memoryMessage);
+            return memoryMessage;
+        }
+        ChatMessage stored = messageId == null ? null : chatMetrics.timeStore(ChatMetrics.StoreOperation.DELETE,
+            () -> chatMessageRepository.markDeleted(messageId, sender)
+                ? chatMessageRepository.findById(messageId).orElse(null) : null);
+        if (stored != null && stored.getConversation() != null) {
+            inboxCache.update(stored, delete);
+        }
+        if (stored != null) {
+            invalidatePages(stored);
+        }
+        return stored;
+    }
+
+    /**
+     * Drop the in-memory history of rooms that have no members and saw no messages for a while
+     */
+    @Scheduled(fixedDelayString = "${chat.history.sweep-interval:1m}")
+    public void evictIdleRooms() {
+        long idleNanos = chatProperties.getHistory().getIdleEviction().toNanos();
+        long now = System.nanoTime();
+        roomHistories.entrySet().removeIf(entry -> {
+            boolean idle = !roomMembers.containsKey(entry.getKey()) &&
+                now - entry.getValue().getLastActivityNanos() > idleNanos;
+            if (idle) {
+                roomPageCache.forget(entry.getKey());
+            }
+            return idle;
+        });
     }
 
     /**
      * Get message history for a specific room from database
      * @param room the room identifier
-     * @return list of messages in the room ordered by timestamp
+     * @return list of messages in the room, newest first
      */
     public List<ChatMessage> getMessageHistoryByRoom(String room) {
-        return chatMessageRepository.findByRoomOrderByTimestampDesc(room);
+        return chatMetrics.timeStore(ChatMetrics.StoreOperation.FIND_ROOM,
+            () -> chatMessageRepository.findByRoomOrderByIdDesc(room));
     }
 
     /**
@@ -90,21 +470,128 @@ public class ChatService {
      * @return list of recent messages in the room
      */
     public List<ChatMessage> getRecentMessagesByRoom(String room, int count) {
-        List<ChatMessage> messages = chatMessageRepository.findByRoomOrderByTimestampDesc(room);
-        return messages.size() <= count ? messages : messages.subList(0, count);
+        // The limit is applied by the database, only the requested page is loaded
+        return chatMetrics.timeStore(ChatMetrics.StoreOperation.FIND_RECENT,
+            () -> chatMessageRepository.findVisibleByRoom(room, Limit.of(count)));
     }
 
     /**
-     * Register a user session
+     * Get the newest page of a room as served by the REST API, from the page cache or loaded
+     * on a miss. A loaded page merges the room's in-memory history into the stored messages,
+     * so messages and edits still waiting to be written behind are included.
+     * @param room the room identifier
+     * @param count maximum number of messages to return
+     * @return the page, newest first, with its ETag and Last-Modified time
+     */
+    public RoomPageCache.RoomPage getRecentPageByRoom(String room, int count) {
+        return roomPageCache.get(normalizeRoom(room), count, () -> {
+            Map<String, ChatMessage> merged = new HashMap<>();
+            for (ChatMessage message : getRecentMessagesByRoom(room, count)) {
+                merged.put(message.getId(), message);
+            }
+            // The in-memory copy wins, as in getReplayHistory
+            for (ChatMessage message : getMessageHistory(room)) {
+                merged.put(message.getId(), message);
+            }
+            return merged.values().stream()
+                .filter(message -> !message.isDeleted())
+                .sorted(Comparator.comparing(ChatMessage::getId).reversed())
+                .limit(count)
+                .toList();
+        });
+    }
+
+    /**
+     * Load the most recent messages of a room without blocking the caller: through the reactive
+     * repository in the reactive mode on MongoDB, otherwise on the chat-io executor
+     * @return newest messages first
+     */
+    public CompletableFuture<List<ChatMessage>> loadRecentMessagesByRoom(String room, int count) {
+        if (reactiveChatMessageRepository != null) {
+            return chatMetrics.timeStore(ChatMetrics.StoreOperation.FIND_RECENT,
+                reactiveChatMessageRepository.findVisibleByRoom(room, Limit.of(count)).collectList()).toFuture();
+        }
+        return CompletableFuture.supplyAsync(() -> getRecentMessagesByRoom(room, count), chatIoExecutor);
+    }
+
+    /**
+     * Get a page of room messages older than a cursor
+     * @param room the room identifier
+     * @param before id of the oldest message the client has, or an ISO-8601 timestamp
+     * @param count maximum number of messages to return
+     * @return messages before the cursor, newest first
+     */
+    public List<ChatMessage> getMessagesByRoomBefore(String room, String before, int count) {
+        return chatMetrics.timeStore(ChatMetrics.StoreOperation.FIND_BEFORE,
+            () -> findMessagesByRoomBefore(room, before, count));
+    }
+
+    private List<ChatMessage> findMessagesByRoomBefore(String room, String before, int count) {
+        return chatMessageRepository.findVisibleByRoomBefore(room, cursorId(before), Limit.of(count));
+    }
+
+    /**
+     * Ids are time-ordered, so both kinds of cursor are an upper bound for the id
+     */
+    private static String cursorId(String before) {
+        if (MessageId.isMessageId(before)) {
+            return before;
+        }
+        try {
+            return MessageId.lowerBound(LocalDateTime.parse(before));
+        } catch (DateTimeParseException e) {
+            // Neither an id nor a timestamp; compared as it is
+            return before;
+        }
+    }
+
+    /**
+     * Get a page of a user's private messages over all their conversations
+     * @param username the user
+     * @param before id of the oldest message the client has, or an ISO-8601 timestamp; null for the newest
+     * @param count maximum number of messages to return
+     * @return newest messages first
+     */
+    public List<ChatMessage> getInboxPage(String username, String before, int count) {
+        return chatMetrics.timeStore(ChatMetrics.StoreOperation.FIND_INBOX, () -> before == null
+            ? chatMessageRepository.findVisibleByParticipant(username, Limit.of(count))
+            : chatMessageRepository.findVisibleByParticipantBefore(username, cursorId(before), Limit.of(count)));
+    }
+
+    /**
+     * Get a page of the private conversation of two users
+     * @param before id of the oldest message the client has, or an ISO-8601 timestamp; null for the newest
+     * @param count maximum number of messages to return
+     * @return newest messages first
      */
-    public void registerUser(WebSocketSession session, String username) {
+    public List<ChatMessage> getConversationPage(String username, String peer, String before, int count) {
+        String conversation = ConversationId.of(username, peer);
+        return chatMetrics.timeStore(ChatMetrics.StoreOperation.FIND_CONVERSATION, () -> before == null
+            ? chatMessageRepository.findVisibleByConversation(conversation, Limit.of(count))
+            : chatMessageRepository.findVisibleByConversationBefore(conversation, cursorId(before), Limit.of(count)));
+    }
+
+    /**
+     * Register a user session and add it to the members of its room
+     */
+    public void registerUser(WebSocketSession session, String username, String room) {
         String sessionId = session.getId();
+        String roomKey = normalizeRoom(room);
+        // A session registered again is dropped from its previous room and username first
+        if (sessionUserMap.containsKey(sessionId) || sessionRoomMap.containsKey(sessionId)) {
+            removeUser(session);
+        }
         sessionUserMap.put(sessionId, username);
         userSessionMap.put(username, session);
+        sessionRoomMap.put(sessionId, roomKey);
+        roomMembers.computeIfAbsent(roomKey, key -> ConcurrentHashMap.newKeySet()).add(session);
+        presenceTracker.userJoined(roomKey, username);
+        inboxCache.open(username);
+        issueToken(username);
     }
 
     /**
-     * Remove a user session
+     * Remove a user session and drop it from its room
      */
     public void removeUser(WebSocketSession session) {
         String sessionId = session.getId();
@@ -112,9 +599,121 @@ public class ChatService {
 
         if (username != null) {
             userSessionMap.remove(username);
+            inboxCache.close(username);
+            String token = userTokens.remove(username);
+            if (token != null) {
+                tokenUsers.remove(token);
+            }
+            releaseUsername(username);
         }
 
         sessionUserMap.remove(sessionId);
+
+        String room = sessionRoomMap.remove(sessionId);
+        if (room != null) {
+            if (username != null) {
+                presenceTracker.userLeft(room, username);
+            }
+
+            // Drop the room entry once its last member has left
+            roomMembers.computeIfPresent(room, (key, members) -> {
+                members.remove(session);
+                return members.isEmpty() ? null : members;
+            });
+        }
+    }
+
+    private void issueToken(String username) {
+        byte[] bytes = new byte[16];
+        TOKEN_RANDOM.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        String previous = userTokens.put(username, token);
+        if (previous != null) {
+            tokenUsers.remove(previous);
+        }
+        tokenUsers.put(token, username);
+    }
+
+    /**
+     * Get the online user a REST API token was issued to
+     * @return the username, or null if the token is unknown or its user has left
+     */
+    public String getUserByToken(String token) {
+        return token != null ? tokenUsers.get(token) : null;
+    }
+
+    /**
+     * Get the room a session has joined
+     */
+    public String getRoomBySession(WebSocketSession session) {
+        return sessionRoomMap.get(session.getId());
+    }
+
+    /**
+     * Get the sessions that are members of a room
+     */
+    public Set<WebSocketSession> getRoomMembers(String room) {
+        Set<WebSocketSession> members = roomMembers.get(normalizeRoom(room));
+        return members != null ? Collections.unmodifiableSet(members) : Collections.emptySet();
+    }
+
+    /**
+     * Get the usernames of the members of a room
+     */
+    public List<String> getActiveUsersInRoom(String room) {
+        List<String> users = new ArrayList<>();
+        for (WebSocketSession member : getRoomMembers(room)) {
+            String username = sessionUserMap.get(member.getId());
+            if (username != null) {
+                users.add(username);
+            }
+        }
+        return users;
+    }
+
+    /**
+     * Build the full presence snapshot (USERS frame) of a room, sent to a user on join
+     */
+    public ChatMessage getPresenceSnapshot(String room) {
+        String roomKey = normalizeRoom(room);
+        PresenceTracker.Snapshot snapshot = presenceTracker.snapshot(roomKey);
+        ChatMessage usersMessage = new ChatMessage(
+            ChatMessage.MessageType.USERS,
+            String.join(",", snapshot.users()),
+            "System",
+            roomKey
+        );
+        usersMessage.setVersion(snapshot.version());
+        return usersMessage;
+    }
+
+    /**
+     * Collect the presence changes of the last batching window as one PRESENCE frame per changed room
+     * @return room -> delta frame
+     */
+    public Map<String, ChatMessage> collectPresenceDeltas() {
+        Map<String, ChatMessage> frames = new HashMap<>();
+        for (Map.Entry<String, PresenceTracker.Delta> entry : presenceTracker.collectDeltas().entrySet()) {
+            PresenceTracker.Delta delta = entry.getValue();
+            ChatMessage presenceMessage = new ChatMessage(
+                ChatMessage.MessageType.PRESENCE,
+                null,
+                "System",
+                entry.getKey()
+            );
+            presenceMessage.setVersion(delta.version());
+            presenceMessage.setAdded(delta.added());
+            presenceMessage.setRemoved(delta.removed());
+            frames.put(entry.getKey(), presenceMessage);
+        }
+        return frames;
+    }
+
+    /**
+     * Map a missing room to the default (lobby) room
+     */
+    public static String normalizeRoom(String room) {
+        return room == null ? DEFAULT_ROOM : room;
     }
 
     /**
@@ -132,72 +731,194 @@ public class ChatService {
     }
 
     /**
-     * Get all active usernames
+     * Get all active usernames, on this node and on the other nodes
      */
     public List<String> getActiveUsers() {
-        return new ArrayList<>(userSessionMap.keySet());
+        List<String> users = new ArrayList<>(userSessionMap.keySet());
+        users.addAll(remoteUsers.keySet());
+        return users;
+    }
+
+    /**
+     * Get the users connected to this node
+     * @return username -> room
+     */
+    public Map<String, String> getLocalUsers() {
+        Map<String, String> users = new HashMap<>();
+        for (Map.Entry<String, String> entry : sessionUserMap.entrySet()) {
+            String room = sessionRoomMap.get(entry.getKey());
+            if (room != null) {
+                users.put(entry.getValue(), room);
+            }
+        }
+        return users;
     }
 
     /**
-     * Check if a username is already taken
+     * Check if a username is already taken on any node
      */
     public boolean isUsernameTaken(String username) {
-        return userSessionMap.containsKey(username);
+        return usernameRegistry.isClaimed(username);
+    }
+
+    /**
+     * Claim a username for this node; the check and the claim are one atomic step cluster-wide
+     * @return false if the username is already taken
+     */
+    public boolean claimUsername(String username) {
+        return usernameRegistry.claim(username, chatProperties.getBus().getNodeId());
+    }
+
+    private void releaseUsername(String username) {
+        try {
+            usernameRegistry.release(username, chatProperties.getBus().getNodeId());
+        } catch (RuntimeException e) {
+            log.warn("Error releasing username {}: {}", username, e.getMessage());
+        }
     }
 
     /**
-     * Check if a user is sending messages too frequently
-     * @return true if the user should be rate limited
+     * Record a user that joined a room on another node; it shows up in this node's presence
      */
-    public boolean shouldRateLimit(String username) {
-        LocalDateTime lastMessageTime = lastMessageTimeMap.get(username);
-        if (lastMessageTime == null) {
-            return false;
+    public void remoteUserJoined(String nodeId, String room, String username) {
+        String roomKey = normalizeRoom(room);
+        RemoteUser previous = remoteUsers.put(username, new RemoteUser(nodeId, roomKey));
+        if (previous != null && !previous.room().equals(roomKey)) {
+            presenceTracker.userLeft(previous.room(), username);
         }
+        presenceTracker.userJoined(roomKey, username);
+    }
 
-        Duration timeSinceLastMessage = Duration.between(lastMessageTime, LocalDateTime.now());
-        return timeSinceLastMessage.compareTo(MESSAGE_RATE_LIMIT) < 0;
+    /**
+     * Record a user that left a room on another node
+     */
+    public void remoteUserLeft(String username) {
+        RemoteUser user = remoteUsers.remove(username);
+        if (user != null) {
+            presenceTracker.userLeft(user.room(), username);
+            typingTracker.stopTyping(user.room(), username);
+        }
     }
 
     /**
-     * Update the last message time for a user
+     * Note that an event of another node arrived
+     * @return true if the node was not known (it just started, or it had expired)
      */
-    public void updateLastMessageTime(String username) {
-        lastMessageTimeMap.put(username, LocalDateTime.now());
+    public boolean remoteNodeSeen(String nodeId) {
+        return remoteNodes.put(nodeId, System.nanoTime()) == null;
     }
 
     /**
-     * Get the remaining cooldown time in milliseconds
+     * Forget the nodes that sent nothing, not even a heartbeat, within the claim TTL, and their users:
+     * such a node crashed or lost the bus without a NODE_DOWN event
+     * @return the ids of the expired nodes
      */
-    public long getRemainingCooldownMs(String username) {
-        LocalDateTime lastMessageTime = lastMessageTimeMap.get(username);
-        if (lastMessageTime == null) {
-            return 0;
+    public List<String> expireRemoteNodes() {
+        long cutoff = System.nanoTime() - chatProperties.getBus().getClaimTtl().toNanos();
+        List<String> expired = new ArrayList<>();
+        for (Map.Entry<String, Long> node : remoteNodes.entrySet()) {
+            if (node.getValue() - cutoff < 0 && remoteNodes.remove(node.getKey(), node.getValue())) {
+                expired.add(node.getKey());
+                removeRemoteNode(node.getKey());
+            }
         }
+        return expired;
+    }
 
-        Duration timeSinceLastMessage = Duration.between(lastMessageTime, LocalDateTime.now());
-        long remainingMs = MESSAGE_RATE_LIMIT.toMillis() - timeSinceLastMessage.toMillis();
-        return Math.max(0, remainingMs);
+    /**
+     * Forget all users of a node that shut down (or expired)
+     */
+    public void removeRemoteNode(String nodeId) {
+        remoteNodes.remove(nodeId);
+        for (Map.Entry<String, RemoteUser> entry : remoteUsers.entrySet()) {
+            RemoteUser user = entry.getValue();
+            if (user.nodeId().equals(nodeId) && remoteUsers.remove(entry.getKey(), user)) {
+                presenceTracker.userLeft(user.room(), entry.getKey());
+                typingTracker.stopTyping(user.room(), entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Take one message of the given type from a user's rate limit budget
+     * @return false if the user is sending this type too frequently
+     */
+    public boolean tryAcquireMessage(String username, ChatMessage.MessageType type) {
+        if (rateLimiter.tryAcquire(username, type)) {
+            return true;
+        }
+        chatMetrics.rateLimited(type);
+        return false;
+    }
+
+    /**
+     * Charge an inbound frame to its connection's byte budget
+     * @return false if the connection is sending too much data
+     */
+    public boolean tryAcquireBytes(String sessionId, int bytes) {
+        if (rateLimiter.tryAcquireBytes(sessionId, bytes)) {
+            return true;
+        }
+        chatMetrics.bytesRateLimited();
+        return false;
     }
 
     /**
-     * Add a user to the typing users set
+     * Get the remaining cooldown time in milliseconds for a message type
      */
-    public void addTypingUser(String username) {
-        typingUsers.add(username);
+    public long getRemainingCooldownMs(String username, ChatMessage.MessageType type) {
+        return rateLimiter.getRemainingCooldownMs(username, type);
+    }
+
+    /**
+     * Drop the byte budget of a closed connection
+     */
+    public void removeConnectionBudget(String sessionId) {
+        rateLimiter.removeConnection(sessionId);
+    }
+
+    /**
+     * Drop rate limit buckets of users and connections that have been idle for a while
+     */
+    @Scheduled(fixedDelayString = "${chat.rate-limit.sweep-interval:1m}")
+    public void evictIdleRateLimits() {
+        rateLimiter.evictIdle();
+    }
+
+    /**
+     * Refresh the per-room session gauges
+     */
+    @Scheduled(fixedRateString = "${chat.metrics.room-refresh:15s}")
+    public void publishRoomMetrics() {
+        Map<String, Integer> sessionsByRoom = new HashMap<>();
+        roomMembers.forEach((room, members) -> sessionsByRoom.put(room, members.size()));
+        chatMetrics.updateRoomSessions(sessionsByRoom);
+    }
+
+    /**
+     * Update the typing state of a user in a room
+     */
+    public void setTyping(String room, String username, boolean typing) {
+        if (typing) {
+            typingTracker.startTyping(normalizeRoom(room), username);
+        } else {
+            typingTracker.stopTyping(normalizeRoom(room), username);
+        }
     }
 
     /**
-     * Remove a user from the typing users set
+     * Remove a user from the typing users of a room
      */
-    public void removeTypingUser(String username) {
-        typingUsers.remove(username);
+    public void removeTypingUser(String room, String username) {
+        typingTracker.stopTyping(normalizeRoom(room), username);
     }
 
     /**
-     * Get all currently typing users
+     * Collect the rooms whose set of typing users changed since the last call
+     * (expired entries are removed first)
+     * @return room -> users currently typing, for changed rooms only
      */
-    public Set<String> getTypingUsers() {
-        return new HashSet<>(typingUsers);
+    public Map<String, List<String>> collectTypingChanges() {
+        return typingTracker.collectChanges();
     }
 }
@@ -0,0 +1,16 @@
+package org.chatws.service;
+
+import org.chatws.model.ChatMessage;
+
+import java.util.List;
+
+/**
+ * History sent to a user on join, as one or more HISTORY frames
+ * @param epoch epoch of the room's history on this node (see RoomHistory)
+ * @param seq sequence number up to which every message of the room is covered
+ * @param resumed true if only the messages after the client's last sequence number are included
+ * @param messages the messages, oldest first: the room's and the user's private messages
+ * @param token the session's token for the private conversation endpoints of the REST API
+ */
+public record HistoryReplay(String epoch, long seq, boolean resumed, List<ChatMessage> messages, String token) {
+}
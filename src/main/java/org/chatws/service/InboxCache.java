@@ -0,0 +1,125 @@
+package org.chatws.service;
+
+import org.chatws.config.ChatProperties;
+import org.chatws.model.ChatMessage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * The newest private messages of each user connected to this node, over all their
+ * conversations. A join replays them without touching the room histories, and edits and
+ * deletes of recent private messages find them here.
+ * An inbox is opened empty when its user joins (so messages arriving meanwhile are not
+ * lost), filled from the store, and dropped when the user leaves; it keeps at most
+ * chat.history.inbox-capacity messages, evicting the oldest.
+ */
+@Component
+public class InboxCache {
+
+    @Autowired
+    private ChatProperties chatProperties;
+
+    // username -> messages by id (ids are time-ordered); each inbox is guarded by its own monitor
+    private final Map<String, TreeMap<String, ChatMessage>> inboxes = new ConcurrentHashMap<>();
+
+    public void open(String username) {
+        inboxes.put(username, new TreeMap<>());
+    }
+
+    public void close(String username) {
+        inboxes.remove(username);
+    }
+
+    /**
+     * Add stored messages to an open inbox; messages it already holds are kept
+     */
+    public void fill(String username, List<ChatMessage> stored) {
+        TreeMap<String, ChatMessage> inbox = inboxes.get(username);
+        if (inbox == null) {
+            return;
+        }
+        synchronized (inbox) {
+            for (ChatMessage message : stored) {
+                inbox.putIfAbsent(message.getId(), message);
+            }
+            trim(inbox);
+        }
+    }
+
+    /**
+     * Add a private message to the open inboxes of its sender and recipient
+     */
+    public void add(ChatMessage message) {
+        add(message.getSender(), message);
+        if (!message.getRecipient().equals(message.getSender())) {
+            add(message.getRecipient(), message);
+        }
+    }
+
+    private void add(String username, ChatMessage message) {
+        TreeMap<String, ChatMessage> inbox = inboxes.get(username);
+        if (inbox == null) {
+            return;
+        }
+        synchronized (inbox) {
+            inbox.put(message.getId(), message);
+            trim(inbox);
+        }
+    }
+
+    private void trim(TreeMap<String, ChatMessage> inbox) {
+        int capacity = chatProperties.getHistory().getInboxCapacity();
+        while (inbox.size() > capacity) {
+            inbox.pollFirstEntry();
+        }
+    }
+
+    /**
+     * The messages of a user's inbox newer than the given id (all of them if it is null), oldest first
+     */
+    public List<ChatMessage> messages(String username, String afterId) {
+        TreeMap<String, ChatMessage> inbox = inboxes.get(username);
+        if (inbox == null) {
+            return List.of();
+        }
+        synchronized (inbox) {
+            return new ArrayList<>(afterId == null ? inbox.values() : inbox.tailMap(afterId, false).values());
+        }
+    }
+
+    /**
+     * Look up a message in a user's inbox
+     * @return the message, or null if the inbox is not open or no longer holds it
+     */
+    public ChatMessage find(String username, String messageId) {
+        TreeMap<String, ChatMessage> inbox = messageId != null ? inboxes.get(username) : null;
+        if (inbox == null) {
+            return null;
+        }
+        synchronized (inbox) {
+            return inbox.get(messageId);
+        }
+    }
+
+    /**
+     * Apply an edit or delete to every copy of a message in the inboxes of its participants
+     * (a message loaded from the store for each of them is held twice)
+     */
+    public void update(ChatMessage message, Consumer<ChatMessage> change) {
+        ChatMessage senderCopy = find(message.getSender(), message.getId());
+        if (senderCopy != null) {
+            change.accept(senderCopy);
+        }
+        ChatMessage recipientCopy = find(message.getRecipient(), message.getId());
+        if (recipientCopy != null && recipientCopy != senderCopy) {
+            change.accept(recipientCopy);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package org.chatws.service;
+
+import com.fasterxml.jackson.core.JacksonException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import org.chatws.config.ChatProperties;
+import org.chatws.model.ChatMessage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes inbound JSON or CBOR frames with a streaming parser instead of binding them.
+ * The type is handed to a filter as soon as it is read, so frames that would be dropped
+ * (a session that has not joined, an exhausted rate limit) are not read any further;
+ * only the fields the server uses are kept, everything else is skipped.
+ * Frames over chat.inbound.max-frame-size are rejected before they are parsed.
+ */
+@Component
+public class MessageDecoder {
+
+    /**
+     * Why a frame was rejected
+     */
+    public enum Rejection {
+        TOO_LARGE, // Over chat.inbound.max-frame-size
+        MALFORMED  // Not an object, not well-formed, an unknown type or a field of the wrong kind
+    }
+
+    /**
+     * Decides from the type whether a frame is read any further
+     */
+    @FunctionalInterface
+    public interface TypeFilter {
+        boolean accept(ChatMessage.MessageType type) throws IOException;
+    }
+
+    /**
+     * A frame that cannot be handled; the connection should be closed
+     */
+    public static class InvalidFrameException extends IOException {
+
+        private final Rejection rejection;
+
+        InvalidFrameException(Rejection rejection, String message) {
+            super(message);
+            this.rejection = rejection;
+        }
+
+        public Rejection getRejection() {
+            return rejection;
+        }
+    }
+
+    private static final ChatMessage.MessageType[] TYPES = ChatMessage.MessageType.values();
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private CBORMapper cborMapper;
+
+    @Autowired
+    private ChatProperties chatProperties;
+
+    @Autowired
+    private ChatMetrics chatMetrics;
+
+    /**
+     * Decode a JSON text frame (the length in chars stands in for its size in bytes)
+     * @return the message, or null if the filter dropped it
+     */
+    public ChatMessage decode(String payload, TypeFilter filter) throws IOException {
+        checkSize(payload.length());
+        try (JsonParser parser = objectMapper.getFactory().createParser(payload)) {
+            return decode(parser, filter);
+        }
+    }
+
+    /**
+     * Decode a CBOR binary frame, reading the frame's buffer in place when it has an array
+     * @return the message, or null if the filter dropped it
+     */
+    public ChatMessage decode(ByteBuffer payload, TypeFilter filter) throws IOException {
+        checkSize(payload.remaining());
+        JsonParser parser;
+        if (payload.hasArray()) {
+            parser = cborMapper.getFactory().createParser(payload.array(),
+                payload.arrayOffset() + payload.position(), payload.remaining());
+        } else {
+            byte[] bytes = new byte[payload.remaining()];
+            payload.get(bytes);
+            parser = cborMapper.getFactory().createParser(bytes);
+        }
+        try (parser) {
+            return decode(parser, filter);
+        }
+    }
+
+    private void checkSize(long size) throws InvalidFrameException {
+        long max = chatProperties.getInbound().getMaxFrameSize().toBytes();
+        if (size > max) {
+            throw new InvalidFrameException(Rejection.TOO_LARGE,
+                "Frame of " + size + " bytes, at most " + max + " allowed");
+        }
+    }
+
+    private ChatMessage decode(JsonParser parser, TypeFilter filter) throws IOException {
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw malformed("a frame must be an object");
+            }
+            ChatMessage.MessageType type = null;
+            String id = null;
+            String content = null;
+            String sender = null;
+            String recipient = null;
+            String room = null;
+            String epoch = null;
+            Long seq = null;
+
+            JsonToken token;
+            while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                switch (field) {
+                    case "type" -> {
+                        type = type(parser);
+                        chatMetrics.messageReceived(type);
+                        if (!filter.accept(type)) {
+                            return null;
+                        }
+                    }
+                    case "id" -> id = text(parser, field);
+                    case "content" -> content = text(parser, field);
+                    case "sender" -> sender = text(parser, field);
+                    case "recipient" -> recipient = text(parser, field);
+                    case "room" -> room = text(parser, field);
+                    // Resume request of a reconnecting client (JOIN)
+                    case "epoch" -> epoch = text(parser, field);
+                    case "seq" -> seq = number(parser, field);
+                    // Set by the server (timestamp) or only sent by it (editedAt, presence, history)
+                    default -> parser.skipChildren();
+                }
+            }
+            if (token != JsonToken.END_OBJECT || parser.nextToken() != null) {
+                throw malformed("a frame must be a single complete object");
+            }
+            if (type == null) {
+                throw malformed("missing type");
+            }
+
+            ChatMessage message = new ChatMessage();
+            message.setType(type);
+            message.setId(id);
+            message.setContent(content);
+            message.setSender(sender);
+            message.setRecipient(recipient);
+            message.setRoom(room);
+            message.setEpoch(epoch);
+            message.setSeq(seq);
+            return message;
+        } catch (JacksonException e) {
+            // Not well-formed JSON or CBOR
+            throw malformed(e.getOriginalMessage());
+        }
+    }
+
+    private static ChatMessage.MessageType type(JsonParser parser) throws IOException {
+        if (parser.currentToken() == JsonToken.VALUE_STRING) {
+            String name = parser.getText();
+            for (ChatMessage.MessageType type : TYPES) {
+                if (type.name().equals(name)) {
+                    return type;
+                }
+            }
+        }
+        throw malformed("unknown type");
+    }
+
+    /**
+     * A string field; other scalars are taken as their text, as data binding would
+     */
+    private static String text(JsonParser parser, String field) throws IOException {
+        JsonToken token = parser.currentToken();
+        if (token == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (!token.isScalarValue()) {
+            throw malformed("\"" + field + "\" must be a string");
+        }
+        return parser.getText();
+    }
+
+    private static Long number(JsonParser parser, String field) throws IOException {
+        JsonToken token = parser.currentToken();
+        if (token == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (token != JsonToken.VALUE_NUMBER_INT) {
+            throw malformed("\"" + field + "\" must be an integer");
+        }
+        return parser.getLongValue();
+    }
+
+    private static InvalidFrameException malformed(String reason) {
+        return new InvalidFrameException(Rejection.MALFORMED, "Malformed frame: " + reason);
+    }
+}
@@ -0,0 +1,200 @@
+package org.chatws.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import org.chatws.model.ChatMessage;
+import org.chatws.model.WireFormat;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes messages to JSON or CBOR frames.
+ * Messages accepted into history are encoded once per format and the frame is
+ * reused for every send (fan-out, private delivery and history replay).
+ */
+@Component
+public class MessageEncoder {
+
+    private static final String HISTORY_SUFFIX = "]}";
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private CBORMapper cborMapper;
+
+    /**
+     * Get the JSON frame of a message, using the cached frame when there is one
+     */
+    public String encode(ChatMessage message) throws JsonProcessingException {
+        String frame = message.getEncodedFrame();
+        return frame != null ? frame : objectMapper.writeValueAsString(message);
+    }
+
+    /**
+     * Encode a message and keep the frame with it until its content changes
+     */
+    public String encodeAndCache(ChatMessage message) throws JsonProcessingException {
+        String frame = message.getEncodedFrame();
+        if (frame == null) {
+            frame = objectMapper.writeValueAsString(message);
+            message.setEncodedFrame(frame);
+        }
+        return frame;
+    }
+
+    /**
+     * Get the CBOR frame of a message. Messages in history (those with a cached JSON frame)
+     * keep their CBOR frame as well, so it is only built once no matter how many binary clients there are.
+     */
+    public byte[] encodeCbor(ChatMessage message) throws JsonProcessingException {
+        byte[] frame = message.getEncodedCbor();
+        if (frame == null) {
+            frame = cborMapper.writeValueAsBytes(message);
+            if (message.getEncodedFrame() != null) {
+                message.setEncodedCbor(frame);
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * Build a WebSocket frame of a message in the given format.
+     * A new frame is returned on every call: binary frames wrap a buffer that is consumed when sent.
+     */
+    public WebSocketMessage<?> frame(ChatMessage message, WireFormat format) throws JsonProcessingException {
+        return format == WireFormat.CBOR ? new BinaryMessage(encodeCbor(message)) : new TextMessage(encode(message));
+    }
+
+    /**
+     * Encode a history replay as HISTORY frames by joining the (cached) frames of its messages into
+     * one array; every frame carries the replay's epoch, seq and resumed flag.
+     * A new frame is started before one would grow beyond maxFrameSize (characters for JSON,
+     * bytes for CBOR; 0 = no limit). There is always at least one frame, even for an empty history.
+     */
+    public List<WebSocketMessage<?>> encodeHistory(HistoryReplay replay, int maxFrameSize,
+                                                   WireFormat format) throws JsonProcessingException {
+        List<WebSocketMessage<?>> frames = new ArrayList<>();
+        if (format == WireFormat.CBOR) {
+            byte[] prefix = cborHistoryPrefix(replay);
+            for (List<byte[]> chunk : chunkCbor(replay.messages(), prefix.length, maxFrameSize)) {
+                frames.add(new BinaryMessage(cborHistoryFrame(prefix, chunk)));
+            }
+            return frames;
+        }
+
+        // The epoch is a message id and the token base64url, so they need no escaping
+        String prefix = "{\"type\":\"" + ChatMessage.MessageType.HISTORY + "\",\"epoch\":\"" + replay.epoch()
+            + "\",\"seq\":" + replay.seq() + ",\"resumed\":" + replay.resumed()
+            + (replay.token() != null ? ",\"token\":\"" + replay.token() + "\"" : "") + ",\"messages\":[";
+        StringBuilder frame = new StringBuilder(prefix);
+        int count = 0;
+
+        for (ChatMessage message : replay.messages()) {
+            String encoded = encode(message);
+            if (count > 0 && maxFrameSize > 0 &&
+                frame.length() + 1 + encoded.length() + HISTORY_SUFFIX.length() > maxFrameSize) {
+                frames.add(new TextMessage(frame.append(HISTORY_SUFFIX).toString()));
+                frame.setLength(0);
+                frame.append(prefix);
+                count = 0;
+            }
+            if (count > 0) {
+                frame.append(',');
+            }
+            frame.append(encoded);
+            count++;
+        }
+
+        frames.add(new TextMessage(frame.append(HISTORY_SUFFIX).toString()));
+        return frames;
+    }
+
+    private List<List<byte[]>> chunkCbor(List<ChatMessage> messages, int prefixSize,
+                                         int maxFrameSize) throws JsonProcessingException {
+        List<List<byte[]>> chunks = new ArrayList<>();
+        List<byte[]> chunk = new ArrayList<>();
+        // Prefix plus the largest array header (5 bytes)
+        int size = prefixSize + 5;
+
+        for (ChatMessage message : messages) {
+            byte[] encoded = encodeCbor(message);
+            if (!chunk.isEmpty() && maxFrameSize > 0 && size + encoded.length > maxFrameSize) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>();
+                size = prefixSize + 5;
+            }
+            chunk.add(encoded);
+            size += encoded.length;
+        }
+
+        chunks.add(chunk);
+        return chunks;
+    }
+
+    private static byte[] cborHistoryFrame(byte[] prefix, List<byte[]> items) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(prefix);
+        writeCborHead(out, 4, items.size());
+        for (byte[] item : items) {
+            out.writeBytes(item);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * CBOR: map of 5 or 6 entries, "type": "HISTORY", "epoch", "seq", "resumed", "token" (if any),
+     * "messages": (array header follows)
+     */
+    private static byte[] cborHistoryPrefix(HistoryReplay replay) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeCborHead(out, 5, replay.token() != null ? 6 : 5);
+        writeCborText(out, "type");
+        writeCborText(out, ChatMessage.MessageType.HISTORY.name());
+        writeCborText(out, "epoch");
+        writeCborText(out, replay.epoch());
+        writeCborText(out, "seq");
+        writeCborHead(out, 0, replay.seq());
+        writeCborText(out, "resumed");
+        // Simple values 20 (false) and 21 (true)
+        out.write(replay.resumed() ? 0xf5 : 0xf4);
+        if (replay.token() != null) {
+            writeCborText(out, "token");
+            writeCborText(out, replay.token());
+        }
+        writeCborText(out, "messages");
+        return out.toByteArray();
+    }
+
+    private static void writeCborText(ByteArrayOutputStream out, String text) {
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        writeCborHead(out, 3, utf8.length);
+        out.writeBytes(utf8);
+    }
+
+    /**
+     * Write the initial byte(s) of a CBOR data item: major type plus length (or, for an unsigned integer, its value)
+     */
+    private static void writeCborHead(ByteArrayOutputStream out, int majorType, long length) {
+        int major = majorType << 5;
+        if (length < 24) {
+            out.write(major | (int) length);
+            return;
+        }
+        // Additional information 24 to 27: the length follows in 1, 2, 4 or 8 bytes
+        int bytes = length < 0x100 ? 1 : length < 0x10000 ? 2 : length < 0x100000000L ? 4 : 8;
+        out.write(major | (24 + Integer.numberOfTrailingZeros(bytes)));
+        for (int shift = 8 * (bytes - 1); shift >= 0; shift -= 8) {
+            out.write((int) (length >>> shift));
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.chatws.service;
+
+import jakarta.annotation.PostConstruct;
+import org.chatws.config.ChatProperties;
+import org.chatws.model.MessageId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out the ids of accepted messages (see MessageId).
+ * Ids of one node strictly increase, also within a millisecond and when the wall clock
+ * steps back; the node bits are a hash of chat.bus.node-id, so two nodes only produce the
+ * same id if their node ids hash alike and they accept a message in the same millisecond.
+ */
+@Component
+public class MessageIdGenerator {
+
+    @Autowired
+    private ChatProperties chatProperties;
+
+    // Epoch milliseconds << 16 | sequence of the last id handed out
+    private final AtomicLong clock = new AtomicLong();
+    private int node;
+
+    @PostConstruct
+    public void init() {
+        int hash = chatProperties.getBus().getNodeId().hashCode();
+        // Spread similar node ids (node-1, node-2) over the whole range
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        // Node bits 0 are reserved for ids given to messages stored before ids were time-ordered
+        node = hash != 0 ? hash : 1;
+    }
+
+    /**
+     * A new id, larger than every id this node handed out before
+     */
+    public String next() {
+        return next(System.currentTimeMillis());
+    }
+
+    /**
+     * A new id at the given wall clock time; past the last id handed out if the clock is behind it
+     * (stepped back, or more than 65536 ids in its millisecond)
+     */
+    String next(long nowMillis) {
+        long now = nowMillis << 16;
+        return MessageId.encode(clock.accumulateAndGet(now, (last, candidate) -> Math.max(last + 1, candidate)), node);
+    }
+}
@@ -0,0 +1,230 @@
+package org.chatws.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.chatws.config.ChatProperties;
+import org.chatws.model.ChatMessage;
+import org.chatws.repository.ChatMessageRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind stage between ChatService and the database.
+ * Accepted messages are queued and stored in batches (insertMany) when the
+ * batch is full or the flush interval has passed, so message acceptance no
+ * longer waits for one database round-trip per message.
+ * Edits and deletes of queued messages go through the same queue, so they are
+ * always applied after the insert they refer to.
+ */
+@Component
+public class MessageWriteBehind {
+
+    private static final Logger log = LoggerFactory.getLogger(MessageWriteBehind.class);
+    private static final CompletableFuture<Void> ACCEPTED = CompletableFuture.completedFuture(null);
+
+    private enum Operation {
+        INSERT,
+        EDIT,
+        DELETE
+    }
+
+    private record PendingWrite(Operation operation, ChatMessage message, String content,
+                                LocalDateTime editedAt, CompletableFuture<Void> stored) {
+    }
+
+    @Autowired
+    private ChatMessageRepository chatMessageRepository;
+
+    @Autowired
+    private ChatProperties chatProperties;
+
+    @Autowired
+    private ChatMetrics chatMetrics;
+
+    private BlockingQueue<PendingWrite> queue;
+    private Thread flusher;
+    private volatile boolean running;
+
+    @PostConstruct
+    public void start() {
+        queue = new ArrayBlockingQueue<>(chatProperties.getPersistence().getQueueCapacity());
+        running = true;
+        flusher = new Thread(this::flushLoop, "chat-write-behind");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Queue a message for storage.
+     * Waits up to the offer timeout when the database falls behind.
+     * @return a future that completes when the message may be delivered: right away
+     *         in fire-and-forget mode, after its batch is stored in ack mode. It fails
+     *         with RejectedExecutionException when the queue stayed full.
+     */
+    public CompletableFuture<Void> enqueue(ChatMessage message) {
+        return offer(Operation.INSERT, message, null, null);
+    }
+
+    /**
+     * Queue a partial update of a message's content, applied after any pending insert of it
+     */
+    public CompletableFuture<Void> enqueueEdit(ChatMessage message, String content, LocalDateTime editedAt) {
+        return offer(Operation.EDIT, message, content, editedAt);
+    }
+
+    /**
+     * Queue a tombstone for a message, applied after any pending insert of it
+     */
+    public CompletableFuture<Void> enqueueDelete(ChatMessage message) {
+        return offer(Operation.DELETE, message, null, null);
+    }
+
+    private CompletableFuture<Void> offer(Operation operation, ChatMessage message, String content, LocalDateTime editedAt) {
+        ChatProperties.Persistence settings = chatProperties.getPersistence();
+        boolean ackAfterFlush = settings.getDurability() == ChatProperties.Durability.ACK_AFTER_FLUSH;
+        PendingWrite write = new PendingWrite(operation, message, content, editedAt,
+            ackAfterFlush ? new CompletableFuture<>() : null);
+
+        boolean queued;
+        try {
+            queued = running && queue.offer(write, settings.getOfferTimeout().toNanos(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            queued = false;
+        }
+
+        if (!queued) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Message store is overloaded"));
+        }
+        return ackAfterFlush ? write.stored() : ACCEPTED;
+    }
+
+    /**
+     * Number of writes waiting to be applied
+     */
+    public int getPendingCount() {
+        return queue.size();
+    }
+
+    private void flushLoop() {
+        ChatProperties.Persistence settings = chatProperties.getPersistence();
+        List<PendingWrite> batch = new ArrayList<>(settings.getBatchSize());
+
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingWrite first = queue.poll(settings.getFlushInterval().toNanos(), TimeUnit.NANOSECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+
+                // Fill the batch until it is full or the flush interval is over
+                long deadline = System.nanoTime() + settings.getFlushInterval().toNanos();
+                while (batch.size() < settings.getBatchSize()) {
+                    queue.drainTo(batch, settings.getBatchSize() - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= settings.getBatchSize() || remaining <= 0 || !running) {
+                        break;
+                    }
+                    PendingWrite next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // Shutdown: fall through and store whatever has been collected
+                running = false;
+            }
+
+            flush(batch);
+            batch.clear();
+        }
+    }
+
+    private void flush(List<PendingWrite> batch) {
+        // Consecutive inserts are stored with one insertMany; updates are applied in queue order
+        int start = 0;
+        while (start < batch.size()) {
+            int end = start;
+            if (batch.get(start).operation() == Operation.INSERT) {
+                while (end < batch.size() && batch.get(end).operation() == Operation.INSERT) {
+                    end++;
+                }
+                complete(batch.subList(start, end), insertAll(batch.subList(start, end)));
+            } else {
+                end = start + 1;
+                complete(batch.subList(start, end), update(batch.get(start)));
+            }
+            start = end;
+        }
+    }
+
+    private Throwable insertAll(List<PendingWrite> inserts) {
+        List<ChatMessage> messages = new ArrayList<>(inserts.size());
+        for (PendingWrite write : inserts) {
+            messages.add(write.message());
+        }
+
+        try {
+            chatMetrics.timeStore(ChatMetrics.StoreOperation.INSERT, () -> chatMessageRepository.insert(messages));
+            return null;
+        } catch (RuntimeException e) {
+            log.error("Error storing {} messages: {}", messages.size(), e.getMessage());
+            return e;
+        }
+    }
+
+    private Throwable update(PendingWrite write) {
+        ChatMessage message = write.message();
+        try {
+            if (write.operation() == Operation.EDIT) {
+                chatMetrics.timeStore(ChatMetrics.StoreOperation.EDIT, () -> chatMessageRepository.markEdited(
+                    message.getId(), message.getSender(), write.content(), write.editedAt()));
+            } else {
+                chatMetrics.timeStore(ChatMetrics.StoreOperation.DELETE,
+                    () -> chatMessageRepository.markDeleted(message.getId(), message.getSender()));
+            }
+            return null;
+        } catch (RuntimeException e) {
+            log.error("Error updating message {}: {}", message.getId(), e.getMessage());
+            return e;
+        }
+    }
+
+    private void complete(List<PendingWrite> writes, Throwable failure) {
+        for (PendingWrite write : writes) {
+            if (write.stored() == null) {
+                continue;
+            }
+            if (failure == null) {
+                write.stored().complete(null);
+            } else {
+                write.stored().completeExceptionally(failure);
+            }
+        }
+    }
+
+    /**
+     * Stop accepting messages and store everything that is still queued
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        running = false;
+        flusher.join(chatProperties.getPersistence().getShutdownTimeout().toMillis());
+        if (!queue.isEmpty()) {
+            log.warn("{} messages were not stored before shutdown", queue.size());
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.chatws.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Versioned presence of every room.
+ * Joins and leaves are collected per room and published as one coalesced
+ * delta per batching window; each published delta increments the room's version.
+ */
+class PresenceTracker {
+
+    /**
+     * Users added to and removed from a room since the previous version
+     */
+    record Delta(long version, List<String> added, List<String> removed) {
+    }
+
+    /**
+     * Full member list of a room at a version
+     */
+    record Snapshot(long version, List<String> users) {
+    }
+
+    private static class RoomPresence {
+        final ReentrantLock lock = new ReentrantLock();
+        final Set<String> users = new LinkedHashSet<>();
+        final Set<String> added = new LinkedHashSet<>();
+        final Set<String> removed = new LinkedHashSet<>();
+        long version;
+        // Set once an empty room has been dropped from the map
+        boolean retired;
+    }
+
+    private final Map<String, RoomPresence> rooms = new ConcurrentHashMap<>();
+
+    void userJoined(String room, String username) {
+        while (true) {
+            RoomPresence presence = rooms.computeIfAbsent(room, key -> new RoomPresence());
+            presence.lock.lock();
+            try {
+                if (presence.retired) {
+                    // Lost a race with the cleanup of the empty room; use the new entry
+                    continue;
+                }
+                presence.users.add(username);
+                // A leave followed by a join within one window cancels out
+                if (!presence.removed.remove(username)) {
+                    presence.added.add(username);
+                }
+                return;
+            } finally {
+                presence.lock.unlock();
+            }
+        }
+    }
+
+    void userLeft(String room, String username) {
+        RoomPresence presence = rooms.get(room);
+        if (presence == null) {
+            return;
+        }
+        presence.lock.lock();
+        try {
+            presence.users.remove(username);
+            if (!presence.added.remove(username)) {
+                presence.removed.add(username);
+            }
+        } finally {
+            presence.lock.unlock();
+        }
+    }
+
+    /**
+     * Get the current members of a room. Changes that are not published yet are
+     * already included; applying the next delta on top of it is harmless.
+     */
+    Snapshot snapshot(String room) {
+        RoomPresence presence = rooms.get(room);
+        if (presence == null) {
+            return new Snapshot(0, List.of());
+        }
+        presence.lock.lock();
+        try {
+            return new Snapshot(presence.version, new ArrayList<>(presence.users));
+        } finally {
+            presence.lock.unlock();
+        }
+    }
+
+    /**
+     * Turn the changes collected since the last call into one delta per changed room
+     */
+    Map<String, Delta> collectDeltas() {
+        Map<String, Delta> deltas = new HashMap<>();
+        for (Map.Entry<String, RoomPresence> entry : rooms.entrySet()) {
+            RoomPresence presence = entry.getValue();
+            presence.lock.lock();
+            try {
+                if (!presence.added.isEmpty() || !presence.removed.isEmpty()) {
+                    presence.version++;
+                    deltas.put(entry.getKey(), new Delta(presence.version,
+                        new ArrayList<>(presence.added), new ArrayList<>(presence.removed)));
+                    presence.added.clear();
+                    presence.removed.clear();
+                } else if (presence.users.isEmpty()) {
+                    // Nobody is left who could hold a version of this room
+                    presence.retired = true;
+                    rooms.remove(entry.getKey(), presence);
+                }
+            } finally {
+                presence.lock.unlock();
+            }
+        }
+        return deltas;
+    }
+}
@@ -0,0 +1,166 @@
+package org.chatws.service;
+
+import org.chatws.config.ChatProperties;
+import org.chatws.model.ChatMessage;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Token-bucket rate limiting with per-user budgets per message type and a
+ * per-connection byte budget.
+ * Each bucket is a single long (the GCRA "theoretical arrival time" in nanos),
+ * updated with compare-and-set: the check and the update are one atomic step and
+ * the hot path allocates nothing once a user's buckets exist.
+ */
+class RateLimiter {
+
+    private static final int TYPE_COUNT = ChatMessage.MessageType.values().length;
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    // Emission interval (nanos per token) and bucket size in nanos, per message type; 0 = unlimited
+    private final long[] intervalNanos = new long[TYPE_COUNT];
+    private final long[] capacityNanos = new long[TYPE_COUNT];
+    private final long byteIntervalNanos;
+    private final long byteCapacityNanos;
+    private final long idleNanos;
+    // System.nanoTime, or a fixed clock in tests
+    private final LongSupplier nanoClock;
+
+    private final Map<String, AtomicLongArray> userBuckets = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> connectionBuckets = new ConcurrentHashMap<>();
+
+    RateLimiter(ChatProperties.RateLimit settings) {
+        this(settings, System::nanoTime);
+    }
+
+    RateLimiter(ChatProperties.RateLimit settings, LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+        for (Map.Entry<ChatMessage.MessageType, ChatProperties.Bucket> entry : settings.getTypes().entrySet()) {
+            ChatProperties.Bucket bucket = entry.getValue();
+            if (bucket.getPerSecond() <= 0 || bucket.getBurst() <= 0) {
+                continue;
+            }
+            int type = entry.getKey().ordinal();
+            intervalNanos[type] = (long) (NANOS_PER_SECOND / bucket.getPerSecond());
+            capacityNanos[type] = intervalNanos[type] * bucket.getBurst();
+        }
+        byteIntervalNanos = Math.max(1, NANOS_PER_SECOND / settings.getBytesPerSecond());
+        byteCapacityNanos = byteIntervalNanos * settings.getBytesBurst();
+        idleNanos = settings.getIdleEviction().toNanos();
+    }
+
+    /**
+     * Take one token from a user's bucket for a message type
+     * @return false if the user is over budget (the bucket is left unchanged)
+     */
+    boolean tryAcquire(String username, ChatMessage.MessageType type) {
+        int index = type.ordinal();
+        if (intervalNanos[index] == 0) {
+            return true;
+        }
+        AtomicLongArray buckets = userBuckets.get(username);
+        if (buckets == null) {
+            buckets = userBuckets.computeIfAbsent(username, key -> newUserBuckets());
+        }
+
+        long now = nanoClock.getAsLong();
+        while (true) {
+            long arrival = buckets.get(index);
+            long next = later(arrival, now) + intervalNanos[index];
+            if (next - now > capacityNanos[index]) {
+                return false;
+            }
+            if (buckets.compareAndSet(index, arrival, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Charge the size of an inbound frame to a connection's byte budget
+     * @return false if the connection is over budget
+     */
+    boolean tryAcquireBytes(String connectionId, int bytes) {
+        AtomicLong bucket = connectionBuckets.get(connectionId);
+        if (bucket == null) {
+            bucket = connectionBuckets.computeIfAbsent(connectionId, key -> new AtomicLong(nanoClock.getAsLong()));
+        }
+
+        long now = nanoClock.getAsLong();
+        long cost = byteIntervalNanos * bytes;
+        while (true) {
+            long arrival = bucket.get();
+            long next = later(arrival, now) + cost;
+            if (next - now > byteCapacityNanos) {
+                return false;
+            }
+            if (bucket.compareAndSet(arrival, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * New buckets start full: their arrival time is "now"
+     */
+    private AtomicLongArray newUserBuckets() {
+        AtomicLongArray buckets = new AtomicLongArray(TYPE_COUNT);
+        long now = nanoClock.getAsLong();
+        for (int i = 0; i < TYPE_COUNT; i++) {
+            buckets.set(i, now);
+        }
+        return buckets;
+    }
+
+    /**
+     * The later of two nanoTime values (compared by difference, as nanoTime may wrap)
+     */
+    private static long later(long a, long b) {
+        return a - b > 0 ? a : b;
+    }
+
+    /**
+     * Time until the next message of this type would be accepted
+     */
+    long getRemainingCooldownMs(String username, ChatMessage.MessageType type) {
+        int index = type.ordinal();
+        AtomicLongArray buckets = userBuckets.get(username);
+        if (buckets == null || intervalNanos[index] == 0) {
+            return 0;
+        }
+        long waitNanos = buckets.get(index) + intervalNanos[index] - nanoClock.getAsLong() - capacityNanos[index];
+        return Math.max(0, waitNanos / 1_000_000);
+    }
+
+    /**
+     * Users and connections whose buckets are held in memory
+     */
+    int bucketCount() {
+        return userBuckets.size() + connectionBuckets.size();
+    }
+
+    void removeConnection(String connectionId) {
+        connectionBuckets.remove(connectionId);
+    }
+
+    /**
+     * Drop buckets that have been full (idle) for longer than the idle eviction time
+     */
+    void evictIdle() {
+        long now = nanoClock.getAsLong();
+        userBuckets.entrySet().removeIf(entry -> {
+            AtomicLongArray buckets = entry.getValue();
+            for (int i = 0; i < TYPE_COUNT; i++) {
+                if (now - buckets.get(i) < idleNanos) {
+                    return false;
+                }
+            }
+            return true;
+        });
+        connectionBuckets.entrySet().removeIf(entry -> now - entry.getValue().get() >= idleNanos);
+    }
+}
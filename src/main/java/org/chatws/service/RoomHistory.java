@@ -0,0 +1,146 @@
+package org.chatws.service;
+
+import org.chatws.model.ChatMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed-capacity ring buffer of the most recent messages of one room.
+ * Writers of a room are serialized by a per-room lock (uncontended, as appends run on the
+ * room's sequencer lane); readers never lock:
+ * they copy the slots and retry if a writer overwrote part of the range meanwhile.
+ * An id index gives O(1) lookup for edits and deletes.
+ *
+ * Every appended message gets the next sequence number of the room (its position + 1).
+ * Sequence numbers are only meaningful together with the history's epoch: a room whose
+ * history was evicted, or the same room on another node or after a restart, starts over
+ * with a new epoch.
+ */
+class RoomHistory {
+
+    private final int capacity;
+    private final String epoch;
+    // One spare slot, so the slot being overwritten is never part of a readable range
+    private final AtomicReferenceArray<ChatMessage> slots;
+    private final Map<String, ChatMessage> index = new ConcurrentHashMap<>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    // Number of messages ever appended; written after the slot it publishes
+    private volatile long head;
+    private volatile long lastActivityNanos = System.nanoTime();
+
+    RoomHistory(int capacity, String epoch) {
+        this.capacity = capacity;
+        this.epoch = epoch;
+        this.slots = new AtomicReferenceArray<>(capacity + 1);
+    }
+
+    /**
+     * Append a message, evicting the oldest one when the buffer is full
+     */
+    void append(ChatMessage message) {
+        writeLock.lock();
+        try {
+            long position = head;
+            // The oldest message leaves the readable range now, though its slot is only overwritten
+            // on the next append (the spare slot); it leaves the index now too
+            if (position >= capacity) {
+                ChatMessage evicted = slots.get((int) ((position - capacity) % slots.length()));
+                if (evicted != null && evicted.getId() != null) {
+                    index.remove(evicted.getId(), evicted);
+                }
+            }
+            message.setSeq(position + 1);
+            slots.set((int) (position % slots.length()), message);
+            if (message.getId() != null) {
+                index.put(message.getId(), message);
+            }
+            head = position + 1;
+            lastActivityNanos = System.nanoTime();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Copy the buffered messages, oldest first, without blocking writers
+     */
+    List<ChatMessage> snapshot() {
+        while (true) {
+            long end = head;
+            long start = Math.max(0, end - capacity);
+            List<ChatMessage> messages = copy(start, end);
+
+            // A writer at position p overwrites the slot of p - capacity - 1; retry if that reached our range
+            if (head - capacity - 1 < start) {
+                return messages;
+            }
+        }
+    }
+
+    /**
+     * Copy the buffered messages after the given sequence number, oldest first
+     * @return the messages, or null if some of them are no longer buffered (or the number was never handed out)
+     */
+    List<ChatMessage> since(long seq) {
+        while (true) {
+            long end = head;
+            if (seq < end - capacity || seq > end) {
+                return null;
+            }
+            List<ChatMessage> messages = copy(seq, end);
+
+            // As in snapshot; on the next round the range is either intact or known to be evicted
+            if (head - capacity - 1 < seq) {
+                return messages;
+            }
+        }
+    }
+
+    /**
+     * The message with the given sequence number, or null if it is not (or no longer) buffered
+     */
+    ChatMessage at(long seq) {
+        if (seq <= 0 || seq > head || seq <= head - capacity) {
+            return null;
+        }
+        ChatMessage message = slots.get((int) ((seq - 1) % slots.length()));
+        // The slot may have been overwritten since head was read
+        return message != null && Long.valueOf(seq).equals(message.getSeq()) ? message : null;
+    }
+
+    private List<ChatMessage> copy(long start, long end) {
+        List<ChatMessage> messages = new ArrayList<>((int) (end - start));
+        for (long position = start; position < end; position++) {
+            messages.add(slots.get((int) (position % slots.length())));
+        }
+        return messages;
+    }
+
+    /**
+     * Look up a buffered message by id
+     */
+    ChatMessage find(String id) {
+        return id != null ? index.get(id) : null;
+    }
+
+    String getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Sequence number of the newest message (0 while there is none)
+     */
+    long getLastSeq() {
+        return head;
+    }
+
+    long getLastActivityNanos() {
+        return lastActivityNanos;
+    }
+}
@@ -0,0 +1,212 @@
+package org.chatws.service;
+
+import jakarta.annotation.PostConstruct;
+import org.chatws.config.ChatProperties;
+import org.chatws.model.ChatMessage;
+import org.chatws.model.MessageId;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.zip.CRC32C;
+
+/**
+ * Read-through cache of the newest page of a room's history, as served by the REST API.
+ * Pages are bounded by their estimated size in memory (chat.history.page-cache-size) and
+ * evicted least recently used first. Every change of a room (a new, edited or deleted
+ * message, here or on another node) drops its pages; a page loaded while the room changed
+ * is returned but not cached.
+ * Each page carries an ETag over the ids and edit times of its messages and a Last-Modified
+ * time, so clients can revalidate with a conditional GET.
+ */
+@Component
+public class RoomPageCache {
+
+    /**
+     * A cached page
+     * @param messages newest first
+     * @param etag weak entity tag of the page's content
+     * @param lastModified newest message, edit or change of the room seen here, in epoch milliseconds
+     */
+    public record RoomPage(List<ChatMessage> messages, String etag, long lastModified) {
+    }
+
+    private record Key(String room, int limit) {
+    }
+
+    private record Entry(RoomPage page, long weight) {
+    }
+
+    /**
+     * Latest change of a room seen by this node; every change is a new instance, compared by identity
+     */
+    private static final class Change {
+
+        private final long timeMillis;
+
+        private Change(long timeMillis) {
+            this.timeMillis = timeMillis;
+        }
+    }
+
+    // Rough heap size of a message apart from its strings
+    private static final int MESSAGE_OVERHEAD = 160;
+
+    @Autowired
+    private ChatProperties chatProperties;
+
+    @Autowired
+    private ChatMetrics chatMetrics;
+
+    // Access-ordered, so iteration starts at the least recently used page
+    private final LinkedHashMap<Key, Entry> pages = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock lock = new ReentrantLock();
+    private long weight;
+
+    private final Map<String, Change> changes = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        chatMetrics.registerPageCache(this::getWeight);
+    }
+
+    /**
+     * The newest page of a room, from the cache or loaded (and cached) on a miss
+     * @param loader loads the page, newest first
+     */
+    public RoomPage get(String room, int limit, Supplier<List<ChatMessage>> loader) {
+        Key key = new Key(room, limit);
+        lock.lock();
+        try {
+            Entry entry = pages.get(key);
+            if (entry != null) {
+                chatMetrics.pageCacheLookup(true);
+                return entry.page();
+            }
+        } finally {
+            lock.unlock();
+        }
+        chatMetrics.pageCacheLookup(false);
+
+        Change before = changes.get(room);
+        List<ChatMessage> messages = loader.get();
+        RoomPage page = new RoomPage(messages, etag(messages), lastModified(messages, before));
+        long pageWeight = weigh(messages);
+        long capacity = chatProperties.getHistory().getPageCacheSize().toBytes();
+        if (pageWeight > capacity) {
+            return page;
+        }
+
+        lock.lock();
+        try {
+            // Only cache what no change of the room can have overtaken
+            if (changes.get(room) != before) {
+                return page;
+            }
+            Entry previous = pages.put(key, new Entry(page, pageWeight));
+            weight += pageWeight - (previous != null ? previous.weight() : 0);
+            Iterator<Entry> eldest = pages.values().iterator();
+            while (weight > capacity && eldest.hasNext()) {
+                weight -= eldest.next().weight();
+                eldest.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return page;
+    }
+
+    /**
+     * Drop the cached pages of a room after a change
+     */
+    public void invalidate(String room) {
+        changes.put(room, new Change(System.currentTimeMillis()));
+        drop(room);
+    }
+
+    /**
+     * Forget a room whose in-memory history was dropped (it has been idle for a while)
+     */
+    public void forget(String room) {
+        changes.remove(room);
+        drop(room);
+    }
+
+    private void drop(String room) {
+        lock.lock();
+        try {
+            Iterator<Map.Entry<Key, Entry>> entries = pages.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<Key, Entry> entry = entries.next();
+                if (entry.getKey().room().equals(room)) {
+                    weight -= entry.getValue().weight();
+                    entries.remove();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Estimated size of the cached pages in bytes
+     */
+    public long getWeight() {
+        lock.lock();
+        try {
+            return weight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static String etag(List<ChatMessage> messages) {
+        CRC32C checksum = new CRC32C();
+        for (ChatMessage message : messages) {
+            update(checksum, message.getId());
+            update(checksum, message.getEditedAt() != null ? message.getEditedAt().toString() : null);
+        }
+        return "W/\"" + messages.size() + "-" + Long.toHexString(checksum.getValue()) + "\"";
+    }
+
+    private static void update(CRC32C checksum, String value) {
+        if (value != null) {
+            checksum.update(value.getBytes(StandardCharsets.UTF_8));
+        }
+        checksum.update(0);
+    }
+
+    private static long lastModified(List<ChatMessage> messages, Change change) {
+        long newest = change != null ? change.timeMillis : 0;
+        for (ChatMessage message : messages) {
+            newest = Math.max(newest, epochMillis(message.getTimestamp()));
+            newest = Math.max(newest, epochMillis(message.getEditedAt()));
+        }
+        return newest;
+    }
+
+    private static long epochMillis(LocalDateTime time) {
+        return time != null ? MessageId.epochMillis(time) : 0;
+    }
+
+    private static long weigh(List<ChatMessage> messages) {
+        long bytes = 64;
+        for (ChatMessage message : messages) {
+            bytes += MESSAGE_OVERHEAD + length(message.getId()) + length(message.getContent())
+                + length(message.getSender()) + length(message.getRoom());
+        }
+        return bytes;
+    }
+
+    private static long length(String value) {
+        return value != null ? 40 + value.length() : 0;
+    }
+}
@@ -0,0 +1,107 @@
+package org.chatws.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Per-room typing state with server-side expiry.
+ * Updates only mark a room as changed; the changes are collected on a fixed tick,
+ * so typing traffic is bounded by rooms x ticks instead of keystrokes x connections.
+ */
+class TypingTracker {
+
+    private final long expiryNanos;
+    // System.nanoTime, or a fixed clock in tests
+    private final LongSupplier nanoClock;
+
+    // room -> (username -> expiry time in nanos)
+    private final Map<String, Map<String, Long>> typing = new ConcurrentHashMap<>();
+    private final Set<String> changedRooms = ConcurrentHashMap.newKeySet();
+    // Last set published per room; only touched by the tick, under the lock
+    private final Map<String, Set<String>> published = new HashMap<>();
+    // A lock instead of synchronized, so a virtual thread never pins its carrier here
+    private final ReentrantLock tickLock = new ReentrantLock();
+
+    TypingTracker(long expiryNanos) {
+        this(expiryNanos, System::nanoTime);
+    }
+
+    TypingTracker(long expiryNanos, LongSupplier nanoClock) {
+        this.expiryNanos = expiryNanos;
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * Record that a user started (or is still) typing in a room
+     */
+    void startTyping(String room, String username) {
+        long expiry = nanoClock.getAsLong() + expiryNanos;
+        // Updated inside compute so the tick cannot drop the room's map in between
+        typing.compute(room, (key, users) -> {
+            Map<String, Long> roomUsers = users != null ? users : new ConcurrentHashMap<>();
+            if (roomUsers.put(username, expiry) == null) {
+                changedRooms.add(room);
+            }
+            return roomUsers;
+        });
+    }
+
+    /**
+     * Record that a user stopped typing in a room
+     */
+    void stopTyping(String room, String username) {
+        typing.computeIfPresent(room, (key, users) -> {
+            if (users.remove(username) != null) {
+                changedRooms.add(room);
+            }
+            return users;
+        });
+    }
+
+    /**
+     * Expire stale entries and collect the rooms whose typing set differs from the last published one
+     * @return room -> users currently typing, for changed rooms only
+     */
+    Map<String, List<String>> collectChanges() {
+        tickLock.lock();
+        try {
+            long now = nanoClock.getAsLong();
+            for (Map.Entry<String, Map<String, Long>> room : typing.entrySet()) {
+                for (Map.Entry<String, Long> user : room.getValue().entrySet()) {
+                    // Conditional remove, so an entry refreshed meanwhile is kept
+                    if (now - user.getValue() > 0 && room.getValue().remove(user.getKey(), user.getValue())) {
+                        changedRooms.add(room.getKey());
+                    }
+                }
+            }
+
+            Map<String, List<String>> changes = new HashMap<>();
+            for (String room : changedRooms) {
+                changedRooms.remove(room);
+                Map<String, Long> users = typing.get(room);
+                Set<String> current = users != null ? new HashSet<>(users.keySet()) : new HashSet<>();
+                Set<String> previous = published.getOrDefault(room, Set.of());
+                if (!current.equals(previous)) {
+                    changes.put(room, new ArrayList<>(current));
+                }
+
+                if (current.isEmpty()) {
+                    published.remove(room);
+                    typing.computeIfPresent(room, (key, map) -> map.isEmpty() ? null : map);
+                } else {
+                    published.put(room, current);
+                }
+            }
+            return changes;
+        } finally {
+            tickLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,231 @@
+// Minimal CBOR (RFC 8949) codec for the "chatws.cbor" wire format.
+// Covers what chat frames use: maps, arrays, strings, numbers, booleans and null.
+const CBOR = (function() {
+    const textEncoder = new TextEncoder();
+    const textDecoder = new TextDecoder();
+
+    // Encode a value to an ArrayBuffer
+    function encode(value) {
+        const bytes = [];
+
+        function writeHead(majorType, length) {
+            const major = majorType << 5;
+            if (length < 24) {
+                bytes.push(major | length);
+            } else if (length < 0x100) {
+                bytes.push(major | 24, length);
+            } else if (length < 0x10000) {
+                bytes.push(major | 25, length >>> 8, length & 0xff);
+            } else if (length < 0x100000000) {
+                bytes.push(major | 26, length >>> 24, (length >>> 16) & 0xff, (length >>> 8) & 0xff, length & 0xff);
+            } else {
+                const high = Math.floor(length / 0x100000000);
+                bytes.push(major | 27, high >>> 24, (high >>> 16) & 0xff, (high >>> 8) & 0xff, high & 0xff,
+                    length >>> 24, (length >>> 16) & 0xff, (length >>> 8) & 0xff, length & 0xff);
+            }
+        }
+
+        function writeValue(item) {
+            if (item === null || item === undefined) {
+                bytes.push(0xf6);
+            } else if (item === false) {
+                bytes.push(0xf4);
+            } else if (item === true) {
+                bytes.push(0xf5);
+            } else if (typeof item === 'number') {
+                if (Number.isSafeInteger(item)) {
+                    if (item >= 0) {
+                        writeHead(0, item);
+                    } else {
+                        writeHead(1, -1 - item);
+                    }
+                } else {
+                    const view = new DataView(new ArrayBuffer(8));
+                    view.setFloat64(0, item);
+                    bytes.push(0xfb);
+                    for (let i = 0; i < 8; i++) {
+                        bytes.push(view.getUint8(i));
+                    }
+                }
+            } else if (typeof item === 'string') {
+                const utf8 = textEncoder.encode(item);
+                writeHead(3, utf8.length);
+                utf8.forEach(b => bytes.push(b));
+            } else if (Array.isArray(item)) {
+                writeHead(4, item.length);
+                item.forEach(writeValue);
+            } else {
+                const keys = Object.keys(item).filter(key => item[key] !== undefined);
+                writeHead(5, keys.length);
+                keys.forEach(key => {
+                    writeValue(key);
+                    writeValue(item[key]);
+                });
+            }
+        }
+
+        writeValue(value);
+        return new Uint8Array(bytes).buffer;
+    }
+
+    // Decode an ArrayBuffer holding one CBOR data item
+    function decode(buffer) {
+        const view = new DataView(buffer);
+        let offset = 0;
+
+        function readLength(additional) {
+            if (additional < 24) {
+                return additional;
+            }
+            let length;
+            switch (additional) {
+                case 24:
+                    length = view.getUint8(offset);
+                    offset += 1;
+                    return length;
+                case 25:
+                    length = view.getUint16(offset);
+                    offset += 2;
+                    return length;
+                case 26:
+                    length = view.getUint32(offset);
+                    offset += 4;
+                    return length;
+                case 27:
+                    length = view.getUint32(offset) * 0x100000000 + view.getUint32(offset + 4);
+                    offset += 8;
+                    return length;
+                case 31:
+                    return -1; // Indefinite length, terminated by a break (0xff)
+                default:
+                    throw new Error('Invalid CBOR length encoding: ' + additional);
+            }
+        }
+
+        function readHalfFloat() {
+            const half = view.getUint16(offset);
+            offset += 2;
+            const exponent = (half >>> 10) & 0x1f;
+            const fraction = half & 0x3ff;
+            const sign = half & 0x8000 ? -1 : 1;
+            if (exponent === 0) {
+                return sign * Math.pow(2, -14) * (fraction / 1024);
+            }
+            if (exponent === 0x1f) {
+                return fraction ? NaN : sign * Infinity;
+            }
+            return sign * Math.pow(2, exponent - 15) * (1 + fraction / 1024);
+        }
+
+        function isBreak() {
+            if (view.getUint8(offset) === 0xff) {
+                offset += 1;
+                return true;
+            }
+            return false;
+        }
+
+        function readBytes(length) {
+            const bytes = new Uint8Array(buffer, offset, length);
+            offset += length;
+            return bytes;
+        }
+
+        function readString(length, majorType) {
+            if (length >= 0) {
+                const bytes = readBytes(length);
+                return majorType === 3 ? textDecoder.decode(bytes) : bytes.slice();
+            }
+            // Indefinite length: a series of definite-length chunks
+            const chunks = [];
+            while (!isBreak()) {
+                const initial = view.getUint8(offset++);
+                chunks.push(readString(readLength(initial & 0x1f), majorType));
+            }
+            if (majorType === 3) {
+                return chunks.join('');
+            }
+            const joined = new Uint8Array(chunks.reduce((total, chunk) => total + chunk.length, 0));
+            let position = 0;
+            chunks.forEach(chunk => {
+                joined.set(chunk, position);
+                position += chunk.length;
+            });
+            return joined;
+        }
+
+        function readValue() {
+            const initial = view.getUint8(offset++);
+            const majorType = initial >>> 5;
+            const additional = initial & 0x1f;
+
+            switch (majorType) {
+                case 0:
+                    return readLength(additional);
+                case 1:
+                    return -1 - readLength(additional);
+                case 2:
+                case 3:
+                    return readString(readLength(additional), majorType);
+                case 4: {
+                    const length = readLength(additional);
+                    const array = [];
+                    if (length >= 0) {
+                        for (let i = 0; i < length; i++) {
+                            array.push(readValue());
+                        }
+                    } else {
+                        while (!isBreak()) {
+                            array.push(readValue());
+                        }
+                    }
+                    return array;
+                }
+                case 5: {
+                    const length = readLength(additional);
+                    const map = {};
+                    if (length >= 0) {
+                        for (let i = 0; i < length; i++) {
+                            const key = readValue();
+                            map[key] = readValue();
+                        }
+                    } else {
+                        while (!isBreak()) {
+                            const key = readValue();
+                            map[key] = readValue();
+                        }
+                    }
+                    return map;
+                }
+                case 6:
+                    // Tags carry no meaning for chat frames; return the tagged value
+                    readLength(additional);
+                    return readValue();
+                default: {
+                    let value;
+                    switch (additional) {
+                        case 20: return false;
+                        case 21: return true;
+                        case 22: return null;
+                        case 23: return undefined;
+                        case 25: return readHalfFloat();
+                        case 26:
+                            value = view.getFloat32(offset);
+                            offset += 4;
+                            return value;
+                        case 27:
+                            value = view.getFloat64(offset);
+                            offset += 8;
+                            return value;
+                        default:
+                            throw new Error('Unsupported CBOR simple value: ' + additional);
+                    }
+                }
+            }
+        }
+
+        return readValue();
+    }
+
+    return { encode, decode };
+})();
@@ -3,12 +3,27 @@ let socket;
 let username = '';
 let room = '';
 let activeUsers = [];
+let presenceVersion = 0;
 let isConnecting = false;
 let reconnectAttempts = 0;
 const MAX_RECONNECT_ATTEMPTS = 5;
 let typingTimeout;
+let isTypingActive = false;
+let lastTypingSentAt = 0;
+const TYPING_REFRESH_MS = 1000; // The server expires typing state after 3s without a refresh
 let isEditing = false;
 let editingMessageId = null;
+// Resume state: epoch of the room's history on the server and the last sequence number received,
+// sent with JOIN on reconnect so that the server only replays the messages missed meanwhile
+let historyEpoch = null;
+let lastSeq = 0;
+
+// Wire format: JSON by default, compact binary CBOR with ?wire=cbor (see cbor.js)
+const WIRE_PROTOCOLS = {
+    json: 'chatws.json',
+    cbor: 'chatws.cbor'
+};
+const wireFormat = new URLSearchParams(window.location.search).get('wire') === 'cbor' ? 'cbor' : 'json';
 
 // DOM Elements references
 const loginForm = document.getElementById('loginForm');
@@ -46,7 +61,8 @@ function connect() {
 
     updateConnectionStatus('Connecting...', 'bg-yellow-400');
 
-    socket = new WebSocket(wsUrl);
+    socket = new WebSocket(wsUrl, [WIRE_PROTOCOLS[wireFormat]]);
+    socket.binaryType = 'arraybuffer';
 
     // Connection opened
     socket.onopen = function(event) {
@@ -71,7 +87,8 @@ function connect() {
 
     // Listen for messages
     socket.onmessage = function(event) {
-        const messageData = JSON.parse(event.data);
+        // Binary frames are CBOR, text frames are JSON
+        const messageData = event.data instanceof ArrayBuffer ? CBOR.decode(event.data) : JSON.parse(event.data);
         handleReceivedMessage(messageData);
     };
 
@@ -130,41 +147,46 @@ function sendJoinMessage() {
             content: 'joined the chat',
             room: room
         };
-        socket.send(JSON.stringify(joinMessage));
+        if (historyEpoch) {
+            joinMessage.epoch = historyEpoch;
+            joinMessage.seq = lastSeq;
+        }
+        sendFrame(joinMessage);
 
-        // If room is specified, load message history from server and display room name
+        // The server answers with the room history (HISTORY frames); display the room name
         if (room) {
-            loadMessageHistory(room);
             roomDisplay.textContent = room;
             roomDisplay.classList.remove('hidden');
         }
     }
 }
 
-// Load message history from server
-function loadMessageHistory(roomName) {
-    fetch(`/api/messages/${roomName}`)
-        .then(response => {
-            if (!response.ok) {
-                throw new Error('Failed to load message history');
-            }
-            return response.json();
-        })
-        .then(messages => {
-            // Display messages in reverse order (oldest first)
-            messages.reverse().forEach(message => {
-                if (message.type === 'CHAT') {
-                    addChatMessage(message);
-                } else if (message.type === 'PRIVATE' && 
-                          (message.sender === username || message.recipient === username)) {
-                    addPrivateMessage(message);
-                }
-            });
-        })
-        .catch(error => {
-            console.error('Error loading message history:', error);
-            showToast('Failed to load message history', 'error');
-        });
+// Send a message in the wire format negotiated for the connection
+function sendFrame(message) {
+    if (socket.protocol === WIRE_PROTOCOLS.cbor) {
+        socket.send(CBOR.encode(message));
+    } else {
+        socket.send(JSON.stringify(message));
+    }
+}
+
+// Render a batch of earlier messages (oldest first) in one pass,
+// skipping messages that are already displayed
+function renderHistory(messages) {
+    const rendered = new Set(Array.from(messagesList.children, li => li.dataset.messageId));
+    const fragment = document.createDocumentFragment();
+
+    messages.forEach(message => {
+        if (rendered.has(message.id)) {
+            return;
+        }
+        rendered.add(message.id);
+        fragment.appendChild(message.type === 'PRIVATE' ?
+            createPrivateMessageElement(message) : createChatMessageElement(message));
+    });
+
+    messagesList.appendChild(fragment);
+    scrollToBottom();
 }
 
 // Request notification permission
@@ -2,6 +2,8 @@
 
 // Handle received message based on type
 function handleReceivedMessage(message) {
+    trackSeq(message);
+
     switch (message.type) {
         case 'CHAT':
             addChatMessage(message);
@@ -36,7 +38,12 @@ function handleReceivedMessage(message) {
             }
             break;
         case 'USERS':
-            updateActiveUsers(message.content.split(','));
+            // Full presence snapshot
+            presenceVersion = message.version || 0;
+            updateActiveUsers(message.content ? message.content.split(',') : []);
+            break;
+        case 'PRESENCE':
+            applyPresenceDelta(message);
             break;
         case 'TYPING':
             updateTypingIndicator(message.content.split(','));
@@ -47,13 +54,60 @@ function handleReceivedMessage(message) {
         case 'DELETE':
             deleteMessage(message);
             break;
+        case 'HISTORY':
+            renderHistory(message.messages || []);
+            break;
         default:
             console.log('Unknown message type:', message.type);
     }
 }
 
+// Remember how far the room's history has been received, for resuming after a reconnect.
+// A HISTORY frame covers everything up to its seq; live messages of the room carry their own seq.
+function trackSeq(message) {
+    if (message.type === 'HISTORY') {
+        if (message.epoch !== historyEpoch) {
+            historyEpoch = message.epoch;
+            lastSeq = 0;
+        }
+        lastSeq = Math.max(lastSeq, message.seq || 0);
+    } else if (message.seq && (message.room || '') === room) {
+        lastSeq = Math.max(lastSeq, message.seq);
+    }
+}
+
+// Apply a presence delta (users added/removed since the previous version)
+function applyPresenceDelta(message) {
+    if (message.version <= presenceVersion) {
+        return;
+    }
+
+    // A skipped version means a delta was lost; ask the server for a fresh snapshot
+    if (message.version !== presenceVersion + 1 && socket && socket.readyState === WebSocket.OPEN) {
+        sendFrame({ type: 'USERS', sender: username });
+    }
+    presenceVersion = message.version;
+
+    const removed = new Set(message.removed || []);
+    const users = activeUsers.filter(user => !removed.has(user));
+    (message.added || []).forEach(user => {
+        if (!users.includes(user)) {
+            users.push(user);
+        }
+    });
+    updateActiveUsers(users);
+}
+
 // Add a chat message to the display
 function addChatMessage(message) {
+    messagesList.appendChild(createChatMessageElement(message));
+
+    // Scroll to the bottom of the chat
+    scrollToBottom();
+}
+
+// Build the list item of a chat message
+function createChatMessageElement(message) {
     const li = document.createElement('li');
     li.className = message.sender === 'System' ? 
         'p-3 bg-white rounded-lg shadow-sm system-message message-appear' : 
@@ -126,6 +180,14 @@ function addChatMessage(message) {
     content.className = 'text-gray-700';
     content.textContent = message.content;
 
+    // Mark messages that were edited before they were loaded
+    if (message.editedAt) {
+        const editedIndicator = document.createElement('span');
+        editedIndicator.className = 'edited-indicator text-xs text-gray-500 ml-1';
+        editedIndicator.textContent = '(edited)';
+        content.appendChild(editedIndicator);
+    }
+
     // Create timestamp
     const timestamp = document.createElement('div');
     timestamp.className = 'timestamp';
@@ -141,14 +203,19 @@ function addChatMessage(message) {
 
     // Add message container to list item
     li.appendChild(messageContainer);
-    messagesList.appendChild(li);
+    return li;
+}
+
+// Add a private message to the display
+function addPrivateMessage(message) {
+    messagesList.appendChild(createPrivateMessageElement(message));
 
     // Scroll to the bottom of the chat
     scrollToBottom();
 }
 
-// Add a private message to the display
-function addPrivateMessage(message) {
+// Build the list item of a private message
+function createPrivateMessageElement(message) {
     const li = document.createElement('li');
     li.className = 'p-3 bg-white rounded-lg shadow-sm private-message message-appear';
 
@@ -227,6 +294,14 @@ function addPrivateMessage(message) {
     content.className = 'text-gray-700';
     content.textContent = message.content;
 
+    // Mark messages that were edited before they were loaded
+    if (message.editedAt) {
+        const editedIndicator = document.createElement('span');
+        editedIndicator.className = 'edited-indicator text-xs text-gray-500 ml-1';
+        editedIndicator.textContent = '(edited)';
+        content.appendChild(editedIndicator);
+    }
+
     // Create timestamp
     const timestamp = document.createElement('div');
     timestamp.className = 'timestamp';
@@ -242,10 +317,7 @@ function addPrivateMessage(message) {
 
     // Add message container to list item
     li.appendChild(messageContainer);
-    messagesList.appendChild(li);
-
-    // Scroll to the bottom of the chat
-    scrollToBottom();
+    return li;
 }
 
 // Send a message
@@ -281,7 +353,7 @@ function sendMessage() {
         message.recipient = recipient;
     }
 
-    socket.send(JSON.stringify(message));
+    sendFrame(message);
     messageInput.value = '';
     messageInput.focus();
 
@@ -300,14 +372,21 @@ function sendTypingStatus(isTyping) {
         clearTimeout(typingTimeout);
     }
 
-    // Send typing status
-    const typingMessage = {
-        type: 'TYPING',
-        content: isTyping.toString(),
-        sender: username
-    };
-
-    socket.send(JSON.stringify(typingMessage));
+    // Keystroke bursts only refresh the typing state about once a second,
+    // and a stop is only sent if a start was sent before
+    const now = Date.now();
+    const stateChanged = isTyping !== isTypingActive;
+    if (stateChanged || (isTyping && now - lastTypingSentAt >= TYPING_REFRESH_MS)) {
+        const typingMessage = {
+            type: 'TYPING',
+            content: isTyping.toString(),
+            sender: username
+        };
+
+        sendFrame(typingMessage);
+        lastTypingSentAt = now;
+    }
+    isTypingActive = isTyping;
 
     // If typing, set timeout to automatically send stopped typing after 2 seconds
     if (isTyping) {
@@ -324,14 +403,14 @@ function sendEditMessage(messageId, content) {
     }
 
     const editMessage = {
-        id: messageId,
         type: 'EDIT',
+        id: messageId,
         content: content,
         sender: username,
         room: room
     };
 
-    socket.send(JSON.stringify(editMessage));
+    sendFrame(editMessage);
 }
 
 // Send delete message
@@ -341,12 +420,12 @@ function sendDeleteMessage(messageId) {
     }
 
     const deleteMessage = {
-        id: messageId,
         type: 'DELETE',
+        id: messageId,
         content: '',
         sender: username,
         room: room
     };
 
-    socket.send(JSON.stringify(deleteMessage));
+    sendFrame(deleteMessage);
 }
\ No newline at end of file
@@ -0,0 +1,213 @@
+package org.chatws;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.chatws.bus.BusEvent;
+import org.chatws.bus.ChatBus;
+import org.chatws.bus.LoopbackChatBus;
+import org.chatws.bus.LoopbackUsernameRegistry;
+import org.chatws.bus.UsernameRegistry;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Primary;
+
+import java.net.http.HttpClient;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.chatws.TestClient.frame;
+import static org.chatws.TestClient.type;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Two nodes in one JVM, connected by one loopback bus and one username registry: messages,
+ * private messages, presence and username claims across nodes, and the expiry of the users
+ * of a node whose heartbeats stop arriving.
+ */
+class ChatClusterTests {
+
+    private static final PartitionableBus BUS = new PartitionableBus();
+    private static final LoopbackUsernameRegistry REGISTRY = new LoopbackUsernameRegistry();
+    private static final AtomicInteger NAMES = new AtomicInteger();
+
+    private static ConfigurableApplicationContext nodeA;
+    private static ConfigurableApplicationContext nodeB;
+
+    private final HttpClient httpClient = HttpClient.newHttpClient();
+    private final List<TestClient> clients = new ArrayList<>();
+
+    /**
+     * The bus and registry the nodes share, in place of the ones each context creates
+     */
+    @TestConfiguration
+    static class SharedBus {
+
+        @Bean
+        @Primary
+        ChatBus sharedChatBus() {
+            return BUS;
+        }
+
+        @Bean
+        @Primary
+        UsernameRegistry sharedUsernameRegistry() {
+            return REGISTRY;
+        }
+    }
+
+    /**
+     * Loopback bus that can drop the events of a node, as a network partition or a crash would
+     */
+    static final class PartitionableBus extends LoopbackChatBus {
+
+        private final Set<String> silenced = ConcurrentHashMap.newKeySet();
+
+        @Override
+        public void publish(BusEvent event) {
+            if (!silenced.contains(event.origin())) {
+                super.publish(event);
+            }
+        }
+    }
+
+    @BeforeAll
+    static void startNodes() {
+        nodeA = start("node-a");
+        nodeB = start("node-b");
+    }
+
+    @AfterAll
+    static void stopNodes() {
+        nodeB.close();
+        nodeA.close();
+    }
+
+    @AfterEach
+    void closeClients() {
+        clients.forEach(TestClient::close);
+        BUS.silenced.clear();
+    }
+
+    @Test
+    void roomMessagesAndPresenceCrossNodes() throws Exception {
+        String room = unique("room");
+        TestClient alice = connect(nodeA);
+        alice.join(unique("alice"), room);
+        alice.next(frame -> type(frame, "USERS"));
+        TestClient bob = connect(nodeB);
+        bob.join(unique("bob"), room);
+
+        // Bob's snapshot has Alice from the other node; Alice learns about Bob from a delta
+        assertTrue(bob.next(frame -> type(frame, "USERS")).get("content").asText().contains(alice.username));
+        alice.next(frame -> added(frame, bob.username));
+
+        alice.send(frame("CHAT").put("sender", alice.username).put("content", "from a"));
+        JsonNode received = bob.next(frame -> type(frame, "CHAT") && "from a".equals(frame.get("content").asText()));
+        assertEquals(alice.username, received.get("sender").asText());
+        bob.send(frame("CHAT").put("sender", bob.username).put("content", "from b"));
+        alice.next(frame -> type(frame, "CHAT") && "from b".equals(frame.get("content").asText()));
+    }
+
+    @Test
+    void privateMessagesAreRoutedToTheRecipientsNode() throws Exception {
+        String room = unique("room");
+        TestClient alice = connect(nodeA);
+        TestClient bob = connect(nodeB);
+        TestClient carol = connect(nodeB);
+        alice.join(unique("alice"), room);
+        bob.join(unique("bob"), room);
+        carol.join(unique("carol"), room);
+        for (TestClient client : List.of(alice, bob, carol)) {
+            client.next(frame -> type(frame, "USERS"));
+        }
+
+        alice.send(frame("PRIVATE").put("recipient", bob.username).put("content", "psst"));
+        alice.send(frame("CHAT").put("content", "marker"));
+
+        JsonNode received = bob.next(frame -> type(frame, "PRIVATE"));
+        assertEquals(alice.username, received.get("sender").asText());
+        assertEquals("psst", received.get("content").asText());
+        List<JsonNode> seen = carol.until(frame -> type(frame, "CHAT") && "marker".equals(frame.get("content").asText()));
+        assertFalse(seen.stream().anyMatch(frame -> type(frame, "PRIVATE")));
+    }
+
+    @Test
+    void usernameClaimedOnOneNodeIsRefusedOnTheOther() throws Exception {
+        String username = unique("alice");
+        TestClient alice = connect(nodeA);
+        alice.join(username, unique("room"));
+        alice.next(frame -> type(frame, "USERS"));
+
+        TestClient impostor = connect(nodeB);
+        impostor.join(username, unique("room"));
+        assertTrue(impostor.next(frame -> type(frame, "CHAT")).get("content").asText().contains("already taken"));
+    }
+
+    @Test
+    void usersOfASilentNodeExpireAndReturnWithIt() throws Exception {
+        String room = unique("room");
+        TestClient alice = connect(nodeA);
+        alice.join(unique("alice"), room);
+        alice.next(frame -> type(frame, "USERS"));
+        TestClient bob = connect(nodeB);
+        bob.join(unique("bob"), room);
+        alice.next(frame -> added(frame, bob.username));
+
+        // Node B's events, heartbeats included, stop reaching node A: after the claim TTL Bob is gone there
+        BUS.silenced.add("node-b");
+        alice.next(frame -> removed(frame, bob.username));
+
+        // Once node A hears from node B again, it asks for B's users
+        BUS.silenced.clear();
+        alice.next(frame -> added(frame, bob.username));
+    }
+
+    private static ConfigurableApplicationContext start(String nodeId) {
+        // Arguments rather than default properties, which application.properties would override
+        return new SpringApplicationBuilder(ChatWsApplication.class, SharedBus.class)
+            .profiles("memory")
+            .run("--server.port=0", "--chat.bus.node-id=" + nodeId,
+                "--chat.bus.claim-refresh=200ms", "--chat.bus.claim-ttl=2s");
+    }
+
+    private TestClient connect(ConfigurableApplicationContext node) {
+        int port = ((WebServerApplicationContext) node).getWebServer().getPort();
+        TestClient client = TestClient.connect(httpClient, port, "chatws.json");
+        clients.add(client);
+        return client;
+    }
+
+    private static boolean added(JsonNode frame, String username) {
+        return type(frame, "PRESENCE") && contains(frame.get("added"), username);
+    }
+
+    private static boolean removed(JsonNode frame, String username) {
+        return type(frame, "PRESENCE") && contains(frame.get("removed"), username);
+    }
+
+    private static boolean contains(JsonNode usernames, String username) {
+        if (usernames != null) {
+            for (JsonNode name : usernames) {
+                if (username.equals(name.asText())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String unique(String prefix) {
+        return prefix + "-" + NAMES.incrementAndGet();
+    }
+}
@@ -0,0 +1,421 @@
+package org.chatws;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.test.context.TestPropertySource;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.chatws.TestClient.TIMEOUT_MILLIS;
+import static org.chatws.TestClient.frame;
+import static org.chatws.TestClient.type;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The chat protocol as a client sees it, run against each web stack (servlet and reactive)
+ * by the subclasses. Every test uses rooms and usernames of its own, as the server is shared.
+ * Room histories are kept small, so a few messages are enough to run past them.
+ */
+@TestPropertySource(properties = "chat.history.room-capacity=" + ChatProtocolTests.ROOM_CAPACITY)
+abstract class ChatProtocolTests {
+
+    static final int ROOM_CAPACITY = 8;
+
+    private static final AtomicInteger NAMES = new AtomicInteger();
+
+    @LocalServerPort
+    private int port;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final HttpClient httpClient = HttpClient.newHttpClient();
+    private final List<TestClient> clients = new ArrayList<>();
+
+    @AfterEach
+    void closeClients() {
+        for (TestClient client : clients) {
+            client.close();
+        }
+    }
+
+    @Test
+    void joinReplaysHistoryAndPresence() throws Exception {
+        String room = unique("room");
+        TestClient alice = connect("chatws.json");
+        alice.join(unique("alice"), room);
+
+        JsonNode history = alice.next(frame -> type(frame, "HISTORY"));
+        assertTrue(history.get("messages").isArray());
+        assertNotNull(history.get("token"));
+        JsonNode users = alice.next(frame -> type(frame, "USERS"));
+        assertTrue(users.get("content").asText().contains(alice.username));
+    }
+
+    @Test
+    void roomMessagesReachEveryMemberInOrder() throws Exception {
+        String room = unique("room");
+        TestClient alice = connect("chatws.json");
+        TestClient bob = connect("chatws.json");
+        alice.join(unique("alice"), room);
+        bob.join(unique("bob"), room);
+        alice.next(frame -> type(frame, "USERS"));
+        bob.next(frame -> type(frame, "USERS"));
+
+        // Within the CHAT burst of the rate limit
+        int count = 5;
+        for (int i = 0; i < count; i++) {
+            alice.send(frame("CHAT").put("content", "m-" + i));
+        }
+        for (TestClient client : List.of(alice, bob)) {
+            for (int i = 0; i < count; i++) {
+                JsonNode message = client.next(frame -> type(frame, "CHAT") && frame.get("content").asText().startsWith("m-"));
+                assertEquals("m-" + i, message.get("content").asText());
+                assertEquals(room, message.get("room").asText());
+                assertEquals(i + 1, message.get("seq").asLong());
+            }
+        }
+    }
+
+    @Test
+    void resumeReplaysOnlyTheMissedMessages() throws Exception {
+        String room = unique("room");
+        TestClient alice = connect("chatws.json");
+        alice.join(unique("alice"), room);
+        String epoch = alice.next(frame -> type(frame, "HISTORY")).get("epoch").asText();
+        long seen = sendAll(alice, "seen-", 2);
+
+        // Messages sent while the client was away
+        TestClient bob = connect("chatws.json");
+        bob.join(unique("bob"), room);
+        sendAll(bob, "missed-", 2);
+
+        TestClient again = connect("chatws.json");
+        again.send(frame("JOIN").put("sender", unique("alice")).put("room", room).put("epoch", epoch).put("seq", seen));
+        JsonNode history = again.next(frame -> type(frame, "HISTORY"));
+        assertTrue(history.get("resumed").asBoolean());
+        assertEquals(epoch, history.get("epoch").asText());
+        assertEquals(seen + 2, history.get("seq").asLong());
+        assertEquals(List.of("missed-0", "missed-1"), contents(history));
+    }
+
+    @Test
+    void resumeOfAnotherEpochReplaysTheFullHistory() throws Exception {
+        String room = unique("room");
+        TestClient alice = connect("chatws.json");
+        alice.join(unique("alice"), room);
+        alice.next(frame -> type(frame, "HISTORY"));
+        long seen = sendAll(alice, "m-", 2);
+
+        TestClient again = connect("chatws.json");
+        again.send(frame("JOIN").put("sender", unique("alice")).put("room", room).put("epoch", "stale").put("seq", seen));
+        JsonNode history = again.next(frame -> type(frame, "HISTORY"));
+        assertFalse(history.get("resumed").asBoolean());
+        assertEquals(List.of("m-0", "m-1"), contents(history));
+    }
+
+    @Test
+    void resumeOfAnEvictedGapReplaysTheFullHistory() throws Exception {
+        String room = unique("room");
+        TestClient alice = connect("chatws.json");
+        alice.join(unique("alice"), room);
+        String epoch = alice.next(frame -> type(frame, "HISTORY")).get("epoch").asText();
+        long seen = sendAll(alice, "a-", 1);
+
+        // More messages than the room history holds (from two senders, within their rate limits)
+        TestClient bob = connect("chatws.json");
+        bob.join(unique("bob"), room);
+        sendAll(bob, "b-", 5);
+        sendAll(alice, "c-", 4);
+
+        TestClient again = connect("chatws.json");
+        again.send(frame("JOIN").put("sender", unique("alice")).put("room", room).put("epoch", epoch).put("seq", seen));
+        JsonNode history = again.next(frame -> type(frame, "HISTORY"));
+        assertFalse(history.get("resumed").asBoolean());
+        List<String> contents = contents(history);
+        assertTrue(contents.size() >= ROOM_CAPACITY);
+        assertEquals("c-3", contents.getLast());
+    }
+
+    @Test
+    void presenceChangesArriveAsConsecutiveDeltas() throws Exception {
+        String room = unique("room");
+        TestClient alice = connect("chatws.json");
+        alice.join(unique("alice"), room);
+        long version = alice.next(frame -> type(frame, "USERS")).get("version").asLong();
+
+        TestClient bob = connect("chatws.json");
+        bob.join(unique("bob"), room);
+        List<JsonNode> deltas = new ArrayList<>(alice.until(frame -> type(frame, "PRESENCE")
+            && frame.get("added").toString().contains('"' + bob.username + '"')));
+        // Left only once the join is published; a join and leave within one window cancel out
+        bob.send(frame("LEAVE"));
+        deltas.addAll(alice.until(frame -> type(frame, "PRESENCE")
+            && frame.get("removed").toString().contains('"' + bob.username + '"')));
+
+        // Each delta follows the version of the snapshot, or of the delta before it; no full list is resent
+        assertFalse(deltas.stream().anyMatch(frame -> type(frame, "USERS")));
+        for (JsonNode delta : deltas.stream().filter(frame -> type(frame, "PRESENCE")).toList()) {
+            assertEquals(++version, delta.get("version").asLong());
+        }
+
+        // A client that missed a version asks for a fresh snapshot, at the version of the last delta
+        alice.send(frame("USERS"));
+        JsonNode snapshot = alice.next(frame -> type(frame, "USERS"));
+        assertEquals(version, snapshot.get("version").asLong());
+        assertEquals(alice.username, snapshot.get("content").asText());
+    }
+
+    @Test
+    void typingUpdatesAreCoalescedPerTick() throws Exception {
+        String room = unique("room");
+        TestClient alice = connect("chatws.json");
+        TestClient bob = connect("chatws.json");
+        alice.join(unique("alice"), room);
+        bob.join(unique("bob"), room);
+        alice.next(frame -> type(frame, "USERS"));
+        bob.next(frame -> type(frame, "USERS"));
+
+        for (int i = 0; i < 3; i++) {
+            bob.send(frame("TYPING").put("content", "true"));
+        }
+        assertEquals(bob.username, alice.next(frame -> type(frame, "TYPING")).get("content").asText());
+
+        // The typing set did not change again, so no further TYPING frame precedes the marker
+        bob.send(frame("CHAT").put("sender", bob.username).put("content", "marker"));
+        List<JsonNode> seen = alice.until(frame -> type(frame, "CHAT") && "marker".equals(frame.get("content").asText()));
+        assertFalse(seen.stream().anyMatch(frame -> type(frame, "TYPING")));
+
+        bob.send(frame("TYPING").put("content", "false"));
+        assertEquals("", alice.next(frame -> type(frame, "TYPING")).get("content").asText());
+    }
+
+    @Test
+    void takenUsernameIsRefused() throws Exception {
+        String username = unique("alice");
+        connect("chatws.json").join(username, unique("room"));
+        TestClient impostor = connect("chatws.json");
+        impostor.join(username, unique("room"));
+
+        JsonNode refusal = impostor.next(frame -> type(frame, "CHAT"));
+        assertTrue(refusal.get("content").asText().contains("already taken"));
+    }
+
+    @Test
+    void joiningAnotherRoomLeavesTheFirst() throws Exception {
+        String first = unique("room");
+        String second = unique("room");
+        TestClient alice = connect("chatws.json");
+        TestClient bob = connect("chatws.json");
+        TestClient carol = connect("chatws.json");
+        String oldName = unique("alice");
+        alice.join(oldName, first);
+        bob.join(unique("bob"), first);
+        carol.join(unique("carol"), second);
+        for (TestClient client : List.of(alice, bob, carol)) {
+            client.next(frame -> type(frame, "USERS"));
+        }
+
+        alice.join(unique("alice"), second);
+        alice.next(frame -> type(frame, "USERS"));
+        bob.next(frame -> type(frame, "CHAT") && (oldName + " has left the chat.").equals(frame.get("content").asText()));
+
+        bob.send(frame("CHAT").put("sender", bob.username).put("content", "first room"));
+        bob.next(frame -> type(frame, "CHAT") && "first room".equals(frame.get("content").asText()));
+        carol.send(frame("CHAT").put("sender", carol.username).put("content", "second room"));
+        List<JsonNode> seen = alice.until(frame -> type(frame, "CHAT") && "second room".equals(frame.get("content").asText()));
+        assertFalse(seen.stream().anyMatch(frame -> "first room".equals(frame.path("content").asText())));
+
+        // The old name is free again
+        TestClient other = connect("chatws.json");
+        other.join(oldName, first);
+        assertTrue(other.next(frame -> type(frame, "USERS")).get("content").asText().contains(oldName));
+    }
+
+    @Test
+    void privateMessagesOnlyReachTheirParticipants() throws Exception {
+        String room = unique("room");
+        TestClient alice = connect("chatws.json");
+        TestClient bob = connect("chatws.json");
+        TestClient carol = connect("chatws.json");
+        alice.join(unique("alice"), room);
+        bob.join(unique("bob"), room);
+        carol.join(unique("carol"), room);
+        for (TestClient client : List.of(alice, bob, carol)) {
+            client.next(frame -> type(frame, "USERS"));
+        }
+
+        // The sender is taken from the session, not from the frame
+        alice.send(frame("PRIVATE").put("recipient", bob.username).put("sender", carol.username).put("content", "psst"));
+        alice.send(frame("CHAT").put("content", "marker"));
+
+        JsonNode received = bob.next(frame -> type(frame, "PRIVATE"));
+        assertEquals(alice.username, received.get("sender").asText());
+        assertEquals("psst", received.get("content").asText());
+        assertEquals("psst", alice.next(frame -> type(frame, "PRIVATE")).get("content").asText());
+        List<JsonNode> seen = carol.until(frame -> type(frame, "CHAT") && "marker".equals(frame.get("content").asText()));
+        assertFalse(seen.stream().anyMatch(frame -> type(frame, "PRIVATE")));
+    }
+
+    @Test
+    void conversationsAreOnlyServedForTheTokenOfAnOnlineUser() throws Exception {
+        String room = unique("room");
+        TestClient alice = connect("chatws.json");
+        TestClient bob = connect("chatws.json");
+        alice.join(unique("alice"), room);
+        bob.join(unique("bob"), room);
+        String token = alice.next(frame -> type(frame, "HISTORY")).get("token").asText();
+        bob.next(frame -> type(frame, "USERS"));
+        alice.send(frame("PRIVATE").put("recipient", bob.username).put("content", "psst"));
+        bob.next(frame -> type(frame, "PRIVATE"));
+
+        assertEquals("psst", storedConversation("/" + bob.username, token).get(0).get("content").asText());
+        assertEquals("psst", storedConversation("", token).get(0).get("content").asText());
+
+        assertEquals(401, getConversation("/" + bob.username, null).statusCode());
+        assertEquals(401, getConversation("/" + bob.username, "not-a-token").statusCode());
+        // The token goes with its user once they leave
+        alice.send(frame("LEAVE"));
+        bob.next(frame -> type(frame, "CHAT") && frame.get("content").asText().equals(alice.username + " has left the chat."));
+        assertEquals(401, getConversation("/" + bob.username, token).statusCode());
+    }
+
+    @Test
+    void privateEditsAndDeletesOnlyReachTheParticipants() throws Exception {
+        String room = unique("room");
+        TestClient alice = connect("chatws.json");
+        TestClient bob = connect("chatws.json");
+        TestClient carol = connect("chatws.json");
+        alice.join(unique("alice"), room);
+        bob.join(unique("bob"), room);
+        carol.join(unique("carol"), room);
+        for (TestClient client : List.of(alice, bob, carol)) {
+            client.next(frame -> type(frame, "USERS"));
+        }
+        alice.send(frame("PRIVATE").put("recipient", bob.username).put("content", "psst"));
+        String id = alice.next(frame -> type(frame, "PRIVATE")).get("id").asText();
+
+        alice.send(frame("EDIT").put("id", id).put("content", "psst!"));
+        alice.send(frame("DELETE").put("id", id));
+        alice.send(frame("CHAT").put("content", "marker"));
+        for (TestClient client : List.of(alice, bob)) {
+            JsonNode edit = client.next(frame -> type(frame, "EDIT"));
+            assertEquals(id, edit.get("id").asText());
+            assertEquals("psst!", edit.get("content").asText());
+            assertEquals(id, client.next(frame -> type(frame, "DELETE")).get("id").asText());
+        }
+        List<JsonNode> seen = carol.until(frame -> type(frame, "CHAT") && "marker".equals(frame.get("content").asText()));
+        assertFalse(seen.stream().anyMatch(frame -> type(frame, "PRIVATE") || type(frame, "EDIT") || type(frame, "DELETE")));
+    }
+
+    @Test
+    void malformedFrameClosesTheConnection() throws Exception {
+        TestClient alice = connect("chatws.json");
+        alice.join(unique("alice"), unique("room"));
+        alice.next(frame -> type(frame, "USERS"));
+
+        alice.sendText("{not json");
+        assertEquals(1007, alice.closed.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void cborIsNegotiatedBySubProtocol() throws Exception {
+        TestClient alice = connect("chatws.cbor");
+        assertEquals("chatws.cbor", alice.webSocket.getSubprotocol());
+        alice.join(unique("alice"), unique("room"));
+
+        JsonNode history = alice.next(frame -> type(frame, "HISTORY"));
+        assertTrue(alice.binaryFrames.get() > 0);
+        assertTrue(history.get("messages").isArray());
+    }
+
+    @Test
+    void roomPageRevalidatesWithItsEtag() throws Exception {
+        String room = unique("room");
+        TestClient alice = connect("chatws.json");
+        alice.join(unique("alice"), room);
+        alice.send(frame("CHAT").put("content", "hello"));
+        alice.next(frame -> type(frame, "CHAT") && "hello".equals(frame.get("content").asText()));
+
+        HttpResponse<String> page = get(room, null);
+        assertEquals(200, page.statusCode());
+        assertEquals("hello", objectMapper.readTree(page.body()).get(0).get("content").asText());
+        String etag = page.headers().firstValue("ETag").orElseThrow();
+
+        HttpResponse<String> revalidated = get(room, etag);
+        assertEquals(304, revalidated.statusCode());
+        assertTrue(revalidated.body().isEmpty());
+    }
+
+    /**
+     * Send CHAT messages and wait for their echo
+     * @return the seq of the last one
+     */
+    private static long sendAll(TestClient client, String prefix, int count) throws InterruptedException {
+        for (int i = 0; i < count; i++) {
+            client.send(frame("CHAT").put("content", prefix + i));
+        }
+        String last = prefix + (count - 1);
+        return client.next(frame -> type(frame, "CHAT") && last.equals(frame.get("content").asText())).get("seq").asLong();
+    }
+
+    private static List<String> contents(JsonNode history) {
+        List<String> contents = new ArrayList<>();
+        history.get("messages").forEach(message -> contents.add(message.get("content").asText()));
+        return contents;
+    }
+
+    private HttpResponse<String> get(String room, String etag) throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/api/messages/" + room));
+        if (etag != null) {
+            request.header("If-None-Match", etag);
+        }
+        return httpClient.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    /**
+     * A conversation page once it is not empty: the endpoints read the store, which gets messages after their batch flush
+     */
+    private JsonNode storedConversation(String path, String token) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (true) {
+            HttpResponse<String> page = getConversation(path, token);
+            assertEquals(200, page.statusCode());
+            JsonNode messages = objectMapper.readTree(page.body());
+            if (!messages.isEmpty() || System.currentTimeMillis() > deadline) {
+                return messages;
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    private HttpResponse<String> getConversation(String path, String token) throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/api/conversations" + path));
+        if (token != null) {
+            request.header("X-Chat-Token", token);
+        }
+        return httpClient.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private TestClient connect(String subProtocol) {
+        TestClient client = TestClient.connect(httpClient, port, subProtocol);
+        clients.add(client);
+        return client;
+    }
+
+    private static String unique(String prefix) {
+        return prefix + "-" + NAMES.incrementAndGet();
+    }
+}
@@ -0,0 +1,26 @@
+package org.chatws;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.boot.web.embedded.netty.NettyWebServer;
+import org.springframework.test.context.ActiveProfiles;
+
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+
+/**
+ * The protocol on WebFlux and Reactor Netty (the "reactive" profile)
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@ActiveProfiles({"memory", "reactive"})
+class ReactiveChatProtocolTests extends ChatProtocolTests {
+
+    @Autowired
+    private WebServerApplicationContext context;
+
+    @Test
+    void runsOnReactorNetty() {
+        assertInstanceOf(NettyWebServer.class, context.getWebServer());
+    }
+}
@@ -0,0 +1,26 @@
+package org.chatws;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.boot.web.embedded.tomcat.TomcatWebServer;
+import org.springframework.test.context.ActiveProfiles;
+
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+
+/**
+ * The protocol on servlet WebSocket and Tomcat (the default mode)
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@ActiveProfiles("memory")
+class ServletChatProtocolTests extends ChatProtocolTests {
+
+    @Autowired
+    private WebServerApplicationContext context;
+
+    @Test
+    void runsOnTomcat() {
+        assertInstanceOf(TomcatWebServer.class, context.getWebServer());
+    }
+}
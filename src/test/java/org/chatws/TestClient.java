@@ -0,0 +1,153 @@
+package org.chatws;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.WebSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * A WebSocket client of /chat that collects the frames it receives, JSON or CBOR
+ */
+final class TestClient implements WebSocket.Listener {
+
+    static final long TIMEOUT_MILLIS = 10_000;
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final CBORMapper CBOR_MAPPER = new CBORMapper();
+
+    private final BlockingQueue<JsonNode> frames = new LinkedBlockingQueue<>();
+    final CompletableFuture<Integer> closed = new CompletableFuture<>();
+    final AtomicInteger binaryFrames = new AtomicInteger();
+    private final StringBuilder text = new StringBuilder();
+    private final ByteArrayOutputStream binary = new ByteArrayOutputStream();
+    WebSocket webSocket;
+    String username;
+
+    static TestClient connect(HttpClient httpClient, int port, String subProtocol) {
+        TestClient client = new TestClient();
+        client.webSocket = httpClient.newWebSocketBuilder()
+            .subprotocols(subProtocol)
+            .buildAsync(URI.create("ws://localhost:" + port + "/chat"), client)
+            .join();
+        return client;
+    }
+
+    static ObjectNode frame(String type) {
+        return OBJECT_MAPPER.createObjectNode().put("type", type);
+    }
+
+    static boolean type(JsonNode frame, String type) {
+        return type.equals(frame.path("type").asText());
+    }
+
+    void join(String username, String room) {
+        this.username = username;
+        send(frame("JOIN").put("sender", username).put("room", room));
+    }
+
+    void send(ObjectNode frame) {
+        sendText(frame.toString());
+    }
+
+    void sendText(String frame) {
+        webSocket.sendText(frame, true).join();
+    }
+
+    /**
+     * The next frame that matches, skipping others
+     */
+    JsonNode next(Predicate<JsonNode> match) throws InterruptedException {
+        List<JsonNode> seen = until(match);
+        return seen.getLast();
+    }
+
+    /**
+     * The frames received up to and including the next one that matches
+     */
+    List<JsonNode> until(Predicate<JsonNode> match) throws InterruptedException {
+        List<JsonNode> seen = new ArrayList<>();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (true) {
+            JsonNode frame = frames.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+            if (frame == null) {
+                fail("No matching frame for " + username + " after " + seen);
+            }
+            seen.add(frame);
+            if (match.test(frame)) {
+                return seen;
+            }
+        }
+    }
+
+    void close() {
+        if (!webSocket.isOutputClosed()) {
+            webSocket.sendClose(WebSocket.NORMAL_CLOSURE, "").exceptionally(e -> null);
+        }
+    }
+
+    @Override
+    public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+        text.append(data);
+        if (last) {
+            frames.add(parse(() -> OBJECT_MAPPER.readTree(text.toString())));
+            text.setLength(0);
+        }
+        webSocket.request(1);
+        return null;
+    }
+
+    @Override
+    public CompletionStage<?> onBinary(WebSocket webSocket, ByteBuffer data, boolean last) {
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        binary.writeBytes(bytes);
+        if (last) {
+            binaryFrames.incrementAndGet();
+            frames.add(parse(() -> CBOR_MAPPER.readTree(binary.toByteArray())));
+            binary.reset();
+        }
+        webSocket.request(1);
+        return null;
+    }
+
+    @Override
+    public CompletionStage<?> onClose(WebSocket webSocket, int statusCode, String reason) {
+        closed.complete(statusCode);
+        return null;
+    }
+
+    @Override
+    public void onError(WebSocket webSocket, Throwable error) {
+        closed.completeExceptionally(error);
+    }
+
+    private interface Reader {
+        JsonNode read() throws IOException;
+    }
+
+    private static JsonNode parse(Reader reader) {
+        try {
+            return reader.read();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unreadable frame", e);
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package org.chatws.handler;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.chatws.config.ChatProperties;
+import org.chatws.model.ChatMessage;
+import org.chatws.service.ChatMetrics;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.security.Principal;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+/**
+ * The overflow policies of a session whose writer is stuck on a slow client: droppable
+ * frames (typing and presence) are refused above the threshold and evicted first when the
+ * queue is full, then chat frames are dropped or the session is closed, as configured.
+ */
+class OutboundDispatcherTests {
+
+    private static final int QUEUE_CAPACITY = 4;
+    private static final int DROPPABLE_THRESHOLD = 2;
+
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+    private final StalledSession session = new StalledSession();
+
+    @AfterEach
+    void releaseWriter() {
+        session.release.countDown();
+        writer.shutdownNow();
+    }
+
+    @Test
+    void dropThenDisconnectEvictsDroppableFramesBeforeClosing() throws Exception {
+        OutboundDispatcher dispatcher = stalled(ChatProperties.OverflowPolicy.DROP_THEN_DISCONNECT);
+        fill(dispatcher);
+        assertEquals(1, dropped(dispatcher));
+
+        // Full: the queued typing frame makes room for a chat frame
+        dispatcher.send(session, frame("c4"), ChatMessage.MessageType.CHAT);
+        assertEquals(QUEUE_CAPACITY, depth(dispatcher));
+        assertEquals(2, dropped(dispatcher));
+        assertNull(session.closeStatus);
+
+        // Only chat frames are left: the session is closed and its queue discarded
+        dispatcher.send(session, frame("c5"), ChatMessage.MessageType.CHAT);
+        assertEquals(CloseStatus.SESSION_NOT_RELIABLE, session.closeStatus);
+        assertEquals(0, depth(dispatcher));
+        dispatcher.send(session, frame("c6"), ChatMessage.MessageType.CHAT);
+        assertEquals(0, depth(dispatcher));
+    }
+
+    @Test
+    void dropKeepsTheSessionAndDeliversWhatWasQueued() throws Exception {
+        OutboundDispatcher dispatcher = stalled(ChatProperties.OverflowPolicy.DROP);
+        fill(dispatcher);
+
+        dispatcher.send(session, frame("c4"), ChatMessage.MessageType.CHAT);
+        dispatcher.send(session, frame("c5"), ChatMessage.MessageType.CHAT);
+        dispatcher.send(session, frame("c6"), ChatMessage.MessageType.CHAT);
+        assertEquals(QUEUE_CAPACITY, depth(dispatcher));
+        // The presence frame over the threshold, the evicted typing frame, and c5 and c6
+        assertEquals(4, dropped(dispatcher));
+
+        session.release.countDown();
+        awaitSent(5);
+        assertEquals(List.of("stall", "c1", "c2", "c3", "c4"), session.sent);
+        assertNull(session.closeStatus);
+    }
+
+    @Test
+    void disconnectClosesAsSoonAsTheQueueIsFull() throws Exception {
+        OutboundDispatcher dispatcher = stalled(ChatProperties.OverflowPolicy.DISCONNECT);
+        fill(dispatcher);
+
+        // The queued typing frame is not evicted
+        dispatcher.send(session, frame("c4"), ChatMessage.MessageType.CHAT);
+        assertEquals(CloseStatus.SESSION_NOT_RELIABLE, session.closeStatus);
+        assertEquals(1, dropped(dispatcher));
+        assertEquals(0, depth(dispatcher));
+    }
+
+    /**
+     * A dispatcher whose writer is stuck sending the first frame to the session
+     */
+    private OutboundDispatcher stalled(ChatProperties.OverflowPolicy policy) throws Exception {
+        ChatProperties properties = new ChatProperties();
+        properties.getOutbound().setQueueCapacity(QUEUE_CAPACITY);
+        properties.getOutbound().setDroppableThreshold(DROPPABLE_THRESHOLD);
+        properties.getOutbound().setOverflowPolicy(policy);
+        ChatMetrics metrics = new ChatMetrics();
+        setField(metrics, "meterRegistry", new SimpleMeterRegistry());
+        setField(metrics, "chatProperties", properties);
+        metrics.init();
+
+        OutboundDispatcher dispatcher = new OutboundDispatcher();
+        setField(dispatcher, "chatProperties", properties);
+        setField(dispatcher, "chatMetrics", metrics);
+        setField(dispatcher, "writer", writer);
+
+        dispatcher.register(session);
+        dispatcher.send(session, frame("stall"), ChatMessage.MessageType.CHAT);
+        assertTrue(session.writing.await(5, TimeUnit.SECONDS));
+        return dispatcher;
+    }
+
+    /**
+     * Queue a typing frame and chat frames up to the capacity; a presence frame past the threshold is dropped
+     */
+    private void fill(OutboundDispatcher dispatcher) {
+        dispatcher.send(session, frame("typing"), ChatMessage.MessageType.TYPING);
+        dispatcher.send(session, frame("c1"), ChatMessage.MessageType.CHAT);
+        dispatcher.send(session, frame("presence"), ChatMessage.MessageType.PRESENCE);
+        dispatcher.send(session, frame("c2"), ChatMessage.MessageType.CHAT);
+        dispatcher.send(session, frame("c3"), ChatMessage.MessageType.CHAT);
+        assertEquals(QUEUE_CAPACITY, depth(dispatcher));
+    }
+
+    private void awaitSent(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (session.sent.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static WebSocketMessage<?> frame(String payload) {
+        return new TextMessage(payload);
+    }
+
+    private static int depth(OutboundDispatcher dispatcher) {
+        return dispatcher.getQueueStatus().getFirst().depth();
+    }
+
+    private static long dropped(OutboundDispatcher dispatcher) {
+        return dispatcher.getQueueStatus().getFirst().droppedFrames();
+    }
+
+    /**
+     * A session whose sends block until released, as a client that stopped reading would
+     */
+    private static final class StalledSession implements WebSocketSession {
+
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> sent = new CopyOnWriteArrayList<>();
+        volatile CloseStatus closeStatus;
+
+        @Override
+        public void sendMessage(WebSocketMessage<?> message) {
+            sent.add(((TextMessage) message).getPayload());
+            writing.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void close(CloseStatus status) {
+            closeStatus = status;
+        }
+
+        @Override
+        public void close() {
+            close(CloseStatus.NORMAL);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return closeStatus == null;
+        }
+
+        @Override
+        public String getId() {
+            return "s1";
+        }
+
+        @Override
+        public URI getUri() {
+            return null;
+        }
+
+        @Override
+        public HttpHeaders getHandshakeHeaders() {
+            return HttpHeaders.EMPTY;
+        }
+
+        @Override
+        public Map<String, Object> getAttributes() {
+            return new HashMap<>();
+        }
+
+        @Override
+        public Principal getPrincipal() {
+            return null;
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return null;
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            return null;
+        }
+
+        @Override
+        public String getAcceptedProtocol() {
+            return null;
+        }
+
+        @Override
+        public void setTextMessageSizeLimit(int messageSizeLimit) {
+        }
+
+        @Override
+        public int getTextMessageSizeLimit() {
+            return 0;
+        }
+
+        @Override
+        public void setBinaryMessageSizeLimit(int messageSizeLimit) {
+        }
+
+        @Override
+        public int getBinaryMessageSizeLimit() {
+            return 0;
+        }
+
+        @Override
+        public List<WebSocketExtension> getExtensions() {
+            return List.of();
+        }
+    }
+}
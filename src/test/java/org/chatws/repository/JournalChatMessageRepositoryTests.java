@@ -0,0 +1,163 @@
+package org.chatws.repository;
+
+import org.chatws.config.ChatProperties;
+import org.chatws.config.JacksonConfig;
+import org.chatws.model.ChatMessage;
+import org.chatws.model.ConversationId;
+import org.chatws.model.MessageId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.data.domain.Limit;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+/**
+ * Reads of the journal repository after it has been reopened: the pages a room's chain
+ * gives, with the edits and deletes replayed, including after a torn tail.
+ */
+class JournalChatMessageRepositoryTests {
+
+    private static final long START = 1_700_000_000_000L;
+
+    @TempDir
+    Path directory;
+
+    private final List<JournalChatMessageRepository> opened = new ArrayList<>();
+
+    @AfterEach
+    void closeRepositories() {
+        opened.forEach(JournalChatMessageRepository::close);
+    }
+
+    @Test
+    void pagesFollowTheRoomChainAcrossSegmentsAfterReopen() throws IOException {
+        JournalChatMessageRepository repository = open();
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            ChatMessage message = message(i, i % 3 == 0 ? "other" : "lobby");
+            ids.add(message.getId());
+            repository.insert(message);
+        }
+        repository.close();
+
+        JournalChatMessageRepository reopened = open();
+        assertEquals(List.of(ids.get(11), ids.get(10), ids.get(8)),
+            ids(reopened.findVisibleByRoom("lobby", Limit.of(3))));
+        assertEquals(List.of(ids.get(7), ids.get(5), ids.get(4)),
+            ids(reopened.findVisibleByRoomBefore("lobby", ids.get(8), Limit.of(3))));
+        assertEquals(List.of(ids.get(2), ids.get(1)),
+            ids(reopened.findVisibleByRoomBefore("lobby", ids.get(4), Limit.of(3))));
+        assertEquals(List.of(ids.get(9), ids.get(6), ids.get(3), ids.get(0)),
+            ids(reopened.findVisibleByRoom("other", Limit.unlimited())));
+        assertEquals(12, reopened.count());
+    }
+
+    @Test
+    void editsAndDeletesAreReplayedAndTornTailIsDropped() throws IOException {
+        JournalChatMessageRepository repository = open();
+        ChatMessage first = message(0, "lobby");
+        ChatMessage second = message(1, "lobby");
+        ChatMessage third = message(2, "lobby");
+        repository.insert(List.of(first, second, third));
+        assertTrue(repository.markEdited(first.getId(), "alice", "fixed", LocalDateTime.now()));
+        assertTrue(repository.markDeleted(second.getId(), "alice"));
+        assertFalse(repository.markEdited(third.getId(), "mallory", "not yours", LocalDateTime.now()));
+        assertFalse(repository.markDeleted(second.getId(), "alice"));
+        repository.close();
+        tearTail();
+
+        JournalChatMessageRepository reopened = open();
+        List<ChatMessage> page = reopened.findVisibleByRoom("lobby", Limit.of(10));
+        assertEquals(List.of(third.getId(), first.getId()), ids(page));
+        assertEquals("fixed", page.get(1).getContent());
+        assertTrue(reopened.findById(second.getId()).orElseThrow().isDeleted());
+
+        // Appends carry on after the last intact record
+        ChatMessage fourth = message(3, "lobby");
+        reopened.insert(fourth);
+        assertEquals(List.of(fourth.getId(), third.getId(), first.getId()),
+            ids(reopened.findVisibleByRoom("lobby", Limit.of(10))));
+    }
+
+    @Test
+    void inboxMergesTheConversationsOfAUser() throws IOException {
+        JournalChatMessageRepository repository = open();
+        ChatMessage toBob = message(0, null);
+        toBob.setConversation(ConversationId.of("alice", "bob"));
+        ChatMessage toCarol = message(1, null);
+        toCarol.setConversation(ConversationId.of("alice", "carol"));
+        ChatMessage inRoom = message(2, "lobby");
+        repository.insert(List.of(toBob, toCarol, inRoom));
+        repository.close();
+
+        JournalChatMessageRepository reopened = open();
+        assertEquals(List.of(toCarol.getId(), toBob.getId()),
+            ids(reopened.findVisibleByParticipant("alice", Limit.of(10))));
+        assertEquals(List.of(toBob.getId()), ids(reopened.findVisibleByParticipant("bob", Limit.of(10))));
+        assertEquals(List.of(inRoom.getId()), ids(reopened.findVisibleByRoom("lobby", Limit.of(10))));
+    }
+
+    private JournalChatMessageRepository open() throws IOException {
+        ChatProperties properties = new ChatProperties();
+        properties.getJournal().setDirectory(directory.toString());
+        // A few messages per segment, and every other message of a room in the sparse index
+        properties.getJournal().setSegmentSize(DataSize.ofBytes(512));
+        properties.getJournal().setIndexInterval(2);
+        properties.getJournal().setFsync(ChatProperties.FsyncPolicy.NEVER);
+
+        JournalChatMessageRepository repository = new JournalChatMessageRepository();
+        setField(repository, "chatProperties", properties);
+        setField(repository, "cborMapper", new JacksonConfig().cborMapper());
+        repository.open();
+        opened.add(repository);
+        return repository;
+    }
+
+    /**
+     * A message of alice accepted i seconds after the start
+     */
+    private static ChatMessage message(int i, String room) {
+        ChatMessage message = new ChatMessage(MessageId.of(START + 1_000L * i, 0, 1), ChatMessage.MessageType.CHAT,
+            "m-" + i, "alice", room);
+        message.setTimestamp(LocalDateTime.now());
+        return message;
+    }
+
+    private static List<String> ids(List<ChatMessage> messages) {
+        return messages.stream().map(ChatMessage::getId).toList();
+    }
+
+    /**
+     * Leave the start of a record after the last one, as a crash in the middle of a write would
+     */
+    private void tearTail() throws IOException {
+        Path last;
+        try (Stream<Path> listing = Files.list(directory)) {
+            last = listing.filter(JournalSegment::isSegment).sorted().toList().getLast();
+        }
+        ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(last));
+        int end = 0;
+        while (end + 4 <= file.capacity() && file.getInt(end) != 0) {
+            end += 4 + file.getInt(end);
+        }
+        try (FileChannel channel = FileChannel.open(last, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(12).putInt(100).putInt(42).put((byte) 1).flip(), end);
+        }
+    }
+}
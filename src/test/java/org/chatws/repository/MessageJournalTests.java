@@ -0,0 +1,238 @@
+package org.chatws.repository;
+
+import org.chatws.config.ChatProperties;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The journal on disk: what a reopened journal replays after a clean close, a torn or corrupt
+ * tail, rollover and retention, and the room chains and indexes it rebuilds.
+ */
+class MessageJournalTests {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void reopenReplaysEveryRecordInOrder() throws IOException {
+        MessageJournal journal = open(DataSize.ofKilobytes(64), 32, new ArrayList<>());
+        journal.append(List.of(insert("m1", 1_000, "lobby"), insert("m2", 2_000, "lobby")));
+        journal.append(List.of(new MessageJournal.Write(MessageJournal.EDIT, 1_000, "m1", null, bytes("edited")),
+            new MessageJournal.Write(MessageJournal.DELETE, 2_000, "m2", null, null)));
+        journal.close();
+
+        List<MessageJournal.Entry> replayed = new ArrayList<>();
+        MessageJournal reopened = open(DataSize.ofKilobytes(64), 32, replayed);
+        assertEquals(List.of("m1", "m2", "m1", "m2"), replayed.stream().map(MessageJournal.Entry::id).toList());
+        assertEquals(List.of(MessageJournal.INSERT, MessageJournal.INSERT, MessageJournal.EDIT, MessageJournal.DELETE),
+            replayed.stream().map(MessageJournal.Entry::kind).toList());
+        assertArrayEquals(bytes("edited"), replayed.get(2).payload());
+        assertEquals(2, reopened.count());
+        assertEquals("m2", reopened.findInsert("m2").id());
+    }
+
+    @Test
+    void tornTailIsTruncatedAndOverwritten() throws IOException {
+        MessageJournal journal = open(DataSize.ofKilobytes(64), 32, new ArrayList<>());
+        journal.append(List.of(insert("m1", 1_000, "lobby"), insert("m2", 2_000, "lobby"), insert("m3", 3_000, "lobby")));
+        journal.close();
+
+        // A crash in the middle of a write: the length of the next record, and only part of it
+        Path segment = onlySegment();
+        int end = end(segment);
+        write(segment, end, ByteBuffer.allocate(17).putInt(80).putInt(0x1234).put((byte) 1).putLong(4_000).flip());
+
+        List<MessageJournal.Entry> replayed = new ArrayList<>();
+        MessageJournal reopened = open(DataSize.ofKilobytes(64), 32, replayed);
+        assertEquals(List.of("m1", "m2", "m3"), replayed.stream().map(MessageJournal.Entry::id).toList());
+        assertEquals(end, end(segment));
+
+        // The next record takes the place of the torn one
+        reopened.append(List.of(insert("m4", 4_000, "lobby")));
+        reopened.close();
+        replayed.clear();
+        open(DataSize.ofKilobytes(64), 32, replayed);
+        assertEquals(List.of("m1", "m2", "m3", "m4"), replayed.stream().map(MessageJournal.Entry::id).toList());
+    }
+
+    @Test
+    void recordWithBadChecksumIsNotReplayed() throws IOException {
+        MessageJournal journal = open(DataSize.ofKilobytes(64), 32, new ArrayList<>());
+        journal.append(List.of(insert("m1", 1_000, "lobby"), insert("m2", 2_000, "lobby")));
+        long last = journal.findInsert("m2").offset();
+        journal.close();
+
+        // Flip the last byte of the payload of the last record
+        Path segment = onlySegment();
+        int end = end(segment);
+        write(segment, end - 1, ByteBuffer.wrap(new byte[] {(byte) ~Files.readAllBytes(segment)[end - 1]}));
+
+        List<MessageJournal.Entry> replayed = new ArrayList<>();
+        MessageJournal reopened = open(DataSize.ofKilobytes(64), 32, replayed);
+        assertEquals(List.of("m1"), replayed.stream().map(MessageJournal.Entry::id).toList());
+        assertEquals(1, reopened.count());
+        assertNull(reopened.findInsert("m2"));
+        assertEquals(reopened.findInsert("m1").offset(), reopened.room("lobby").head());
+        assertEquals(last, end(segment));
+    }
+
+    @Test
+    void fullSegmentRollsOverAndChainsContinueAcrossSegments() throws IOException {
+        MessageJournal journal = open(DataSize.ofBytes(256), 32, new ArrayList<>());
+        for (int i = 0; i < 10; i++) {
+            journal.append(List.of(insert("m" + i, 1_000 + i, "lobby", 60)));
+        }
+        journal.close();
+        assertTrue(segments().size() > 1);
+
+        List<MessageJournal.Entry> replayed = new ArrayList<>();
+        MessageJournal reopened = open(DataSize.ofBytes(256), 32, replayed);
+        assertEquals(segments().size(), replayed.stream().map(entry -> entry.offset() / 256).distinct().count());
+        assertEquals(10, replayed.size());
+        assertEquals(List.of("m9", "m8", "m7", "m6", "m5", "m4", "m3", "m2", "m1", "m0"),
+            chain(reopened, reopened.room("lobby").head()));
+
+        assertThrows(IllegalArgumentException.class,
+            () -> reopened.append(List.of(insert("big", 2_000, "lobby", 256))));
+    }
+
+    @Test
+    void expiredSegmentsAreDeletedWithTheirRoomsAndIds() throws IOException {
+        MessageJournal journal = open(DataSize.ofBytes(256), 1, new ArrayList<>());
+        // Two records per segment: old ones in "old" and "lobby", then new ones in "lobby"
+        journal.append(List.of(insert("o1", 1_000, "old", 60), insert("o2", 1_001, "lobby", 60)));
+        journal.append(List.of(insert("o3", 1_002, "old", 60), insert("o4", 1_003, "lobby", 60)));
+        journal.append(List.of(insert("n1", 9_000, "lobby", 60), insert("n2", 9_001, "lobby", 60)));
+        int before = segments().size();
+
+        assertEquals(1_003, journal.expire(5_000));
+        assertEquals(before - 2, segments().size());
+        assertEquals(2, journal.count());
+        assertNull(journal.room("old"));
+        assertNull(journal.findInsert("o4"));
+        assertNotNull(journal.findInsert("n1"));
+        // The chain ends where the deleted segments were, and the index no longer points into them
+        assertEquals(List.of("n2", "n1"), chain(journal, journal.room("lobby").head()));
+        assertEquals(journal.findInsert("n1").offset(), journal.room("lobby").seek(0));
+
+        // The active segment is kept however old it is
+        assertEquals(Long.MIN_VALUE, journal.expire(Long.MAX_VALUE));
+        assertEquals(List.of("n2", "n1"), chain(journal, journal.room("lobby").head()));
+    }
+
+    @Test
+    void roomChainsAndSparseIndexAreRebuiltOnOpen() throws IOException {
+        MessageJournal journal = open(DataSize.ofKilobytes(64), 4, new ArrayList<>());
+        for (int i = 0; i < 20; i++) {
+            journal.append(List.of(insert("a" + i, 1_000 + 10 * i, "a"), insert("b" + i, 1_005 + 10 * i, "b")));
+        }
+        List<Long> seeks = new ArrayList<>();
+        for (long time = 900; time < 1_250; time += 25) {
+            seeks.add(journal.room("a").seek(time));
+        }
+        long headA = journal.room("a").head();
+        journal.close();
+
+        MessageJournal reopened = open(DataSize.ofKilobytes(64), 4, new ArrayList<>());
+        assertEquals(headA, reopened.room("a").head());
+        List<Long> reopenedSeeks = new ArrayList<>();
+        for (long time = 900; time < 1_250; time += 25) {
+            reopenedSeeks.add(reopened.room("a").seek(time));
+        }
+        assertEquals(seeks, reopenedSeeks);
+
+        // Every 4th insert of a room is indexed: a0, a4, a8, ...; a seek lands on the oldest newer one
+        assertEquals("a8", reopened.read(reopened.room("a").seek(1_075)).id());
+        assertEquals(headA, reopened.room("a").seek(1_190));
+        // Each room's chain holds its own inserts only, newest first
+        List<String> b = chain(reopened, reopened.room("b").head());
+        assertEquals(20, b.size());
+        assertEquals("b19", b.getFirst());
+        assertEquals("b0", b.getLast());
+        assertTrue(b.stream().allMatch(id -> id.startsWith("b")));
+        assertEquals(List.of("a8", "a7", "a6", "a5", "a4", "a3", "a2", "a1", "a0"),
+            chain(reopened, reopened.room("a").seek(1_075)));
+    }
+
+    private MessageJournal open(DataSize segmentSize, int indexInterval, List<MessageJournal.Entry> replayed)
+            throws IOException {
+        ChatProperties.Journal settings = new ChatProperties.Journal();
+        settings.setDirectory(directory.toString());
+        settings.setSegmentSize(segmentSize);
+        settings.setIndexInterval(indexInterval);
+        settings.setFsync(ChatProperties.FsyncPolicy.NEVER);
+        return MessageJournal.open(settings, replayed::add);
+    }
+
+    private static MessageJournal.Write insert(String id, long timeMillis, String room) {
+        return insert(id, timeMillis, room, 8);
+    }
+
+    private static MessageJournal.Write insert(String id, long timeMillis, String room, int payloadLength) {
+        return new MessageJournal.Write(MessageJournal.INSERT, timeMillis, id, room, new byte[payloadLength]);
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Ids of a room chain walked back from an offset
+     */
+    private static List<String> chain(MessageJournal journal, long offset) {
+        List<String> ids = new ArrayList<>();
+        for (MessageJournal.Entry entry = journal.read(offset); entry != null; entry = journal.read(entry.previous())) {
+            ids.add(entry.id());
+        }
+        return ids;
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> listing = Files.list(directory)) {
+            return listing.filter(JournalSegment::isSegment).sorted().toList();
+        }
+    }
+
+    private Path onlySegment() throws IOException {
+        List<Path> segments = segments();
+        assertEquals(1, segments.size());
+        return segments.getFirst();
+    }
+
+    /**
+     * Position after the last record of a segment file, following the record lengths up to a zero
+     */
+    private static int end(Path segment) throws IOException {
+        ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(segment));
+        int position = 0;
+        while (position + 4 <= file.capacity() && file.getInt(position) != 0) {
+            position += 4 + file.getInt(position);
+        }
+        return position;
+    }
+
+    private static void write(Path segment, int position, ByteBuffer bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(bytes, position);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.chatws.service;
+
+import org.chatws.config.ChatProperties;
+import org.chatws.model.MessageId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.util.ReflectionTestUtils.setField;
+
+/**
+ * Ids of one generator strictly increase, whatever the wall clock does
+ */
+class MessageIdGeneratorTests {
+
+    private static final long NOW = 1_700_000_000_000L;
+
+    private final MessageIdGenerator generator = new MessageIdGenerator();
+
+    @BeforeEach
+    void setUp() {
+        ChatProperties properties = new ChatProperties();
+        properties.getBus().setNodeId("node-1");
+        setField(generator, "chatProperties", properties);
+        generator.init();
+    }
+
+    @Test
+    void idsOfOneMillisecondIncrease() {
+        String first = generator.next(NOW);
+        String second = generator.next(NOW);
+        assertTrue(second.compareTo(first) > 0);
+        assertEquals(NOW, MessageId.epochMillis(first));
+        assertEquals(NOW, MessageId.epochMillis(second));
+    }
+
+    @Test
+    void idsKeepIncreasingWhenTheClockStepsBack() {
+        String before = generator.next(NOW);
+        String afterRollback = generator.next(NOW - 5_000);
+        String later = generator.next(NOW - 4_000);
+        assertTrue(afterRollback.compareTo(before) > 0);
+        assertTrue(later.compareTo(afterRollback) > 0);
+        // The ids stay at the time already handed out until the clock catches up
+        assertEquals(NOW, MessageId.epochMillis(later));
+        assertEquals(NOW + 1, MessageId.epochMillis(generator.next(NOW + 1)));
+    }
+
+    @Test
+    void sequenceOverflowMovesIntoTheNextMillisecond() {
+        String previous = generator.next(NOW);
+        for (int i = 1; i < 65_536; i++) {
+            String id = generator.next(NOW);
+            assertTrue(id.compareTo(previous) > 0);
+            previous = id;
+        }
+        assertEquals(NOW, MessageId.epochMillis(previous));
+
+        // The 65537th id of the millisecond borrows from the next one, and the next millisecond continues after it
+        String overflow = generator.next(NOW);
+        assertTrue(overflow.compareTo(previous) > 0);
+        assertEquals(NOW + 1, MessageId.epochMillis(overflow));
+        String next = generator.next(NOW + 1);
+        assertTrue(next.compareTo(overflow) > 0);
+        assertEquals(NOW + 1, MessageId.epochMillis(next));
+    }
+}
@@ -0,0 +1,142 @@
+package org.chatws.service;
+
+import org.chatws.config.ChatProperties;
+import org.chatws.model.ChatMessage;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Token buckets on a clock that only moves when a test moves it: bursts, refills, idle
+ * eviction, and the burst as an upper bound under concurrent callers.
+ */
+class RateLimiterTests {
+
+    private static final int BURST = 5;
+    // 10 per second: one token every 100ms
+    private static final long INTERVAL_NANOS = 100_000_000L;
+    private static final Duration IDLE = Duration.ofMinutes(1);
+
+    private final AtomicLong clock = new AtomicLong(1_000_000_000_000L);
+    private final RateLimiter rateLimiter = new RateLimiter(settings(), clock::get);
+
+    @Test
+    void burstIsAdmittedAndTheNextMessageRejected() {
+        for (int i = 0; i < BURST; i++) {
+            assertTrue(rateLimiter.tryAcquire("alice", ChatMessage.MessageType.CHAT));
+        }
+        assertFalse(rateLimiter.tryAcquire("alice", ChatMessage.MessageType.CHAT));
+        assertEquals(100, rateLimiter.getRemainingCooldownMs("alice", ChatMessage.MessageType.CHAT));
+
+        // Other users and other message types have budgets of their own
+        assertTrue(rateLimiter.tryAcquire("bob", ChatMessage.MessageType.CHAT));
+        assertTrue(rateLimiter.tryAcquire("alice", ChatMessage.MessageType.TYPING));
+    }
+
+    @Test
+    void oneIntervalRefillsOneToken() {
+        for (int i = 0; i < BURST; i++) {
+            rateLimiter.tryAcquire("alice", ChatMessage.MessageType.CHAT);
+        }
+
+        clock.addAndGet(INTERVAL_NANOS - 1);
+        assertFalse(rateLimiter.tryAcquire("alice", ChatMessage.MessageType.CHAT));
+        clock.incrementAndGet();
+        assertTrue(rateLimiter.tryAcquire("alice", ChatMessage.MessageType.CHAT));
+        assertFalse(rateLimiter.tryAcquire("alice", ChatMessage.MessageType.CHAT));
+
+        // A long pause refills the bucket up to the burst, no further
+        clock.addAndGet(100 * INTERVAL_NANOS);
+        for (int i = 0; i < BURST; i++) {
+            assertTrue(rateLimiter.tryAcquire("alice", ChatMessage.MessageType.CHAT));
+        }
+        assertFalse(rateLimiter.tryAcquire("alice", ChatMessage.MessageType.CHAT));
+    }
+
+    @Test
+    void connectionByteBudgetRefillsWithTime() {
+        assertTrue(rateLimiter.tryAcquireBytes("s1", 1_000));
+        assertFalse(rateLimiter.tryAcquireBytes("s1", 1));
+
+        // 1000 bytes per second: one byte per millisecond
+        clock.addAndGet(1_000_000L);
+        assertTrue(rateLimiter.tryAcquireBytes("s1", 1));
+        assertFalse(rateLimiter.tryAcquireBytes("s1", 1));
+    }
+
+    @Test
+    void idleBucketsAreEvicted() {
+        for (int i = 0; i < BURST; i++) {
+            rateLimiter.tryAcquire("alice", ChatMessage.MessageType.CHAT);
+        }
+        // 100 bytes take 100ms to refill, the burst of alice 500ms
+        rateLimiter.tryAcquireBytes("s1", 100);
+        assertEquals(2, rateLimiter.bucketCount());
+
+        // A bucket is kept until it has been full for the idle time
+        clock.addAndGet(IDLE.toNanos() + 2 * INTERVAL_NANOS);
+        rateLimiter.evictIdle();
+        assertEquals(1, rateLimiter.bucketCount());
+        clock.addAndGet(3 * INTERVAL_NANOS);
+        rateLimiter.evictIdle();
+        assertEquals(0, rateLimiter.bucketCount());
+
+        // A returning user starts with a full bucket
+        for (int i = 0; i < BURST; i++) {
+            assertTrue(rateLimiter.tryAcquire("alice", ChatMessage.MessageType.CHAT));
+        }
+        assertFalse(rateLimiter.tryAcquire("alice", ChatMessage.MessageType.CHAT));
+    }
+
+    @Test
+    void concurrentCallersNeverGetMoreThanTheBurst() throws Exception {
+        int threads = 8;
+        int attempts = 1_000;
+        AtomicInteger admitted = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> callers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                callers.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = 0; i < attempts; i++) {
+                        if (rateLimiter.tryAcquire("alice", ChatMessage.MessageType.CHAT)) {
+                            admitted.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> caller : callers) {
+                caller.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(BURST, admitted.get());
+    }
+
+    private static ChatProperties.RateLimit settings() {
+        ChatProperties.RateLimit settings = new ChatProperties.RateLimit();
+        settings.getTypes().put(ChatMessage.MessageType.CHAT, new ChatProperties.Bucket(BURST, 10));
+        settings.getTypes().put(ChatMessage.MessageType.TYPING, new ChatProperties.Bucket(BURST, 10));
+        settings.setBytesPerSecond(1_000);
+        settings.setBytesBurst(1_000);
+        settings.setIdleEviction(IDLE);
+        return settings;
+    }
+}
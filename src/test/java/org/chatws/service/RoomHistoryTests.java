@@ -0,0 +1,149 @@
+package org.chatws.service;
+
+import org.chatws.model.ChatMessage;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The ring buffer of a room: wraparound past the spare slot, the id index and lookups by
+ * sequence number after a slot has been overwritten, and readers racing a writer.
+ */
+class RoomHistoryTests {
+
+    private static final int CAPACITY = 4;
+
+    private final RoomHistory history = new RoomHistory(CAPACITY, "epoch-1");
+
+    @Test
+    void snapshotKeepsTheNewestMessagesAcrossWraparound() {
+        assertEquals(List.of(), history.snapshot());
+        for (int i = 1; i <= 3; i++) {
+            history.append(message(i));
+        }
+        assertEquals(List.of("m1", "m2", "m3"), ids(history.snapshot()));
+
+        // Several times around the capacity + 1 slots
+        for (int i = 4; i <= 13; i++) {
+            history.append(message(i));
+        }
+        assertEquals(List.of("m10", "m11", "m12", "m13"), ids(history.snapshot()));
+        assertEquals(13, history.getLastSeq());
+        assertEquals(List.of(10L, 11L, 12L, 13L), history.snapshot().stream().map(ChatMessage::getSeq).toList());
+    }
+
+    @Test
+    void evictedMessagesLeaveTheIdIndex() {
+        for (int i = 1; i <= CAPACITY; i++) {
+            history.append(message(i));
+        }
+        assertSame(history.snapshot().getFirst(), history.find("m1"));
+
+        // m1 leaves the readable range with this append, though its slot is the spare one still
+        history.append(message(5));
+        assertNull(history.find("m1"));
+        assertEquals("m2", history.find("m2").getId());
+
+        // Once its slot has been overwritten too, nothing of m1 is left
+        history.append(message(6));
+        assertNull(history.find("m1"));
+        assertNull(history.find("m2"));
+        assertEquals(List.of("m3", "m4", "m5", "m6"), ids(history.snapshot()));
+        assertNull(history.find(null));
+    }
+
+    @Test
+    void lookupsBySeqAfterOverwrite() {
+        for (int i = 1; i <= 7; i++) {
+            history.append(message(i));
+        }
+        // Slots of 1 and 2 hold 6 and 7 now; 3 is out of range, though still in the spare slot
+        assertNull(history.at(1));
+        assertNull(history.at(2));
+        assertNull(history.at(3));
+        assertEquals("m4", history.at(4).getId());
+        assertEquals("m7", history.at(7).getId());
+        assertNull(history.at(8));
+        assertNull(history.at(0));
+
+        assertEquals(List.of("m6", "m7"), ids(history.since(5)));
+        assertEquals(List.of(), history.since(7));
+        assertEquals(List.of("m4", "m5", "m6", "m7"), ids(history.since(3)));
+        // The gap after 2 is no longer buffered, and 8 was never handed out
+        assertNull(history.since(2));
+        assertNull(history.since(8));
+    }
+
+    @Test
+    void readersRacingAWriterSeeContiguousRanges() throws Exception {
+        RoomHistory raced = new RoomHistory(CAPACITY, "epoch-1");
+        int appends = 200_000;
+        AtomicBoolean writing = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            Future<?> writer = executor.submit(() -> {
+                for (int i = 1; i <= appends; i++) {
+                    raced.append(message(i));
+                }
+                writing.set(false);
+            });
+            List<Future<?>> readers = new ArrayList<>();
+            for (int r = 0; r < 2; r++) {
+                readers.add(executor.submit(() -> {
+                    while (writing.get()) {
+                        List<ChatMessage> snapshot = raced.snapshot();
+                        assertContiguous(snapshot);
+                        if (!snapshot.isEmpty()) {
+                            List<ChatMessage> since = raced.since(snapshot.getFirst().getSeq());
+                            // Null once the writer has moved past the range
+                            if (since != null) {
+                                assertContiguous(since);
+                            }
+                        }
+                    }
+                    return null;
+                }));
+            }
+
+            writer.get();
+            for (Future<?> reader : readers) {
+                reader.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(appends, raced.getLastSeq());
+    }
+
+    /**
+     * Consecutive sequence numbers whose messages carry the id of their number, at most the capacity
+     */
+    private static void assertContiguous(List<ChatMessage> messages) {
+        assertTrue(messages.size() <= CAPACITY);
+        for (int i = 0; i < messages.size(); i++) {
+            ChatMessage message = messages.get(i);
+            assertEquals("m" + message.getSeq(), message.getId());
+            if (i > 0) {
+                assertEquals(messages.get(i - 1).getSeq() + 1, message.getSeq());
+            }
+        }
+    }
+
+    private static ChatMessage message(int i) {
+        return new ChatMessage("m" + i, ChatMessage.MessageType.CHAT, "content " + i, "alice", "lobby");
+    }
+
+    private static List<String> ids(List<ChatMessage> messages) {
+        return messages.stream().map(ChatMessage::getId).toList();
+    }
+}
@@ -0,0 +1,83 @@
+package org.chatws.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Typing state on a clock that only moves when a test moves it: updates coalesced into one
+ * change per tick, and typists expiring on the server when their updates stop.
+ */
+class TypingTrackerTests {
+
+    private static final long EXPIRY_NANOS = 3_000_000_000L;
+    private static final long TICK_NANOS = 250_000_000L;
+
+    private final AtomicLong clock = new AtomicLong(1_000_000_000_000L);
+    private final TypingTracker tracker = new TypingTracker(EXPIRY_NANOS, clock::get);
+
+    @Test
+    void updatesWithinOneTickAreOneChange() {
+        tracker.startTyping("lobby", "alice");
+        tracker.startTyping("lobby", "alice");
+        tracker.startTyping("lobby", "bob");
+        tracker.startTyping("lobby", "alice");
+
+        Map<String, List<String>> changes = tracker.collectChanges();
+        assertEquals(1, changes.size());
+        assertEquals(List.of("alice", "bob"), changes.get("lobby").stream().sorted().toList());
+
+        // Still typing: refreshing the same set publishes nothing on the next ticks
+        clock.addAndGet(TICK_NANOS);
+        tracker.startTyping("lobby", "alice");
+        tracker.startTyping("lobby", "bob");
+        assertTrue(tracker.collectChanges().isEmpty());
+
+        // A stop and a start again within one tick leave the published set as it was
+        tracker.stopTyping("lobby", "bob");
+        tracker.startTyping("lobby", "bob");
+        assertTrue(tracker.collectChanges().isEmpty());
+
+        tracker.stopTyping("lobby", "bob");
+        assertEquals(Map.of("lobby", List.of("alice")), tracker.collectChanges());
+    }
+
+    @Test
+    void silentTypistExpiresAfterTheTimeout() {
+        tracker.startTyping("lobby", "alice");
+        tracker.startTyping("lobby", "bob");
+        tracker.collectChanges();
+
+        // Bob keeps typing, alice goes silent
+        clock.addAndGet(EXPIRY_NANOS - TICK_NANOS);
+        tracker.startTyping("lobby", "bob");
+        clock.addAndGet(TICK_NANOS);
+        assertTrue(tracker.collectChanges().isEmpty());
+
+        clock.incrementAndGet();
+        assertEquals(Map.of("lobby", List.of("bob")), tracker.collectChanges());
+        assertTrue(tracker.collectChanges().isEmpty());
+
+        // The room's last typist expiring publishes an empty set, once
+        clock.addAndGet(EXPIRY_NANOS);
+        assertEquals(Map.of("lobby", List.of()), tracker.collectChanges());
+        assertTrue(tracker.collectChanges().isEmpty());
+    }
+
+    @Test
+    void roomsChangeIndependently() {
+        tracker.startTyping("lobby", "alice");
+        tracker.startTyping("games", "bob");
+        assertEquals(2, tracker.collectChanges().size());
+
+        tracker.stopTyping("games", "bob");
+        // Stopping a user who is not typing is not a change
+        tracker.stopTyping("lobby", "carol");
+        assertEquals(Map.of("games", List.of()), tracker.collectChanges());
+    }
+}